@@ -25,9 +25,13 @@ import java.util.List;
 
 import net.sf.samtools.SAMRecord;
 
+import java.io.IOException;
+
 import uk.ac.babraham.BamQC.BamQCConfig;
+import uk.ac.babraham.BamQC.Annotation.AnnotationBitmap;
 import uk.ac.babraham.BamQC.Annotation.AnnotationSet;
 import uk.ac.babraham.BamQC.Annotation.GFF3AnnotationParser;
+import uk.ac.babraham.BamQC.Annotation.Location;
 import uk.ac.babraham.BamQC.Modules.QCModule;
 import uk.ac.babraham.BamQC.Sequence.SequenceFile;
 import uk.ac.babraham.BamQC.Sequence.SequenceFormatException;
@@ -63,6 +67,47 @@ public class AnalysisRunner implements Runnable {
 		}
 		AnalysisQueue.getInstance().addToQueue(this);
 	}
+	
+	/**
+	 * Says whether we can use an annotation cache for this file.  The
+	 * cache is laid out in the order of the BAM header, and only records
+	 * feature types, so it can't do stranded or unique counting.
+	 */
+	private boolean canUseAnnotationCache () {
+		if (BamQCConfig.getInstance().annotation_cache == null) return false;
+		
+		if (!file.canListChromosomes()) {
+			System.err.println("Not using the annotation cache since "+file.name()+" doesn't list its chromosomes");
+			return false;
+		}
+		if (!BamQCConfig.getInstance().strandedness.equals("none") || BamQCConfig.getInstance().unique_features) {
+			System.err.println("Not using the annotation cache since it can't do stranded or unique feature counts");
+			return false;
+		}
+		return true;
+	}
+	
+	private AnnotationBitmap openAnnotationCache (AnnotationSet annotation) {
+		try {
+			return AnnotationBitmap.open(BamQCConfig.getInstance().annotation_cache, BamQCConfig.getInstance().gff_file, annotation.chromosomeFactory());
+		}
+		catch (IOException ioe) {
+			System.err.println("Couldn't read annotation cache "+BamQCConfig.getInstance().annotation_cache+", so it will be rebuilt");
+			ioe.printStackTrace();
+			return null;
+		}
+	}
+	
+	private AnnotationBitmap buildAnnotationCache (AnnotationSet annotation) {
+		try {
+			return AnnotationBitmap.build(annotation, BamQCConfig.getInstance().annotation_cache, BamQCConfig.getInstance().gff_file);
+		}
+		catch (IOException ioe) {
+			System.err.println("Couldn't write annotation cache "+BamQCConfig.getInstance().annotation_cache);
+			ioe.printStackTrace();
+			return null;
+		}
+	}
 
 	public void run() {
 
@@ -72,11 +117,44 @@ public class AnalysisRunner implements Runnable {
 		}
 		
 		AnnotationSet annotation = new AnnotationSet();
+		annotation.setCoordinateSorted(file.isCoordinateSorted());
+		annotation.setUniqueFeaturesOnly(BamQCConfig.getInstance().unique_features);
+		if (BamQCConfig.getInstance().strandedness.equals("forward")) {
+			annotation.setStrandedness(Location.FORWARD);
+		}
+		else if (BamQCConfig.getInstance().strandedness.equals("reverse")) {
+			annotation.setStrandedness(Location.REVERSE);
+		}
+		
+		// Setting up the chromosomes from the header first means that the
+		// annotation can be matched to them as it's read.
+		if (file.canListChromosomes()) {
+			annotation.chromosomeFactory().setSequenceDictionary(file.getSequenceDictionary());
+		}
 				
 		if (BamQCConfig.getInstance().gff_file != null) {
 			GFF3AnnotationParser parser = new GFF3AnnotationParser();
 			try {
-				parser.parseAnnotation(annotation, BamQCConfig.getInstance().gff_file);
+				if (BamQCConfig.getInstance().alias_file != null) {
+					annotation.chromosomeFactory().loadAliases(BamQCConfig.getInstance().alias_file);
+				}
+				
+				// If we have a usable cache then we don't need to read the
+				// annotation at all, otherwise we read it and try to make one.
+				boolean useCache = canUseAnnotationCache();
+				AnnotationBitmap bitmap = null;
+				if (useCache) {
+					bitmap = openAnnotationCache(annotation);
+				}
+				if (bitmap == null) {
+					parser.parseAnnotation(annotation, BamQCConfig.getInstance().gff_file);
+					if (useCache) {
+						bitmap = buildAnnotationCache(annotation);
+					}
+				}
+				if (bitmap != null) {
+					annotation.setBitmap(bitmap);
+				}
 			}
 			catch (Exception e) {
 				Iterator<AnalysisListener> i2 = listeners.iterator();
@@ -0,0 +1,325 @@
+/**
+ * Copyright Copyright 2014 Simon Andrews
+ *
+ *    This file is part of BamQC.
+ *
+ *    BamQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    BamQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with BamQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.babraham.BamQC.Annotation;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * AnnotationBitmap is a precomputed map of which feature types cover
+ * each part of the genome.  The genome is split into small bins and for
+ * each bin we store a bitmask with one bit per feature type, plus one
+ * more bit saying whether the bin lies anywhere within a transcript.
+ *
+ * The map is written to a cache file which is memory mapped, so once it
+ * has been built for an annotation file and genome we don't need to
+ * parse the annotation at all, and classifying a read is just a few
+ * array reads.  The price is that positions are only resolved to the
+ * nearest bin, so a read which comes within BIN_SIZE bases of a feature
+ * may be counted as overlapping it.
+ *
+ * The chromosomes in the map are in the order of the BAM header, as held
+ * in the ChromosomeFactory, so reads are looked up by reference index.
+ */
+public class AnnotationBitmap {
+
+	public static final int BIN_SIZE = 16;
+
+	private static final int MAGIC = 0x42514342;
+	private static final int VERSION = 1;
+
+	private String [] typeNames;
+	private int transcriptBit;
+	private int bytesPerBin;
+	private MappedByteBuffer [] bins;
+	private int [] binCounts;
+
+	private AnnotationBitmap (String [] typeNames, int transcriptBit, int bytesPerBin, MappedByteBuffer [] bins, int [] binCounts) {
+		this.typeNames = typeNames;
+		this.transcriptBit = transcriptBit;
+		this.bytesPerBin = bytesPerBin;
+		this.bins = bins;
+		this.binCounts = binCounts;
+	}
+
+	/**
+	 * Opens an existing cache file, if it was made from the same annotation
+	 * and for the same genome.
+	 *
+	 * @param cacheFile The cache file
+	 * @param annotationFile The annotation file the cache should have been built from
+	 * @param factory The chromosome factory, set up from the BAM header
+	 * @return The bitmap, or null if there's no usable cache
+	 * @throws IOException
+	 */
+	public static AnnotationBitmap open (File cacheFile, File annotationFile, ChromosomeFactory factory) throws IOException {
+
+		if (!cacheFile.exists()) return null;
+
+		DataInputStream in = new DataInputStream(new FileInputStream(cacheFile));
+		String [] typeNames;
+		int transcriptBit;
+		int bytesPerBin;
+		int [] binCounts;
+		long dataStart;
+
+		try {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION || in.readInt() != BIN_SIZE) return null;
+
+			if (!in.readUTF().equals(annotationFile.getAbsolutePath())) return null;
+			if (in.readLong() != annotationFile.length()) return null;
+			if (in.readLong() != annotationFile.lastModified()) return null;
+
+			typeNames = new String[in.readInt()];
+			for (int t=0;t<typeNames.length;t++) {
+				typeNames[t] = in.readUTF();
+			}
+			transcriptBit = in.readInt();
+			bytesPerBin = in.readInt();
+
+			int chromosomeCount = in.readInt();
+			if (chromosomeCount != factory.referenceCount()) return null;
+
+			binCounts = new int[chromosomeCount];
+			for (int c=0;c<chromosomeCount;c++) {
+				if (!in.readUTF().equals(factory.getChromosome(c).name())) return null;
+				if (in.readInt() != factory.referenceLength(c)) return null;
+				binCounts[c] = in.readInt();
+			}
+
+			dataStart = in.readLong();
+		}
+		finally {
+			in.close();
+		}
+
+		RandomAccessFile file = new RandomAccessFile(cacheFile, "r");
+		MappedByteBuffer [] bins = new MappedByteBuffer[binCounts.length];
+
+		try {
+			// A mapping can't be more than 2GB so we map each chromosome
+			// separately.
+			FileChannel channel = file.getChannel();
+			long offset = dataStart;
+			for (int c=0;c<binCounts.length;c++) {
+				long size = ((long)binCounts[c])*bytesPerBin;
+				bins[c] = channel.map(FileChannel.MapMode.READ_ONLY, offset, size);
+				offset += size;
+			}
+		}
+		finally {
+			// The mappings stay valid after the file is closed
+			file.close();
+		}
+
+		return new AnnotationBitmap(typeNames, transcriptBit, bytesPerBin, bins, binCounts);
+	}
+
+	/**
+	 * Builds a new cache file from a loaded annotation set and opens it.
+	 * The file is written under a temporary name and then moved into
+	 * place, so other analyses can't see a half written cache.
+	 *
+	 * @param annotation The annotation set, which must have had its chromosome factory set up from the BAM header
+	 * @param cacheFile The cache file to write
+	 * @param annotationFile The annotation file the annotation set came from
+	 * @return The bitmap, or null if the annotation can't be represented
+	 * @throws IOException
+	 */
+	public static AnnotationBitmap build (AnnotationSet annotation, File cacheFile, File annotationFile) throws IOException {
+
+		ChromosomeFactory factory = annotation.chromosomeFactory();
+
+		if (factory.referenceCount() == 0) {
+			System.err.println("Can't build an annotation cache without a list of chromosomes from the BAM header");
+			return null;
+		}
+
+		String [] typeNames = annotation.listFeatureTypes();
+		Arrays.sort(typeNames);
+
+		// We need one bit per type, plus the transcript bit
+		if (typeNames.length+1 > 64) {
+			System.err.println("Too many feature types ("+typeNames.length+") to build an annotation cache");
+			return null;
+		}
+
+		int transcriptBit = typeNames.length;
+		int bytesPerBin = 1;
+		while (bytesPerBin*8 < typeNames.length+1) {
+			bytesPerBin *= 2;
+		}
+
+		// Everything has to be loaded before we can fill in the bins
+		annotation.loadReferenceChromosomes();
+
+		int [] binCounts = new int[factory.referenceCount()];
+		for (int c=0;c<binCounts.length;c++) {
+			int length = Math.max(factory.referenceLength(c), factory.getChromosome(c).length());
+			binCounts[c] = (length/BIN_SIZE)+1;
+		}
+
+		ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+		DataOutputStream header = new DataOutputStream(headerBytes);
+		header.writeInt(MAGIC);
+		header.writeInt(VERSION);
+		header.writeInt(BIN_SIZE);
+		header.writeUTF(annotationFile.getAbsolutePath());
+		header.writeLong(annotationFile.length());
+		header.writeLong(annotationFile.lastModified());
+		header.writeInt(typeNames.length);
+		for (int t=0;t<typeNames.length;t++) {
+			header.writeUTF(typeNames[t]);
+		}
+		header.writeInt(transcriptBit);
+		header.writeInt(bytesPerBin);
+		header.writeInt(binCounts.length);
+		for (int c=0;c<binCounts.length;c++) {
+			header.writeUTF(factory.getChromosome(c).name());
+			header.writeInt(factory.referenceLength(c));
+			header.writeInt(binCounts[c]);
+		}
+		header.flush();
+
+		// The header finishes with the offset of the data, which is the
+		// header length including this value.
+		long dataStart = headerBytes.size()+8;
+		header.writeLong(dataStart);
+		header.close();
+
+		File tempFile = File.createTempFile(cacheFile.getName(), ".tmp", cacheFile.getAbsoluteFile().getParentFile());
+		RandomAccessFile file = new RandomAccessFile(tempFile, "rw");
+
+		try {
+			long dataLength = 0;
+			for (int c=0;c<binCounts.length;c++) {
+				dataLength += ((long)binCounts[c])*bytesPerBin;
+			}
+			file.setLength(dataStart+dataLength);
+			file.write(headerBytes.toByteArray());
+
+			FileChannel channel = file.getChannel();
+			long offset = dataStart;
+
+			for (int c=0;c<binCounts.length;c++) {
+				long size = ((long)binCounts[c])*bytesPerBin;
+				MappedByteBuffer chromosomeBins = channel.map(FileChannel.MapMode.READ_WRITE, offset, size);
+				offset += size;
+
+				AnnotationBitmap filler = new AnnotationBitmap(typeNames, transcriptBit, bytesPerBin, new MappedByteBuffer [] {chromosomeBins}, new int [] {binCounts[c]});
+
+				for (int t=0;t<typeNames.length;t++) {
+					ChromosomeFeatures features = annotation.getFeatureClassForType(typeNames[t]).getFeatures(factory.getChromosome(c));
+					if (features == null) continue;
+
+					boolean transcripts = typeNames[t].equals(AnnotationSet.TRANSCRIPT_TYPE);
+
+					for (int i=0;i<features.size();i++) {
+						for (int b=0;b<features.blockCount(i);b++) {
+							filler.setBits(features.blockStart(i, b), features.blockEnd(i, b), 1L<<t);
+						}
+						if (transcripts) {
+							filler.setBits(features.start(i), features.end(i), 1L<<transcriptBit);
+						}
+					}
+				}
+
+				chromosomeBins.force();
+			}
+		}
+		finally {
+			file.close();
+		}
+
+		if (!tempFile.renameTo(cacheFile)) {
+			// Some platforms won't rename over an existing file
+			cacheFile.delete();
+			if (!tempFile.renameTo(cacheFile)) {
+				tempFile.delete();
+				throw new IOException("Couldn't move new annotation cache to "+cacheFile);
+			}
+		}
+
+		return open(cacheFile, annotationFile, factory);
+	}
+
+	private void setBits (int start, int end, long bits) {
+		int lastBin = Math.min(end/BIN_SIZE, binCounts[0]-1);
+		for (int bin=Math.max(start/BIN_SIZE, 0);bin<=lastBin;bin++) {
+			switch (bytesPerBin) {
+				case 1: bins[0].put(bin, (byte)(bins[0].get(bin) | bits)); break;
+				case 2: bins[0].putShort(bin*2, (short)(bins[0].getShort(bin*2) | bits)); break;
+				case 4: bins[0].putInt(bin*4, (int)(bins[0].getInt(bin*4) | bits)); break;
+				default: bins[0].putLong(bin*8, bins[0].getLong(bin*8) | bits); break;
+			}
+		}
+	}
+
+	/**
+	 * The names of the feature types, in the order of their bits.
+	 */
+	public String [] typeNames () {
+		return typeNames;
+	}
+
+	/**
+	 * The bit which says that a bin is somewhere within a transcript.
+	 */
+	public int transcriptBit () {
+		return transcriptBit;
+	}
+
+	/**
+	 * Gets the combined bits for all of the bins covering a region.
+	 *
+	 * @param referenceIndex The reference index of the chromosome
+	 * @param start The start of the region
+	 * @param end The end of the region
+	 * @return The bitmask of types covering any part of the region
+	 */
+	public long bits (int referenceIndex, int start, int end) {
+
+		if (referenceIndex < 0 || referenceIndex >= bins.length) return 0;
+
+		MappedByteBuffer chromosomeBins = bins[referenceIndex];
+		int lastBin = Math.min(end/BIN_SIZE, binCounts[referenceIndex]-1);
+
+		long bits = 0;
+		for (int bin=Math.max(start/BIN_SIZE, 0);bin<=lastBin;bin++) {
+			switch (bytesPerBin) {
+				case 1: bits |= chromosomeBins.get(bin) & 0xFFL; break;
+				case 2: bits |= chromosomeBins.getShort(bin*2) & 0xFFFFL; break;
+				case 4: bits |= chromosomeBins.getInt(bin*4) & 0xFFFFFFFFL; break;
+				default: bits |= chromosomeBins.getLong(bin*8); break;
+			}
+		}
+
+		return bits;
+	}
+
+}
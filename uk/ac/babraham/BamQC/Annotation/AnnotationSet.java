@@ -20,8 +20,15 @@
 
 package uk.ac.babraham.BamQC.Annotation;
 
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.Hashtable;
+import java.util.Vector;
 
+import net.sf.samtools.Cigar;
+import net.sf.samtools.CigarElement;
+import net.sf.samtools.CigarOperator;
 import net.sf.samtools.SAMRecord;
 
 public class AnnotationSet {
@@ -30,19 +37,98 @@ public class AnnotationSet {
 	
 	private Hashtable<String, FeatureClass> features = new Hashtable<String, FeatureClass>();
 	
+	// Each feature class gets a type id from the order it was created in,
+	// which is its position in this list.
+	private Vector<FeatureClass> featureList = new Vector<FeatureClass>();
 	private FeatureClass [] featureArray = null;
 	
+	// All of the feature classes on a chromosome are merged into a single
+	// index so each read only needs one search.
+	private Hashtable<Chromosome, FeatureIndex> indices = new Hashtable<Chromosome, FeatureIndex>();
+	private FeatureIndex lastIndex = null;
+	
+	// How many features of each type the current read hit, and the last
+	// of them, along with the list of types which were hit at all.
+	private int [] typeHitCounts = new int[0];
+	private int [] typeLastHits = new int[0];
+	private int [] hitTypes = new int[0];
+	
+	// How reads get assigned to features.  If we know the strandedness of
+	// the library then reads only count for features on the matching strand,
+	// and if we only want unique assignments then reads hitting more than
+	// one feature of a type aren't counted against any of them.
+	private int strandedness = Location.UNKNOWN;
+	private boolean uniqueFeaturesOnly = false;
+	
+	// The aligned blocks of the current read, split wherever it's spliced
+	private int [] readBlockStarts = new int[4];
+	private int [] readBlockEnds = new int[4];
+	private int readBlockCount = 0;
+	private boolean readSpliced = false;
+	
+	// The parser puts the exons of each transcript together as the blocks
+	// of an mRNA feature, so we use these to say which part of a transcript
+	// each read came from.
+	public static final String TRANSCRIPT_TYPE = "mRNA";
+	private int transcriptType = -1;
+	private long exonicReads = 0;
+	private long intronicReads = 0;
+	private long intergenicReads = 0;
+	private long spliceSpanningReads = 0;
+	
+	// When the reads are sorted we also build up the coverage along the
+	// exons of each transcript they overlap.
+	private TranscriptCoverage transcriptCoverage = new TranscriptCoverage();
+	
+	// If our annotation comes from an indexed file then we load the
+	// features for each chromosome the first time we see a read on it.
+	private GFF3AnnotationParser lazyParser = null;
+	private HashSet<Chromosome> loadedChromosomes = new HashSet<Chromosome>();
+	private Chromosome lastChromosome = null;
+	
+	// If the reads are sorted by position the feature classes can sweep
+	// along each chromosome with them rather than looking up every read.
+	private boolean coordinateSorted = false;
+	private int lastStart = 0;
+	
+	// If we've been given a precomputed bitmap of the genome we use that
+	// instead of the features to say what each read overlaps.  The bitmap
+	// has its own order of types so we keep the feature class for each bit.
+	private AnnotationBitmap bitmap = null;
+	private FeatureClass [] bitmapClasses = null;
+	
 	public ChromosomeFactory chromosomeFactory () {
 		return factory;
 	}
 	
 	public void addFeature (Feature f) {
-		
-		if (!features.containsKey(f.type())) {
-			features.put(f.type(), new FeatureClass(this));
+		featureClassFor(f.type()).addFeature(f);
+	}
+	
+	public void addFeature (String type, String name, Chromosome c, int start, int end, int strand) {
+		if (end > c.length()) c.setLength(end);
+		featureClassFor(type).addFeature(name, c, start, end, strand);
+	}
+	
+	/**
+	 * Adds a feature made up of several blocks, such as the exons of a transcript.
+	 */
+	public void addFeature (String type, String name, Chromosome c, int strand, int [] starts, int [] ends, int blockCount) {
+		for (int b=0;b<blockCount;b++) {
+			if (ends[b] > c.length()) c.setLength(ends[b]);
 		}
-		
-		features.get(f.type()).addFeature(f);
+		featureClassFor(type).addFeature(name, c, strand, starts, ends, blockCount);
+	}
+	
+	private FeatureClass featureClassFor (String type) {
+		FeatureClass featureClass = features.get(type);
+		if (featureClass == null) {
+			featureClass = new FeatureClass(this);
+			features.put(type, featureClass);
+			featureList.add(featureClass);
+			featureArray = null;
+		}
+		return featureClass;
 	}
 	
 	public boolean hasFeatures () {
@@ -57,20 +143,418 @@ public class AnnotationSet {
 		return features.get(type);
 	}
 	
+	protected void setLazyParser (GFF3AnnotationParser parser) {
+		lazyParser = parser;
+	}
+	
+	/**
+	 * Says whether the reads we're going to be sent are sorted by
+	 * position.  This would normally come from the BAM header.  If we
+	 * later see reads out of order we'll turn this off again.
+	 */
+	public void setCoordinateSorted (boolean coordinateSorted) {
+		this.coordinateSorted = coordinateSorted;
+	}
+	
+	public boolean isCoordinateSorted () {
+		return coordinateSorted;
+	}
+	
+	/**
+	 * Sets the strandedness of the library.  Location.UNKNOWN means reads
+	 * count for features on either strand, Location.FORWARD means the first
+	 * read of a pair is on the same strand as its feature and
+	 * Location.REVERSE means it's on the opposite strand.
+	 */
+	public void setStrandedness (int strandedness) {
+		this.strandedness = strandedness;
+	}
+	
+	/**
+	 * Sets whether reads which overlap more than one feature of the same
+	 * type are left out of the per-feature counts.
+	 */
+	public void setUniqueFeaturesOnly (boolean uniqueFeaturesOnly) {
+		this.uniqueFeaturesOnly = uniqueFeaturesOnly;
+	}
+	
+	/**
+	 * Sets a bitmap to use to classify reads instead of the features.
+	 * Reads are then only counted against feature types and transcript
+	 * regions, not individual features.
+	 */
+	public void setBitmap (AnnotationBitmap bitmap) {
+		this.bitmap = bitmap;
+		
+		String [] typeNames = bitmap.typeNames();
+		bitmapClasses = new FeatureClass[typeNames.length];
+		for (int t=0;t<typeNames.length;t++) {
+			bitmapClasses[t] = featureClassFor(typeNames[t]);
+		}
+		transcriptType = Arrays.asList(typeNames).indexOf(TRANSCRIPT_TYPE);
+	}
+	
+	/**
+	 * Whether reads are counted against individual features, which they
+	 * aren't if we're using a bitmap.
+	 */
+	public boolean countsFeatures () {
+		return bitmap == null;
+	}
+	
 	public void processSequence (SAMRecord r) {
 		
-		if (!r.getReferenceName().equals("*")) {
-			Chromosome c = factory.getChromosome(r.getReferenceName());
-			c.incrementSeqCount();
+		// Reads from a BAM file can be matched to their chromosome directly
+		// from the reference index, but if we weren't given the header we
+		// have to go through the name.
+		Chromosome c = null;
+		if (r.getHeader() != null) {
+			c = factory.getChromosome(r.getReferenceIndex());
+		}
+		if (c == null) {
+			if (r.getReferenceName().equals("*")) return;
+			c = factory.getChromosome(r.getReferenceName());
+		}
+		
+		c.incrementSeqCount();
+		
+		if (bitmap != null) {
+			processSequenceWithBitmap(r);
+			return;
 		}
+			
+		// Reads almost always come grouped by chromosome so we only
+		// need to check whether we've loaded this one when it changes.
+		if (c != lastChromosome) {
+			lastChromosome = c;
+			loadChromosome(c);
+			
+			lastIndex = indexFor(c);
+			if (lastIndex != null) lastIndex.resetSweep();
+			
+			if (coordinateSorted) {
+				transcriptCoverage.startChromosome(transcriptType >= 0 ? featureArray[transcriptType].getFeatures(c) : null);
+			}
+		}
+		else if (coordinateSorted && r.getAlignmentStart() < lastStart) {
+			System.err.println("Reads on "+c.name()+" aren't sorted by position, so falling back to indexed feature lookup");
+			coordinateSorted = false;
+			transcriptCoverage.abandon();
+		}
+		lastStart = r.getAlignmentStart();
+		
+		if (coordinateSorted) {
+			transcriptCoverage.passPosition(lastStart);
+		}
+		
+		if (lastIndex == null) {
+			++intergenicReads;
+			return;
+		}
+		
+		lastIndex.findOverlaps(r.getAlignmentStart(), r.getAlignmentEnd(), coordinateSorted);
+		
+		int hitCount = lastIndex.hitCount();
+		if (hitCount == 0) {
+			++intergenicReads;
+			return;
+		}
+		
+		findReadBlocks(r);
+		
+		if (typeHitCounts.length < featureArray.length) {
+			typeHitCounts = new int[featureArray.length];
+			typeLastHits = new int[featureArray.length];
+			hitTypes = new int[featureArray.length];
+		}
+		
+		int readStrand = Location.UNKNOWN;
+		if (strandedness != Location.UNKNOWN) {
+			readStrand = featureStrandForRead(r);
+		}
+		
+		int hitTypeCount = 0;
+		boolean inTranscript = false;
+		boolean inExon = false;
+		
+		for (int h=0;h<hitCount;h++) {
+			int entry = lastIndex.hit(h);
+			
+			if (readStrand != Location.UNKNOWN) {
+				int featureStrand = lastIndex.strand(entry);
+				if (featureStrand != Location.UNKNOWN && featureStrand != readStrand) continue;
+			}
+			
+			int type = lastIndex.type(entry);
+			
+			if (type == transcriptType) inTranscript = true;
+			
+			// The read and feature overlap as a whole, but a spliced read
+			// can still jump over a feature, or sit in one of its introns.
+			if (!lastIndex.overlapsBlocks(entry, readBlockStarts, readBlockEnds, readBlockCount)) continue;
+			
+			if (type == transcriptType) {
+				inExon = true;
+				if (coordinateSorted) {
+					transcriptCoverage.addRead(lastIndex.feature(entry), readBlockStarts, readBlockEnds, readBlockCount);
+				}
+			}
+			
+			if (typeHitCounts[type] == 0) {
+				hitTypes[hitTypeCount++] = type;
+			}
+			++typeHitCounts[type];
+			typeLastHits[type] = entry;
+			
+			if (!uniqueFeaturesOnly) {
+				lastIndex.countRead(entry);
+			}
+		}
+		
+		for (int t=0;t<hitTypeCount;t++) {
+			int type = hitTypes[t];
+			
+			featureArray[type].incrementCount();
+			
+			if (uniqueFeaturesOnly) {
+				if (typeHitCounts[type] == 1) {
+					lastIndex.countRead(typeLastHits[type]);
+				}
+				else {
+					featureArray[type].incrementAmbiguousCount();
+				}
+			}
+			
+			typeHitCounts[type] = 0;
+		}
+		
+		if (inExon) {
+			if (readSpliced) {
+				++spliceSpanningReads;
+			}
+			else {
+				++exonicReads;
+			}
+		}
+		else if (inTranscript) {
+			++intronicReads;
+		}
+		else {
+			++intergenicReads;
+		}
+	}
+	
+	/**
+	 * Classifies a read from the bitmap.  Each block of the read picks up
+	 * the types covering it, and the transcript bit says whether a read
+	 * which missed the exons is still within a transcript.
+	 */
+	private void processSequenceWithBitmap (SAMRecord r) {
+		
+		int referenceIndex = r.getHeader() != null ? r.getReferenceIndex() : -1;
+		if (referenceIndex < 0) {
+			++intergenicReads;
+			return;
+		}
+		
+		findReadBlocks(r);
+		
+		long bits = 0;
+		for (int b=0;b<readBlockCount;b++) {
+			bits |= bitmap.bits(referenceIndex, readBlockStarts[b], readBlockEnds[b]);
+		}
+		
+		long envelope = bits >>> bitmap.transcriptBit();
+		if (readSpliced && envelope == 0) {
+			envelope = bitmap.bits(referenceIndex, r.getAlignmentStart(), r.getAlignmentEnd()) >>> bitmap.transcriptBit();
+		}
+		
+		for (int t=0;t<bitmapClasses.length;t++) {
+			if ((bits & (1L<<t)) != 0) bitmapClasses[t].incrementCount();
+		}
+		
+		if (transcriptType >= 0 && (bits & (1L<<transcriptType)) != 0) {
+			if (readSpliced) {
+				++spliceSpanningReads;
+			}
+			else {
+				++exonicReads;
+			}
+		}
+		else if (envelope != 0) {
+			++intronicReads;
+		}
+		else {
+			++intergenicReads;
+		}
+	}
+	
+	/**
+	 * Loads the features for a chromosome if they're being read lazily
+	 * from an indexed file and we haven't loaded them yet.
+	 */
+	private void loadChromosome (Chromosome c) {
+		if (lazyParser != null && loadedChromosomes.add(c)) {
+			try {
+				lazyParser.parseChromosome(this, c);
+			}
+			catch (IOException ioe) {
+				System.err.println("Failed to load annotation for "+c.name());
+				ioe.printStackTrace();
+			}
+		}
+	}
+	
+	/**
+	 * Makes sure the features for every chromosome in the BAM header are
+	 * loaded, which we need before we can build a bitmap.
+	 */
+	void loadReferenceChromosomes () {
+		for (int i=0;i<factory.referenceCount();i++) {
+			loadChromosome(factory.getChromosome(i));
+		}
+	}
+	
+	/**
+	 * Breaks the alignment of a read up into the blocks between the
+	 * places where it's spliced.  Deletions are kept within a block since
+	 * they're still part of the same stretch of the genome.
+	 */
+	private void findReadBlocks (SAMRecord r) {
+		
+		Cigar cigar = r.getCigar();
+		
+		readBlockCount = 0;
+		readSpliced = false;
+		
+		int position = r.getAlignmentStart();
+		int blockStart = position;
+		
+		// Most reads are a single match, which we don't need to look into
+		if (cigar.numCigarElements() == 1) {
+			addReadBlock(position, r.getAlignmentEnd());
+			return;
+		}
+		
+		for (int i=0;i<cigar.numCigarElements();i++) {
+			CigarElement element = cigar.getCigarElement(i);
+			CigarOperator operator = element.getOperator();
+			
+			if (operator == CigarOperator.N) {
+				addReadBlock(blockStart, position-1);
+				position += element.getLength();
+				blockStart = position;
+				readSpliced = true;
+			}
+			else if (operator.consumesReferenceBases()) {
+				position += element.getLength();
+			}
+		}
+		
+		addReadBlock(blockStart, position-1);
+	}
+	
+	private void addReadBlock (int start, int end) {
+		if (end < start) return;
+		
+		if (readBlockCount == readBlockStarts.length) {
+			readBlockStarts = Arrays.copyOf(readBlockStarts, readBlockCount*2);
+			readBlockEnds = Arrays.copyOf(readBlockEnds, readBlockCount*2);
+		}
+		
+		readBlockStarts[readBlockCount] = start;
+		readBlockEnds[readBlockCount] = end;
+		++readBlockCount;
+	}
+	
+	/**
+	 * Whether we have any transcripts to say which parts of the genome
+	 * reads came from.
+	 */
+	public boolean hasTranscripts () {
+		return features.containsKey(TRANSCRIPT_TYPE);
+	}
+	
+	/**
+	 * The number of unspliced reads lying within the exons of a transcript.
+	 */
+	public long exonicReadCount () {
+		return exonicReads;
+	}
+	
+	/**
+	 * The number of reads within a transcript which don't touch any of its exons.
+	 */
+	public long intronicReadCount () {
+		return intronicReads;
+	}
+	
+	/**
+	 * The number of mapped reads which aren't within any transcript.
+	 */
+	public long intergenicReadCount () {
+		return intergenicReads;
+	}
+	
+	/**
+	 * The number of spliced reads which lie within the exons of a transcript.
+	 */
+	public long spliceSpanningReadCount () {
+		return spliceSpanningReads;
+	}
+	
+	/**
+	 * The coverage along the bodies of the transcripts, which is only
+	 * measured if the reads are sorted by position.  This finishes off the
+	 * transcripts the reads were still in, so should only be asked for
+	 * once all of the reads have been seen.
+	 */
+	public TranscriptCoverage transcriptCoverage () {
+		transcriptCoverage.finish();
+		return transcriptCoverage;
+	}
+	
+	/**
+	 * Works out which strand the feature a read came from should be on,
+	 * given the strandedness of the library.
+	 */
+	private int featureStrandForRead (SAMRecord r) {
+		boolean reverse = r.getReadNegativeStrandFlag();
+		
+		// The second read of a pair comes from the opposite strand
+		if (r.getReadPairedFlag() && r.getSecondOfPairFlag()) reverse = !reverse;
+		
+		if (strandedness == Location.REVERSE) reverse = !reverse;
+		
+		if (reverse) return Location.REVERSE;
+		return Location.FORWARD;
+	}
+
+	/**
+	 * Gets the combined index of all feature classes on a chromosome,
+	 * building it the first time it's asked for.
+	 *
+	 * @param c The chromosome
+	 * @return The index, or null if there are no features on this chromosome
+	 */
+	private FeatureIndex indexFor (Chromosome c) {
 		
 		if (featureArray == null) {
-			featureArray = features.values().toArray(new FeatureClass[0]);
+			featureArray = featureList.toArray(new FeatureClass[0]);
+			transcriptType = featureList.indexOf(features.get(TRANSCRIPT_TYPE));
 		}
 		
-		for (int i=0;i<featureArray.length;i++) {
-			featureArray[i].processSequence(r);
+		if (!indices.containsKey(c)) {
+			ChromosomeFeatures [] chrFeatures = new ChromosomeFeatures[featureArray.length];
+			for (int t=0;t<featureArray.length;t++) {
+				chrFeatures[t] = featureArray[t].getFeatures(c);
+			}
+			indices.put(c, new FeatureIndex(chrFeatures, c.length()));
 		}
+		
+		FeatureIndex index = indices.get(c);
+		if (index.size() == 0) return null;
+		return index;
 	}
 	
 	
@@ -19,25 +19,171 @@
  */
 package uk.ac.babraham.BamQC.Annotation;
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
 import java.util.Hashtable;
+import java.util.List;
+import java.util.Vector;
+
+import net.sf.samtools.SAMSequenceDictionary;
+import net.sf.samtools.SAMSequenceRecord;
 
 public class ChromosomeFactory {
 
+	// Chromosomes by every name we know them under, including aliases
 	Hashtable<String,Chromosome> chromosomes = new Hashtable<String, Chromosome>();
 	
-	public Chromosome getChromosome (String name) {
+	private Vector<Chromosome> allChromosomes = new Vector<Chromosome>();
+	
+	// The chromosomes in the BAM header, indexed by their reference index
+	// so reads can be matched to them without having to hash their names.
+	private Chromosome [] referenceChromosomes = new Chromosome[0];
+	private int [] referenceLengths = new int[0];
+	private Hashtable<String,Chromosome> referenceNames = new Hashtable<String, Chromosome>();
+	
+	// Alternative names for chromosomes which we've been told about
+	private Hashtable<String,String> aliases = new Hashtable<String, String>();
+	
+	/**
+	 * Sets up the chromosomes listed in a BAM header.  This should be
+	 * done before any annotation is loaded so that the names used in
+	 * the annotation can be matched up to the ones in the header.
+	 * 
+	 * @param dictionary The sequence dictionary from the BAM header
+	 */
+	public synchronized void setSequenceDictionary (SAMSequenceDictionary dictionary) {
+		
+		List<SAMSequenceRecord> sequences = dictionary.getSequences();
+		
+		Chromosome [] newReferences = new Chromosome[sequences.size()];
+		int [] newLengths = new int[sequences.size()];
+		
+		for (int i=0;i<newReferences.length;i++) {
+			SAMSequenceRecord sequence = sequences.get(i);
+			Chromosome chr = getChromosome(sequence.getSequenceName());
+			chr.setLength(sequence.getSequenceLength());
+			newReferences[sequence.getSequenceIndex()] = chr;
+			newLengths[sequence.getSequenceIndex()] = sequence.getSequenceLength();
+			referenceNames.put(sequence.getSequenceName(), chr);
+		}
+		
+		referenceChromosomes = newReferences;
+		referenceLengths = newLengths;
+	}
+	
+	/**
+	 * The number of chromosomes in the BAM header.
+	 */
+	public int referenceCount () {
+		return referenceChromosomes.length;
+	}
+	
+	/**
+	 * The length of a chromosome as given in the BAM header.  This can be
+	 * shorter than the length of the Chromosome if there is annotation
+	 * beyond the end of it.
+	 */
+	public int referenceLength (int referenceIndex) {
+		return referenceLengths[referenceIndex];
+	}
+	
+	/**
+	 * Adds an alternative name for a chromosome, so that annotation using
+	 * one naming scheme can be matched against a BAM file using another.
+	 * 
+	 * @param alias The alternative name
+	 * @param name The name used in the BAM file
+	 */
+	public synchronized void addAlias (String alias, String name) {
+		aliases.put(alias, name);
+	}
+	
+	/**
+	 * Reads chromosome aliases from a file.  Each line starts with the
+	 * name used in the BAM file followed by one or more alternative
+	 * names, all separated by tabs.  Lines starting with # are ignored.
+	 * 
+	 * @param file The alias file
+	 * @throws IOException
+	 */
+	public void loadAliases (File file) throws IOException {
+		BufferedReader br = new BufferedReader(new FileReader(file));
+		
+		try {
+			String line;
+			while ((line = br.readLine()) != null) {
+				if (line.startsWith("#") || line.trim().length() == 0) continue;
+				
+				String [] sections = line.trim().split("\\t");
+				for (int i=1;i<sections.length;i++) {
+					addAlias(sections[i].trim(), sections[0].trim());
+				}
+			}
+		}
+		finally {
+			br.close();
+		}
+	}
+	
+	/**
+	 * Gets the chromosome for a reference index from the BAM header.
+	 * 
+	 * @param referenceIndex The reference index of a read
+	 * @return The chromosome, or null if the index isn't one from the header
+	 */
+	public Chromosome getChromosome (int referenceIndex) {
+		if (referenceIndex < 0 || referenceIndex >= referenceChromosomes.length) {
+			return null;
+		}
+		return referenceChromosomes[referenceIndex];
+	}
+	
+	public synchronized Chromosome getChromosome (String name) {
 		
 		if (name.equals("*")) {
 			return null;
 		}
-		if (!chromosomes.containsKey(name)) {
-			chromosomes.put(name,new Chromosome(name));
+		
+		Chromosome chr = chromosomes.get(name);
+		
+		if (chr == null) {
+			chr = findAlias(name);
+			if (chr == null) {
+				chr = new Chromosome(name);
+				allChromosomes.add(chr);
+			}
+			chromosomes.put(name,chr);
+		}
+		return chr;
+	}
+	
+	private Chromosome findAlias (String name) {
+		
+		String alias = aliases.get(name);
+		if (alias != null && chromosomes.containsKey(alias)) {
+			return chromosomes.get(alias);
 		}
-		return chromosomes.get(name);
+		
+		// The most common mismatch is between UCSC and Ensembl style names
+		// so we try adding or removing a chr prefix, but only to match
+		// something which was in the BAM header.
+		Chromosome chr;
+		if (name.startsWith("chr")) {
+			chr = referenceNames.get(name.substring(3));
+			if (chr == null && name.equals("chrM")) chr = referenceNames.get("MT");
+		}
+		else {
+			chr = referenceNames.get("chr"+name);
+			if (chr == null && name.equals("MT")) chr = referenceNames.get("chrM");
+		}
+		
+		return chr;
 	}
 	
 	public Chromosome [] getAllChromosomes () {
-		return chromosomes.values().toArray(new Chromosome[0]);
+		return allChromosomes.toArray(new Chromosome[0]);
 	}
 	
 	
@@ -0,0 +1,314 @@
+/**
+ * Copyright Copyright 2014 Simon Andrews
+ *
+ *    This file is part of BamQC.
+ *
+ *    BamQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    BamQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with BamQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.babraham.BamQC.Annotation;
+
+import java.util.Arrays;
+
+/**
+ * ChromosomeFeatures holds all of the features of one type on one
+ * chromosome.  Rather than keeping a Feature and Location object for
+ * each one we store them as parallel primitive arrays, which cuts the
+ * memory needed for large annotation sets by several fold.
+ *
+ * Features made up of several blocks (exons) keep their blocks in a
+ * second pair of arrays, with blockOffsets saying where the blocks for
+ * each feature start.  Features with only a single block don't store
+ * any blocks at all, since their block is the same as their outer
+ * start and end.
+ *
+ * Features are added in any order, and finish() must be called before
+ * any of them are read back, at which point they're sorted by start
+ * position and a binned index is built.  At that point we also make a
+ * read count for each feature which the AnnotationSet fills in.
+ */
+public class ChromosomeFeatures {
+
+	// The size of the bins used to find the first feature which could
+	// overlap a given position
+	public static final int SEQUENCE_CHUNK_LENGTH = 100000;
+
+	private int size = 0;
+
+	int [] starts = new int[16];
+	int [] ends = new int[16];
+	byte [] strands = new byte[16];
+	String [] names = new String[16];
+
+	// The blocks for feature i are blockOffsets[i] to blockOffsets[i+1]-1
+	int [] blockOffsets = new int[17];
+	int [] blockStarts = new int[0];
+	int [] blockEnds = new int[0];
+
+	// The index of the first feature which could overlap a position in each bin
+	int [] binIndices = null;
+
+	// The number of reads assigned to each feature
+	int [] readCounts = null;
+
+	/**
+	 * Adds a feature made up of a single block.
+	 *
+	 * @param name The name of the feature, which can be null
+	 * @param start The start position
+	 * @param end The end position
+	 * @param strand The strand of the feature
+	 */
+	public void addFeature (String name, int start, int end, int strand) {
+		addFeature(name, start, end, strand, null, null, 0);
+	}
+
+	/**
+	 * Adds a feature made up of several blocks.  The blocks don't need
+	 * to be sorted.
+	 *
+	 * @param name The name of the feature, which can be null
+	 * @param strand The strand of the feature
+	 * @param subStarts The start positions of the blocks
+	 * @param subEnds The end positions of the blocks
+	 * @param count The number of blocks to take from the arrays
+	 */
+	public void addFeature (String name, int strand, int [] subStarts, int [] subEnds, int count) {
+		if (count == 1) {
+			addFeature(name, subStarts[0], subEnds[0], strand, null, null, 0);
+			return;
+		}
+
+		int start = Integer.MAX_VALUE;
+		int end = 0;
+		for (int b=0;b<count;b++) {
+			if (subStarts[b] < start) start = subStarts[b];
+			if (subEnds[b] > end) end = subEnds[b];
+		}
+
+		addFeature(name, start, end, strand, subStarts, subEnds, count);
+	}
+
+	private void addFeature (String name, int start, int end, int strand, int [] subStarts, int [] subEnds, int count) {
+		if (binIndices != null) throw new IllegalStateException("Can't add more features after sending data");
+
+		if (size == starts.length) {
+			int newSize = size*2;
+			starts = Arrays.copyOf(starts, newSize);
+			ends = Arrays.copyOf(ends, newSize);
+			strands = Arrays.copyOf(strands, newSize);
+			names = Arrays.copyOf(names, newSize);
+			blockOffsets = Arrays.copyOf(blockOffsets, newSize+1);
+		}
+
+		starts[size] = start;
+		ends[size] = end;
+		strands[size] = (byte)strand;
+		names[size] = name;
+
+		int blockStart = blockOffsets[size];
+
+		if (count > 0) {
+			if (blockStart+count > blockStarts.length) {
+				int newSize = Math.max(blockStarts.length*2, blockStart+count);
+				blockStarts = Arrays.copyOf(blockStarts, newSize);
+				blockEnds = Arrays.copyOf(blockEnds, newSize);
+			}
+
+			System.arraycopy(subStarts, 0, blockStarts, blockStart, count);
+			System.arraycopy(subEnds, 0, blockEnds, blockStart, count);
+			sortBlocks(blockStart, blockStart+count);
+		}
+
+		blockOffsets[size+1] = blockStart+count;
+		++size;
+	}
+
+	/**
+	 * A simple insertion sort of the blocks for one feature by start
+	 * position.  Features rarely have more than a few tens of blocks and
+	 * they usually arrive in order anyway.
+	 */
+	private void sortBlocks (int from, int to) {
+		for (int i=from+1;i<to;i++) {
+			int s = blockStarts[i];
+			int e = blockEnds[i];
+			int j = i-1;
+			while (j >= from && (blockStarts[j] > s || (blockStarts[j] == s && blockEnds[j] > e))) {
+				blockStarts[j+1] = blockStarts[j];
+				blockEnds[j+1] = blockEnds[j];
+				--j;
+			}
+			blockStarts[j+1] = s;
+			blockEnds[j+1] = e;
+		}
+	}
+
+	public boolean isFinished () {
+		return binIndices != null;
+	}
+
+	/**
+	 * Sorts the features by start position and builds the index used to
+	 * find where to start looking for overlaps.  No more features can be
+	 * added after this.
+	 *
+	 * @param chromosomeLength The length of the chromosome these features are on
+	 */
+	public void finish (int chromosomeLength) {
+
+		// Sort on start position, breaking ties on the order in which the
+		// features were added so that the result doesn't change from run to run.
+		long [] order = new long[size];
+		for (int i=0;i<size;i++) {
+			order[i] = (((long)starts[i])<<32) | i;
+		}
+		Arrays.sort(order);
+
+		int [] sortedStarts = new int[size];
+		int [] sortedEnds = new int[size];
+		byte [] sortedStrands = new byte[size];
+		String [] sortedNames = new String[size];
+		int [] sortedOffsets = new int[size+1];
+		int [] sortedBlockStarts = new int[blockOffsets[size]];
+		int [] sortedBlockEnds = new int[blockOffsets[size]];
+
+		for (int i=0;i<size;i++) {
+			int from = (int)order[i];
+			sortedStarts[i] = starts[from];
+			sortedEnds[i] = ends[from];
+			sortedStrands[i] = strands[from];
+			sortedNames[i] = names[from];
+
+			int blockCount = blockOffsets[from+1]-blockOffsets[from];
+			System.arraycopy(blockStarts, blockOffsets[from], sortedBlockStarts, sortedOffsets[i], blockCount);
+			System.arraycopy(blockEnds, blockOffsets[from], sortedBlockEnds, sortedOffsets[i], blockCount);
+			sortedOffsets[i+1] = sortedOffsets[i]+blockCount;
+		}
+
+		starts = sortedStarts;
+		ends = sortedEnds;
+		strands = sortedStrands;
+		names = sortedNames;
+		blockOffsets = sortedOffsets;
+		blockStarts = sortedBlockStarts;
+		blockEnds = sortedBlockEnds;
+
+		binIndices = buildBins(starts, ends, size, chromosomeLength);
+		readCounts = new int[size];
+	}
+
+	/**
+	 * Builds an index saying, for each bin of the chromosome, the first
+	 * feature which could reach into it.
+	 *
+	 * @param starts Feature starts, sorted
+	 * @param ends Feature ends, in the same order as the starts
+	 * @param size The number of features
+	 * @param chromosomeLength The length of the chromosome
+	 * @return The index of the first feature to check for each bin
+	 */
+	static int [] buildBins (int [] starts, int [] ends, int size, int chromosomeLength) {
+
+		// Since features are sorted by start but not by end we need to
+		// track the furthest end we've seen so far, otherwise long
+		// features which start in an earlier bin would be missed.
+		int length = chromosomeLength;
+		for (int i=0;i<size;i++) {
+			if (ends[i] > length) length = ends[i];
+		}
+
+		int [] bins = new int[(length/SEQUENCE_CHUNK_LENGTH)+2];
+
+		int feature = 0;
+		int furthestEnd = size > 0 ? ends[0] : 0;
+		for (int b=0;b<bins.length;b++) {
+			int binStart = b*SEQUENCE_CHUNK_LENGTH;
+			while (feature < size && furthestEnd < binStart) {
+				++feature;
+				if (feature < size && ends[feature] > furthestEnd) furthestEnd = ends[feature];
+			}
+			bins[b] = feature;
+		}
+
+		return bins;
+	}
+
+	public int size () {
+		return size;
+	}
+
+	public int start (int index) {
+		return starts[index];
+	}
+
+	public int end (int index) {
+		return ends[index];
+	}
+
+	/**
+	 * The strand of a feature.  One of Location.FORWARD, Location.REVERSE
+	 * or Location.UNKNOWN.
+	 */
+	public int strand (int index) {
+		return strands[index];
+	}
+
+	/**
+	 * The name of a feature, or null if it didn't have one.
+	 */
+	public String name (int index) {
+		return names[index];
+	}
+
+	/**
+	 * The number of reads which were assigned to a feature.
+	 */
+	public int readCount (int index) {
+		return readCounts[index];
+	}
+
+	/**
+	 * The number of separate blocks making up a feature.  Features with
+	 * no blocks stored are a single block running from start to end.
+	 */
+	public int blockCount (int index) {
+		int count = blockOffsets[index+1]-blockOffsets[index];
+		return count == 0 ? 1 : count;
+	}
+
+	public int blockStart (int index, int block) {
+		if (blockOffsets[index+1] == blockOffsets[index]) return starts[index];
+		return blockStarts[blockOffsets[index]+block];
+	}
+
+	public int blockEnd (int index, int block) {
+		if (blockOffsets[index+1] == blockOffsets[index]) return ends[index];
+		return blockEnds[blockOffsets[index]+block];
+	}
+
+	/**
+	 * Finds the first feature which could overlap a region starting at
+	 * the given position.
+	 *
+	 * @param position The start of the region
+	 * @return The index of the first feature to check, which will be size() if there are none
+	 */
+	public int firstIndexFor (int position) {
+		int bin = position/SEQUENCE_CHUNK_LENGTH;
+		if (bin >= binIndices.length) return size;
+		return binIndices[bin];
+	}
+
+}
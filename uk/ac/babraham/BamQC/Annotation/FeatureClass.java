@@ -19,132 +19,110 @@
  */
 package uk.ac.babraham.BamQC.Annotation;
 
-import java.util.Arrays;
 import java.util.Hashtable;
-import java.util.Vector;
-
-import net.sf.samtools.SAMRecord;
 
 public class FeatureClass {
 
-	// The feature objects we store will be split up by chromosome.  They will be further
-	// split into sequence level chunks so that we can avoid having to do lengthy linear
-	// searches even when we're having random positions thrown at us.
-	
-	// TODO: Implement splitting
-	private static final int SEQUENCE_CHUNK_LENGTH = 100000;
+	// The features we store are split up by chromosome.  Within each chromosome
+	// they're kept as primitive arrays sorted by start position.  Reads aren't
+	// matched against each class separately; the AnnotationSet merges all of the
+	// classes into a single FeatureIndex per chromosome and tells us when we've
+	// been hit.
+	//
+	// Each chromosome is sorted the first time a read lands on it.
+	// After that we can't add any more features to that chromosome, but others
+	// can still be added to, which lets us load annotation one chromosome at a
+	// time.
 
 	private AnnotationSet annotationSet;
 
-	private Hashtable<Chromosome, Vector<Feature>> featuresRaw = new Hashtable<Chromosome, Vector<Feature>>();
-	
-	private Hashtable<Chromosome, Feature[]> features = null;
-	private Hashtable<Chromosome, int[]> indices = null;
+	private Hashtable<Chromosome, ChromosomeFeatures> features = new Hashtable<Chromosome, ChromosomeFeatures>();
 	
 	// These are the collated values being stored
 	private int count = 0;
+	private int ambiguousCount = 0;
 	
 	public FeatureClass (AnnotationSet a) {
 		annotationSet = a;
 	}
 	
 	public void addFeature (Feature f) {
-		if (features != null) throw new IllegalStateException("Can't add more features after sending data");
-		if (!featuresRaw.containsKey(f.chr())) {
-			featuresRaw.put(f.chr(), new Vector<Feature>());
+		Location l = f.location();
+		if (l instanceof SplitLocation) {
+			Location [] subLocations = ((SplitLocation)l).subLocations();
+			int [] starts = new int[subLocations.length];
+			int [] ends = new int[subLocations.length];
+			for (int i=0;i<subLocations.length;i++) {
+				starts[i] = subLocations[i].start();
+				ends[i] = subLocations[i].end();
+			}
+			addFeature(null, f.chr(), l.strand(), starts, ends, subLocations.length);
+		}
+		else {
+			addFeature(null, f.chr(), l.start(), l.end(), l.strand());
 		}
-		
-		featuresRaw.get(f.chr()).add(f);
 	}
 	
-	public void processSequence (SAMRecord r) {
-		
-		if (features == null) {
-			processFeatures();
-		}
-		
-		Chromosome chr = annotationSet.chromosomeFactory().getChromosome(r.getReferenceName());
-		
-		if (chr == null) return;
-		
-		if (!features.containsKey(chr)) {
-			return;
+	public void addFeature (String name, Chromosome c, int start, int end, int strand) {
+		featuresFor(c).addFeature(name, start, end, strand);
+	}
+	
+	public void addFeature (String name, Chromosome c, int strand, int [] starts, int [] ends, int blockCount) {
+		featuresFor(c).addFeature(name, strand, starts, ends, blockCount);
+	}
+	
+	public Chromosome [] listChromosomes () {
+		return features.keySet().toArray(new Chromosome[0]);
+	}
+	
+	private ChromosomeFeatures featuresFor (Chromosome c) {
+		ChromosomeFeatures chrFeatures = features.get(c);
+		if (chrFeatures == null) {
+			chrFeatures = new ChromosomeFeatures();
+			features.put(c, chrFeatures);
 		}
-
-		
-		int start = r.getAlignmentStart();
-		int end = r.getAlignmentEnd();
-		
-		int binStart = start/SEQUENCE_CHUNK_LENGTH;
-
-		Feature [] thisChrFeatures = features.get(chr);
-		
-		if (binStart >= indices.get(chr).length) {
-			System.err.println("Tried to get bin "+binStart+" from position "+start+" for feature on "+chr.name()+" but found only "+indices.get(chr).length+" bins from a length of "+chr.length());
-			return;
+		else if (chrFeatures.isFinished()) {
+			throw new IllegalStateException("Can't add more features to "+c.name()+" after sending data");
 		}
-		
-		boolean foundHit = false;
-		for (int i=indices.get(chr)[binStart];i<thisChrFeatures.length;i++) {
-
-			// Check to see if we've gone past where this sequence could
-			// possibly hit.
-			if (thisChrFeatures[i].location().start() > end) break;
-
-			if (thisChrFeatures[i].location().start() < end && thisChrFeatures[i].location().end() > start) {
-				if (!foundHit) {
-					++count;
-					foundHit = true;
-				}
-			}			
+		return chrFeatures;
+	}
+	
+	/**
+	 * Gets the features of this type on a chromosome, sorting and indexing
+	 * them if this hasn't already been done.
+	 *
+	 * @param c The chromosome
+	 * @return The features, or null if there aren't any on this chromosome
+	 */
+	public ChromosomeFeatures getFeatures (Chromosome c) {
+		ChromosomeFeatures chrFeatures = features.get(c);
+		if (chrFeatures != null && !chrFeatures.isFinished()) {
+			chrFeatures.finish(c.length());
 		}
-		
+		return chrFeatures;
+	}
+	
+	/**
+	 * Records that a read overlapped at least one feature of this type.
+	 */
+	void incrementCount () {
+		++count;
+	}
+	
+	/**
+	 * Records that a read overlapped more than one feature of this type
+	 * so couldn't be assigned to any of them.
+	 */
+	void incrementAmbiguousCount () {
+		++ambiguousCount;
 	}
 	
 	public int count () {
 		return count;
 	}
 	
-	private void processFeatures () {
-		
-		features = new Hashtable<Chromosome, Feature[]>();
-		indices = new Hashtable<Chromosome, int[]>();
-		
-		Chromosome [] chromosomes = featuresRaw.keySet().toArray(new Chromosome[0]);
-		
-		for (int c=0;c<chromosomes.length;c++) {
-
-			Feature [] featuresForThisChromosome = featuresRaw.get(chromosomes[c]).toArray(new Feature[0]);
-			
-			Arrays.sort(featuresForThisChromosome);
-			
-			features.put(chromosomes[c],featuresForThisChromosome);
-					
-			int numberOfBinsNeeded = (chromosomes[c].length()/SEQUENCE_CHUNK_LENGTH)+1;
-			if (!(chromosomes[c].length() % SEQUENCE_CHUNK_LENGTH == 0)) ++numberOfBinsNeeded;
-			
-			int [] indicesForThisChromsome = new int[numberOfBinsNeeded];
-			indicesForThisChromsome[0] = 0;
-			indices.put(chromosomes[c],indicesForThisChromsome);
-			
-			int lastBin = 0;
-			
-			for (int f=0;f<featuresForThisChromosome.length;f++) {
-				int startBin = featuresForThisChromosome[f].location().start()/SEQUENCE_CHUNK_LENGTH;
-
-				if (startBin > lastBin) {
-					for (int i=lastBin+1;i<=startBin;i++) {
-						indicesForThisChromsome[i] = f;
-					}
-					lastBin = startBin;
-				}
-			}
-						
-		}
-		
-		featuresRaw = null;
-		
+	public int ambiguousCount () {
+		return ambiguousCount;
 	}
 	
-	
 }
@@ -0,0 +1,306 @@
+/**
+ * Copyright Copyright 2014 Simon Andrews
+ *
+ *    This file is part of BamQC.
+ *
+ *    BamQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    BamQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with BamQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.babraham.BamQC.Annotation;
+
+import java.util.Arrays;
+
+/**
+ * FeatureIndex merges the features of every type on one chromosome into
+ * a single sorted index, with each entry remembering which type it came
+ * from.  This means we can find all of the types a read overlaps with
+ * one search rather than repeating the search for every FeatureClass.
+ *
+ * A search leaves the overlapping entries in a hit list, from which the
+ * type, strand and feature of each can be read and the feature's read
+ * count updated.
+ */
+public class FeatureIndex {
+
+	private int size;
+	private int [] starts;
+	private int [] ends;
+	private int [] types;
+	private byte [] strands;
+	private int [] binIndices;
+
+	// Where each entry came from, so we can update its read count
+	private ChromosomeFeatures [] sources;
+	private int [] featureIndices;
+
+	// The entries found by the last search
+	private int [] hits = new int[16];
+	private int hitCount = 0;
+
+	// When reads arrive sorted by position we walk along the features with
+	// them rather than looking every read up in the index.  The cursor is the
+	// next feature whose start we haven't reached, and the active window holds
+	// the features we've passed the start of which could still be hit.
+	private int cursor = 0;
+	private int [] active = new int[16];
+	private int activeSize = 0;
+
+	/**
+	 * Builds an index from the features of each type on a chromosome.
+	 *
+	 * @param features The features for each type id, which can be null if a type has none here
+	 * @param chromosomeLength The length of the chromosome
+	 */
+	public FeatureIndex (ChromosomeFeatures [] features, int chromosomeLength) {
+
+		sources = features;
+
+		size = 0;
+		for (int t=0;t<features.length;t++) {
+			if (features[t] != null) size += features[t].size();
+		}
+
+		// The features of each type are already sorted, so we just need
+		// to interleave them.  As before we sort on the start position and
+		// then on where each entry came from.
+		long [] order = new long[size];
+		int [] unsortedEnds = new int[size];
+		int [] unsortedTypes = new int[size];
+		int [] unsortedFeatures = new int[size];
+
+		int index = 0;
+		for (int t=0;t<features.length;t++) {
+			if (features[t] == null) continue;
+			for (int i=0;i<features[t].size();i++) {
+				order[index] = (((long)features[t].start(i))<<32) | index;
+				unsortedEnds[index] = features[t].end(i);
+				unsortedTypes[index] = t;
+				unsortedFeatures[index] = i;
+				++index;
+			}
+		}
+		Arrays.sort(order);
+
+		starts = new int[size];
+		ends = new int[size];
+		types = new int[size];
+		strands = new byte[size];
+		featureIndices = new int[size];
+
+		for (int i=0;i<size;i++) {
+			int from = (int)order[i];
+			starts[i] = (int)(order[i]>>>32);
+			ends[i] = unsortedEnds[from];
+			types[i] = unsortedTypes[from];
+			featureIndices[i] = unsortedFeatures[from];
+			strands[i] = (byte)features[types[i]].strand(featureIndices[i]);
+		}
+
+		binIndices = ChromosomeFeatures.buildBins(starts, ends, size, chromosomeLength);
+	}
+
+	public int size () {
+		return size;
+	}
+
+	/**
+	 * Forgets where the last sorted search got to, so the next one starts
+	 * again from the beginning of the chromosome.
+	 */
+	public void resetSweep () {
+		cursor = 0;
+		activeSize = 0;
+	}
+
+	/**
+	 * Finds all of the features overlapping a region.  The entries found
+	 * can then be read back with hitCount() and hit().
+	 *
+	 * @param start The start of the region
+	 * @param end The end of the region
+	 * @param sorted Whether this region starts no earlier than the last one we were sent
+	 */
+	public void findOverlaps (int start, int end, boolean sorted) {
+		hitCount = 0;
+		if (sorted) {
+			sweep(start, end);
+		}
+		else {
+			lookup(start, end);
+		}
+	}
+
+	public int hitCount () {
+		return hitCount;
+	}
+
+	/**
+	 * Gets one of the entries found by the last search.
+	 *
+	 * @param hit Which hit to get, from 0 to hitCount()-1
+	 * @return The index entry
+	 */
+	public int hit (int hit) {
+		return hits[hit];
+	}
+
+	/**
+	 * The type id of an entry, which is the position of its FeatureClass
+	 * in the AnnotationSet.
+	 */
+	public int type (int entry) {
+		return types[entry];
+	}
+
+	public int strand (int entry) {
+		return strands[entry];
+	}
+
+	/**
+	 * The index an entry's feature has within the features of its type
+	 * on this chromosome.
+	 */
+	public int feature (int entry) {
+		return featureIndices[entry];
+	}
+
+	/**
+	 * Adds a read to the count for the feature an entry came from.
+	 */
+	public void countRead (int entry) {
+		++sources[types[entry]].readCounts[featureIndices[entry]];
+	}
+
+	/**
+	 * Checks whether a read overlaps the blocks (exons) of the feature an
+	 * entry came from, rather than just its outer extent.  This should
+	 * only be called for entries which were hits for the same read.
+	 *
+	 * @param entry The index entry
+	 * @param readStarts The starts of the aligned blocks of the read, sorted
+	 * @param readEnds The ends of the aligned blocks of the read
+	 * @param readBlockCount The number of read blocks
+	 * @return true if any read block overlaps any feature block
+	 */
+	public boolean overlapsBlocks (int entry, int [] readStarts, int [] readEnds, int readBlockCount) {
+
+		ChromosomeFeatures features = sources[types[entry]];
+		int feature = featureIndices[entry];
+
+		int block = features.blockOffsets[feature];
+		int lastBlock = features.blockOffsets[feature+1];
+
+		if (block == lastBlock) {
+			// The feature is a single block, so if the read is too then we
+			// already know they overlap.
+			if (readBlockCount == 1) return true;
+
+			for (int r=0;r<readBlockCount;r++) {
+				if (readStarts[r] < ends[entry] && readEnds[r] > starts[entry]) return true;
+			}
+			return false;
+		}
+
+		int [] blockStarts = features.blockStarts;
+		int [] blockEnds = features.blockEnds;
+
+		// Transcripts can have hundreds of exons, so rather than walking
+		// from the first one we jump to the last one starting before the
+		// read.  Exons of the same transcript don't overlap so nothing
+		// before that can reach the read.
+		int low = block;
+		int high = lastBlock-1;
+		while (low < high) {
+			int mid = (low+high+1)>>>1;
+			if (blockStarts[mid] <= readStarts[0]) {
+				low = mid;
+			}
+			else {
+				high = mid-1;
+			}
+		}
+		block = low;
+
+		// Both sets of blocks are sorted so we can walk along them together,
+		// always moving on from whichever block finishes first.
+		int r = 0;
+		while (r < readBlockCount && block < lastBlock) {
+			if (readStarts[r] < blockEnds[block] && readEnds[r] > blockStarts[block]) return true;
+
+			if (readEnds[r] <= blockEnds[block]) {
+				++r;
+			}
+			else {
+				++block;
+			}
+		}
+
+		return false;
+	}
+
+	private void addHit (int entry) {
+		if (hitCount == hits.length) {
+			hits = Arrays.copyOf(hits, hitCount*2);
+		}
+		hits[hitCount++] = entry;
+	}
+
+	private void lookup (int start, int end) {
+
+		int bin = start/ChromosomeFeatures.SEQUENCE_CHUNK_LENGTH;
+		if (bin >= binIndices.length) return;
+
+		for (int i=binIndices[bin];i<size;i++) {
+
+			// Check to see if we've gone past where this sequence could
+			// possibly hit.
+			if (starts[i] > end) break;
+
+			if (starts[i] < end && ends[i] > start) {
+				addHit(i);
+			}
+		}
+	}
+
+	private void sweep (int start, int end) {
+
+		// Retire anything which finishes before this read starts.  Later
+		// reads can't start any earlier so they can't hit these either.
+		for (int a=activeSize-1;a>=0;a--) {
+			if (ends[active[a]] <= start) {
+				active[a] = active[--activeSize];
+			}
+		}
+
+		// Bring in the features which start before this read ends
+		while (cursor < size && starts[cursor] < end) {
+			if (ends[cursor] > start) {
+				if (activeSize == active.length) {
+					active = Arrays.copyOf(active, activeSize*2);
+				}
+				active[activeSize++] = cursor;
+			}
+			++cursor;
+		}
+
+		// Everything left ends after our start, but a shorter read than the
+		// last one might still finish before some of them begin.
+		for (int a=0;a<activeSize;a++) {
+			if (starts[active[a]] < end) {
+				addHit(active[a]);
+			}
+		}
+	}
+
+}
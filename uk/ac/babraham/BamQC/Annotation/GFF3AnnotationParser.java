@@ -1,313 +1,961 @@
-/**
- * Copyright 2010-14 Simon Andrews
- *
- *    This file is part of BamQC.
- *
- *    BamQC is free software; you can redistribute it and/or modify
- *    it under the terms of the GNU General Public License as published by
- *    the Free Software Foundation; either version 3 of the License, or
- *    (at your option) any later version.
- *
- *    BamQC is distributed in the hope that it will be useful,
- *    but WITHOUT ANY WARRANTY; without even the implied warranty of
- *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
- *    GNU General Public License for more details.
- *
- *    You should have received a copy of the GNU General Public License
- *    along with BamQC; if not, write to the Free Software
- *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
- */
-package uk.ac.babraham.BamQC.Annotation;
-
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileReader;
-import java.util.Enumeration;
-import java.util.Hashtable;
-import java.util.Iterator;
-import java.util.Vector;
-
-/**
- * The Class GFFAnnotationParser reads sequence features from GFFv3 files
- */
-
-
-public class GFF3AnnotationParser {
-
-	public void parseAnnotation(AnnotationSet annotationSet, File file) throws Exception {
-				
-		Hashtable<String, FeatureGroup> groupedFeatures = new Hashtable<String, FeatureGroup>();
-		
-		BufferedReader br  = new BufferedReader(new FileReader(file));
-		String line;
-
-		int count = 0;
-		while ((line = br.readLine())!= null) {
-			
-//			if (cancel) {
-//				progressCancelled();
-//				br.close();
-//				return null;
-//			}
-//			
-//			if (count % 1000 == 0) {
-//				progressUpdated("Read "+count+" lines from "+file.getName(), 0, 1);
-//			}
-//			
-//			if (count>1000000 && count%1000000 == 0) {
-//				progressUpdated("Caching...",0,1);
-//				annotationSet.finalise();
-//				annotationSet = new AnnotationSet(genome, file.getName()+"["+annotationSets.size()+"]");
-//				annotationSets.add(annotationSet);
-//			}
-
-			
-			++count;
-			
-			
-			if (line.trim().length() == 0) continue;  //Ignore blank lines
-			if (line.startsWith("#")) continue; //Skip comments
-						
-			String [] sections = line.split("\t");
-			
-			/*
-			 * The GFFv3 file fileds are:
-			 *    1. name (which must be the chromosome here)
-			 *    2. source (which we ignore)
-			 *    3. feature type
-			 *    4. start pos
-			 *    5. end pos
-			 *    6. score (which we ignore)
-			 *    7. strand
-			 *    8. frame (which we ignore)
-			 *    9. attributes (structured field allowing us to group features together)
-			 *    
-			 */
-			
-			// Check to see if we've got enough data to work with
-//			if (sections.length < 7) {
-//				progressWarningReceived(new BamQCException("Not enough data from line '"+line+"'"));
-//				continue;
-//			}
-
-			int strand;
-			int start;
-			int end;
-			
-			try {
-				
-				start = Integer.parseInt(sections[3]);
-				end = Integer.parseInt(sections[4]);
-				
-				// End must always be later than start
-				if (end < start) {
-					int temp = start;
-					start = end;
-					end = temp;
-				}
-				
-				if (sections.length >= 7) {
-					if (sections[6].equals("+")) {
-						strand = Location.FORWARD;
-					}
-					else if (sections[6].equals("-")) {
-						strand = Location.REVERSE;
-					}
-					else {
-						strand = Location.UNKNOWN;
-					}
-				}
-				else {
-					strand = Location.UNKNOWN;
-				}
-			}
-			catch (NumberFormatException e) {
-//				progressWarningReceived(new BamQCException("Location "+sections[3]+"-"+sections[4]+" was not an integer"));
-				continue;
-			}
-
-			Chromosome c = annotationSet.chromosomeFactory().getChromosome(sections[0]);
-									
-			if (sections.length > 8 && sections[8].trim().length() > 0) {
-				
-				String [] attributes = sections[8].split(" *; *"); // Should check for escaped colons
-
-				// Make up a data structure of the attributes we have
-				Hashtable<String,Vector<String>> keyValuePairs = new Hashtable<String, Vector<String>>();
-				
-				for (int a=0;a<attributes.length;a++) {
-					String [] keyValue = attributes[a].split("=",2); // Should check for escaped equals
-
-					// See if we didn't get split
-					if (keyValue.length == 1) {
-						// This could be a GTF file which uses quoted values in space delimited fields
-						keyValue = attributes[a].split(" \"");
-						if (keyValue.length == 2) {
-							// We need to remove the quote from the end of the value
-							keyValue[1] = keyValue[1].substring(0, keyValue[1].length()-1);
-//							System.out.println("Key='"+keyValue[0]+"' value='"+keyValue[1]+"'");
-						}
-					}
-					
-					if (keyValue.length == 2) {
-						if (keyValuePairs.containsKey(keyValue[0])) {
-							keyValuePairs.get(keyValue[0]).add(keyValue[1]);
-						}
-						else {
-							Vector<String> newVector = new Vector<String>();
-							newVector.add(keyValue[1]);
-							keyValuePairs.put(keyValue[0], newVector);
-						}
-						
-					}
-					
-					else {
-//						progressWarningReceived(new BamQCException("No key value delimiter in "+attributes[a]));
-					}
-					
-				}
-				
-				// We now need to figure out what we're going to do with this feature.
-				
-				// If it's a GFFv3 file and this feature is a subfeature of another
-				// type of feature then we need to simply add this as a sublocation
-				// to the existing feature.  We only allow this for exon and CDS features
-				// since mRNA has gene as a parent and we don't want to boot that
-				
-				if (keyValuePairs.containsKey("Parent")  && ! sections[2].equals("mRNA")) {
-					
-					// Features of a type get combined under their parent
-					
-					// We change exons to mRNA so we don't end up with spliced exon objects
-					if (sections[2].equals("exon")) sections[2] = "mRNA";
-					
-					String [] parents = keyValuePairs.get("Parent").elementAt(0).split(",");
-					
-					for (int p=0;p<parents.length;p++) {
-
-//						System.out.println("Adding feature "+sections[2]+" to GFFv3 parent "+parents[p]);
-
-						if (!groupedFeatures.containsKey(sections[2]+"_"+parents[p])) {
-							// Make a new feature to which we can add this
-							Feature feature = new Feature(sections[2],c);
-							groupedFeatures.put(sections[2]+"_"+parents[p], new FeatureGroup(feature, strand, feature.location()));
-						}	
-						groupedFeatures.get(sections[2]+"_"+parents[p]).addSublocation(new Location(start, end, strand));
-						
-					}
-				}
-				
-				
-				// This could be a GTF file.  If so then we add the subfeature to the appropriate
-				// parent feature
-				else if (keyValuePairs.containsKey("transcript_id")) {
-
-					if (sections[2].equals("exon")) sections[2] = "mRNA";
-					
-//					System.out.println("Adding feature "+sections[2]+" to GTF parent "+keyValuePairs.get("trancript_id").elementAt(0));
-
-					if (! groupedFeatures.containsKey(sections[2]+"_"+keyValuePairs.get("transcript_id").elementAt(0))) {
-						Feature feature = new Feature(sections[2],c);
-												
-						groupedFeatures.put(sections[2]+"_"+keyValuePairs.get("transcript_id").elementAt(0), new FeatureGroup(feature, strand, feature.location()));
-					}						
-						
-					groupedFeatures.get(sections[2]+"_"+keyValuePairs.get("transcript_id").elementAt(0)).addSublocation(new Location(start, end, strand));
-				}
-
-				else {
-					// If we get here we're making a feature with attributes
-				
-					Feature feature = new Feature(sections[2],c);
-					feature.setLocation(new Location(start,end,strand));
-					Enumeration<String> en = keyValuePairs.keys();
-					if (keyValuePairs.containsKey("ID")) {
-						// This is a feature which may end up having subfeatures
-						groupedFeatures.put(sections[2]+"_"+keyValuePairs.get("ID").elementAt(0), new FeatureGroup(feature, strand, feature.location()));				
-					}
-					else {
-						// We can just add this to the annotation collection
-						annotationSet.addFeature(feature);
-					}
-				}
-				
-			}
-			else {
-				// No group parameter to worry about
-				Feature feature = new Feature(sections[2],c);
-				feature.setLocation(new Location(start,end,strand));
-				annotationSet.addFeature(feature);
-			}
-			
-						
-		}
-		br.close();
-		
-		// Now go through the grouped features adding them to the annotation set
-		
-		Iterator<FeatureGroup> i = groupedFeatures.values().iterator();
-		while (i.hasNext()) {
-			Feature f = i.next().feature();
-			annotationSet.addFeature(f);
-		}
-				
-	}
-
-	/**
-	 * The Class featureGroup.
-	 */
-	private class FeatureGroup {
-		
-		/** The feature. */
-		private Feature feature;
-		
-		/** The sub locations. */
-		private Vector<Location> subLocations = new Vector<Location>();
-		
-		/** The location */
-		private Location location;
-				
-		/**
-		 * Instantiates a new feature group.
-		 * 
-		 * @param feature the feature
-		 * @param strand the strand
-		 * @param location the location
-		 */
-		public FeatureGroup (Feature feature, int strand, Location location) {
-			this.feature = feature;
-			this.location = location;
-		}
-		
-		/**
-		 * Adds a sublocation.
-		 * 
-		 * @param location the location
-		 */
-		public void addSublocation (Location location) {
-			subLocations.add(location);
-		}
-		
-		/**
-		 * Feature.
-		 * 
-		 * @return the feature
-		 */
-		public Feature feature () {
-			if (subLocations.size() == 0) {
-				feature.setLocation(location);					
-			}
-			else if (subLocations.size() == 1) {
-				feature.setLocation(subLocations.elementAt(0));					
-			}
-			else {
-				feature.setLocation(new SplitLocation(subLocations.toArray(new Location[0])));
-			}
-			
-			return feature;
-		}
-		
-		
-	}
-	
-}
+/**
+ * Copyright 2010-14 Simon Andrews
+ *
+ *    This file is part of BamQC.
+ *
+ *    BamQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    BamQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with BamQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.babraham.BamQC.Annotation;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import net.sf.samtools.util.BlockCompressedInputStream;
+
+import uk.ac.babraham.BamQC.BamQCConfig;
+import uk.ac.babraham.BamQC.Utilities.MultiMemberGZIPInputStream;
+
+/**
+ * The Class GFFAnnotationParser reads sequence features from GFFv3 files
+ *
+ * Since annotation files can run to millions of lines we don't go through
+ * Strings and regular expressions for every line.  The file is read into
+ * a large byte buffer which we scan directly for tabs and attribute
+ * delimiters.  Feature types and group IDs are interned so that we only
+ * ever create one String for each distinct value, and the only attributes
+ * we ever look at are the ones we need for grouping (ID, Parent and
+ * transcript_id).
+ *
+ * If we've been given more than one thread then large files are split
+ * at line boundaries into chunks which are scanned in parallel.  Each
+ * chunk just records what it found, and the chunks are then replayed in
+ * file order so that the grouping of features comes out exactly as it
+ * would from a serial parse.
+ *
+ * Gzipped (.gz or .bgz) files are read as a single stream.  If a
+ * bgzipped file has a tabix index alongside it then we don't read
+ * anything up front, but instead load the features for each
+ * chromosome the first time the AnnotationSet sees a read on it.
+ */
+
+
+public class GFF3AnnotationParser {
+
+	private static final int BUFFER_SIZE = 1024*1024;
+
+	// We don't bother splitting files into chunks smaller than this
+	private static final long MIN_CHUNK_SIZE = 16*1024*1024;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final byte [] ID_KEY = "ID".getBytes(UTF8);
+	private static final byte [] PARENT_KEY = "Parent".getBytes(UTF8);
+	private static final byte [] TRANSCRIPT_ID_KEY = "transcript_id".getBytes(UTF8);
+	private static final byte [] GENE_ID_KEY = "gene_id".getBytes(UTF8);
+
+	private static final String MRNA = "mRNA";
+	private static final String EXON = "exon";
+
+	// The things a scanned line can ask us to do
+	private static final byte ADD_FEATURE = 0;
+	private static final byte ADD_SUBLOCATION = 1;
+	private static final byte ADD_GROUP = 2;
+
+	private AnnotationSet annotationSet;
+
+	// Grouped features are keyed first by type and then by the id they're grouped under
+	private HashMap<String, Hashtable<String, FeatureGroup>> groupedFeatures;
+
+	private long lineCount = 0;
+
+	// Only set when we're loading chromosomes on demand from an indexed file
+	private File file = null;
+	private TabixIndex tabixIndex = null;
+
+	public void parseAnnotation(AnnotationSet annotationSet, File file) throws Exception {
+
+		File indexFile = new File(file.getPath()+".tbi");
+
+		if (isCompressed(file) && indexFile.exists()) {
+			this.file = file;
+			tabixIndex = new TabixIndex(indexFile);
+			annotationSet.setLazyParser(this);
+			return;
+		}
+
+		startParse(annotationSet);
+
+		if (isCompressed(file)) {
+			parseWholeStream(new MultiMemberGZIPInputStream(new FileInputStream(file)));
+		}
+		else {
+			int threads = 1;
+			if (BamQCConfig.getInstance().threads != null) {
+				threads = BamQCConfig.getInstance().threads;
+			}
+
+			long [] boundaries = findChunkBoundaries(file, threads);
+
+			if (boundaries.length > 2) {
+				parseChunks(file, boundaries, threads);
+			}
+			else {
+				parseWholeStream(new FileInputStream(file));
+			}
+		}
+
+		finishParse();
+	}
+
+	/**
+	 * Loads the features for a single chromosome from an indexed file.
+	 * This is called by the AnnotationSet the first time it sees a read
+	 * on each chromosome.
+	 *
+	 * @param annotationSet The set to add the features to
+	 * @param name The name of the chromosome to load
+	 * @throws IOException
+	 */
+	protected void parseChromosome (AnnotationSet annotationSet, Chromosome chromosome) throws IOException {
+
+		// The annotation may use a different name for this chromosome to
+		// the BAM file, in which case we look for one which maps to it.
+		String name = chromosome.name();
+		if (!tabixIndex.hasSequence(name)) {
+			name = null;
+			String [] names = tabixIndex.sequenceNames();
+			for (int n=0;n<names.length;n++) {
+				if (annotationSet.chromosomeFactory().getChromosome(names[n]) == chromosome) {
+					name = names[n];
+					break;
+				}
+			}
+			if (name == null) return;
+		}
+
+		startParse(annotationSet);
+
+		BlockCompressedInputStream in = new BlockCompressedInputStream(file);
+
+		try {
+			in.seek(tabixIndex.startOffset(name));
+			LineScanner scanner = new LineScanner(false);
+			scanner.onlyChromosome = name.getBytes(UTF8);
+			scanner.parseStream(new RegionInputStream(in, tabixIndex.endOffset(name)), Long.MAX_VALUE);
+			lineCount = scanner.lineCount;
+		}
+		finally {
+			in.close();
+		}
+
+		finishParse();
+	}
+
+	private static boolean isCompressed (File file) {
+		String name = file.getName().toLowerCase();
+		return name.endsWith(".gz") || name.endsWith(".bgz");
+	}
+
+	private void startParse (AnnotationSet annotationSet) {
+		this.annotationSet = annotationSet;
+		groupedFeatures = new HashMap<String, Hashtable<String,FeatureGroup>>();
+		lineCount = 0;
+	}
+
+	private void parseWholeStream (InputStream in) throws IOException {
+		LineScanner scanner = new LineScanner(false);
+
+		try {
+			scanner.parseStream(in, Long.MAX_VALUE);
+		}
+		finally {
+			in.close();
+		}
+		lineCount = scanner.lineCount;
+	}
+
+	private void finishParse () {
+
+		// Now go through the grouped features adding them to the annotation set
+
+		Iterator<String> t = groupedFeatures.keySet().iterator();
+		while (t.hasNext()) {
+			String type = t.next();
+			Iterator<Map.Entry<String, FeatureGroup>> i = groupedFeatures.get(type).entrySet().iterator();
+			while (i.hasNext()) {
+				Map.Entry<String, FeatureGroup> group = i.next();
+				group.getValue().addTo(annotationSet, type, group.getKey());
+			}
+		}
+
+		groupedFeatures = null;
+
+	}
+
+	/**
+	 * Works out where to split a file so that each chunk starts at the
+	 * beginning of a line.
+	 *
+	 * @param file The file to split
+	 * @param threads The number of threads we'll be parsing with
+	 * @return The offsets of the start of each chunk, with the file length at the end
+	 * @throws IOException
+	 */
+	private long [] findChunkBoundaries (File file, int threads) throws IOException {
+
+		long length = file.length();
+
+		int chunkCount = (int)Math.min(threads*4, length/MIN_CHUNK_SIZE);
+
+		if (threads < 2 || chunkCount < 2) {
+			return new long [] {0,length};
+		}
+
+		long [] boundaries = new long[chunkCount+1];
+		int boundaryCount = 1;
+
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		byte [] buffer = new byte[8192];
+
+		try {
+			for (int c=1;c<chunkCount;c++) {
+				long position = Math.max((length*c)/chunkCount, boundaries[boundaryCount-1]);
+				raf.seek(position);
+
+				// Move forward to just past the next newline
+				boolean found = false;
+				int read;
+				while (!found && (read = raf.read(buffer)) != -1) {
+					for (int i=0;i<read;i++) {
+						if (buffer[i] == '\n') {
+							position += i+1;
+							found = true;
+							break;
+						}
+					}
+					if (!found) position += read;
+				}
+
+				if (!found || position >= length) break;
+
+				if (position > boundaries[boundaryCount-1]) {
+					boundaries[boundaryCount++] = position;
+				}
+			}
+		}
+		finally {
+			raf.close();
+		}
+
+		boundaries[boundaryCount++] = length;
+
+		return Arrays.copyOf(boundaries, boundaryCount);
+	}
+
+	private void parseChunks (final File file, long [] boundaries, int threads) throws Exception {
+
+		List<Callable<LineScanner>> tasks = new Vector<Callable<LineScanner>>();
+
+		for (int c=0;c<boundaries.length-1;c++) {
+			final long start = boundaries[c];
+			final long length = boundaries[c+1]-start;
+
+			tasks.add(new Callable<LineScanner>() {
+				public LineScanner call() throws Exception {
+					LineScanner scanner = new LineScanner(true);
+					InputStream in = new FileInputStream(file);
+					try {
+						long skipped = 0;
+						while (skipped < start) {
+							skipped += in.skip(start-skipped);
+						}
+						scanner.parseStream(in, length);
+					}
+					finally {
+						in.close();
+					}
+					return scanner;
+				}
+			});
+		}
+
+		ForkJoinPool pool = new ForkJoinPool(threads);
+
+		try {
+			List<Future<LineScanner>> results = pool.invokeAll(tasks);
+
+			// The chunks must be merged in file order to get the same result
+			// as we'd get from a serial parse.
+			for (int c=0;c<results.size();c++) {
+				LineScanner scanner;
+				try {
+					scanner = results.get(c).get();
+				}
+				catch (ExecutionException e) {
+					if (e.getCause() instanceof Exception) throw (Exception)e.getCause();
+					throw e;
+				}
+
+				scanner.replay();
+				lineCount += scanner.lineCount;
+			}
+		}
+		finally {
+			pool.shutdown();
+		}
+
+	}
+
+	private void addFeature (String type, String name, Chromosome c, int start, int end, int strand) {
+		annotationSet.addFeature(type, name, c, start, end, strand);
+	}
+
+	private void addSublocation (String type, String id, Chromosome c, int start, int end, int strand) {
+		Hashtable<String, FeatureGroup> groups = groupsForType(type);
+		FeatureGroup group = groups.get(id);
+		if (group == null) {
+			// Make a new feature to which we can add this
+			group = new FeatureGroup(c, strand);
+			groups.put(id, group);
+		}
+		group.addSublocation(start, end);
+	}
+
+	private void addGroup (String type, String id, Chromosome c, int start, int end, int strand) {
+		groupsForType(type).put(id, new FeatureGroup(c, start, end, strand));
+	}
+
+	private Hashtable<String, FeatureGroup> groupsForType (String type) {
+		Hashtable<String, FeatureGroup> groups = groupedFeatures.get(type);
+		if (groups == null) {
+			groups = new Hashtable<String, FeatureGroup>();
+			groupedFeatures.put(type, groups);
+		}
+		return groups;
+	}
+
+	private static boolean keyMatches (byte [] buffer, int from, int to, byte [] key) {
+		if (to-from != key.length) return false;
+		for (int i=0;i<key.length;i++) {
+			if (buffer[from+i] != key[i]) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Parses a non-negative integer directly from the buffer.
+	 *
+	 * @return The parsed value, or -1 if this wasn't a valid position
+	 */
+	private static int parsePosition (byte [] buffer, int from, int to) {
+		if (from >= to) return -1;
+		long value = 0;
+		for (int i=from;i<to;i++) {
+			int digit = buffer[i]-'0';
+			if (digit < 0 || digit > 9) return -1;
+			value = (value*10)+digit;
+			if (value > Integer.MAX_VALUE) return -1;
+		}
+		return (int)value;
+	}
+
+	/**
+	 * Times a parse of the file given on the command line.  An optional
+	 * second argument sets the number of threads to use.
+	 */
+	public static void main (String [] args) throws Exception {
+
+		File file = new File(args[0]);
+
+		if (args.length > 1) {
+			BamQCConfig.getInstance().threads = Integer.parseInt(args[1]);
+		}
+
+		GFF3AnnotationParser parser = new GFF3AnnotationParser();
+		AnnotationSet annotationSet = new AnnotationSet();
+
+		long startTime = System.nanoTime();
+		parser.parseAnnotation(annotationSet, file);
+		double seconds = (System.nanoTime()-startTime)/1000000000d;
+
+		System.out.println("Parsed "+parser.lineCount+" lines from "+file.getName()+" in "+seconds+"s ("+(long)(parser.lineCount/seconds)+" lines/s)");
+
+		String [] featureTypes = annotationSet.listFeatureTypes();
+		Arrays.sort(featureTypes);
+		for (int t=0;t<featureTypes.length;t++) {
+			System.out.println(featureTypes[t]);
+		}
+	}
+
+	/**
+	 * The LineScanner does the actual reading of the file.  When run in
+	 * deferred mode (as it is for parallel chunks) it doesn't touch the
+	 * shared grouping data but just logs what each line asked for so
+	 * that it can be replayed later.
+	 */
+	private class LineScanner {
+
+		private boolean deferred;
+
+		private ByteInterner types = new ByteInterner();
+		private ByteInterner ids = new ByteInterner();
+
+		// The chromosome of the previous line.  Files are almost always grouped by
+		// chromosome so this saves us a lookup for nearly every line.
+		private byte [] lastChrName = new byte[0];
+		private Chromosome lastChr = null;
+
+		// The boundaries of the fields in the line currently being parsed
+		private int [] fieldStarts = new int[9];
+		private int [] fieldEnds = new int[9];
+
+		private long lineCount = 0;
+
+		// If set then lines for any other chromosome are ignored
+		private byte [] onlyChromosome = null;
+
+		// The log of deferred actions
+		private int logSize = 0;
+		private byte [] logActions;
+		private String [] logTypes;
+		private String [] logIds;
+		private Chromosome [] logChrs;
+		private int [] logStarts;
+		private int [] logEnds;
+		private byte [] logStrands;
+
+		public LineScanner (boolean deferred) {
+			this.deferred = deferred;
+			if (deferred) {
+				logActions = new byte[1024];
+				logTypes = new String[1024];
+				logIds = new String[1024];
+				logChrs = new Chromosome[1024];
+				logStarts = new int[1024];
+				logEnds = new int[1024];
+				logStrands = new byte[1024];
+			}
+		}
+
+		/**
+		 * Reads the stream into a buffer and hands each complete line to
+		 * parseLine.  Partial lines at the end of the buffer are moved to
+		 * the front before the next read, and the buffer is only grown if
+		 * we find a single line which won't fit into it.
+		 *
+		 * @param in The stream to read
+		 * @param length The maximum number of bytes to read from the stream
+		 * @throws IOException
+		 */
+		public void parseStream (InputStream in, long length) throws IOException {
+
+			byte [] buffer = new byte[(int)Math.min(BUFFER_SIZE, Math.max(length, 1))];
+			int filled = 0;
+			int lineStart = 0;
+			long remaining = length;
+
+			while (true) {
+				int read = -1;
+				if (remaining > 0) {
+					read = in.read(buffer, filled, (int)Math.min(buffer.length-filled, remaining));
+				}
+
+				if (read == -1) {
+					if (filled > lineStart) {
+						parseLine(buffer, lineStart, filled);
+					}
+					break;
+				}
+
+				remaining -= read;
+				int scanFrom = filled;
+				filled += read;
+
+				for (int i=scanFrom;i<filled;i++) {
+					if (buffer[i] == '\n') {
+						parseLine(buffer, lineStart, i);
+						lineStart = i+1;
+					}
+				}
+
+				if (lineStart > 0) {
+					System.arraycopy(buffer, lineStart, buffer, 0, filled-lineStart);
+					filled -= lineStart;
+					lineStart = 0;
+				}
+				else if (filled == buffer.length) {
+					buffer = Arrays.copyOf(buffer, buffer.length*2);
+				}
+			}
+
+		}
+
+		private void parseLine (byte [] buffer, int from, int to) {
+
+			++lineCount;
+
+			if (to > from && buffer[to-1] == '\r') --to;
+
+			// Ignore blank lines
+			boolean blank = true;
+			for (int i=from;i<to;i++) {
+				if (buffer[i] > ' ') {
+					blank = false;
+					break;
+				}
+			}
+			if (blank) return;
+
+			if (buffer[from] == '#') return; //Skip comments
+
+			/*
+			 * The GFFv3 file fileds are:
+			 *    1. name (which must be the chromosome here)
+			 *    2. source (which we ignore)
+			 *    3. feature type
+			 *    4. start pos
+			 *    5. end pos
+			 *    6. score (which we ignore)
+			 *    7. strand
+			 *    8. frame (which we ignore)
+			 *    9. attributes (structured field allowing us to group features together)
+			 *
+			 */
+
+			int fieldCount = 0;
+			fieldStarts[0] = from;
+			for (int i=from;i<to && fieldCount < 8;i++) {
+				if (buffer[i] == '\t') {
+					fieldEnds[fieldCount] = i;
+					++fieldCount;
+					fieldStarts[fieldCount] = i+1;
+				}
+			}
+			fieldEnds[fieldCount] = to;
+			++fieldCount;
+
+			// Check to see if we've got enough data to work with
+			if (fieldCount < 5) return;
+
+			if (onlyChromosome != null && !keyMatches(buffer, fieldStarts[0], fieldEnds[0], onlyChromosome)) return;
+
+			int start = parsePosition(buffer, fieldStarts[3], fieldEnds[3]);
+			int end = parsePosition(buffer, fieldStarts[4], fieldEnds[4]);
+
+			// The location wasn't an integer
+			if (start < 0 || end < 0) return;
+
+			// End must always be later than start
+			if (end < start) {
+				int temp = start;
+				start = end;
+				end = temp;
+			}
+
+			int strand = Location.UNKNOWN;
+			if (fieldCount >= 7 && fieldEnds[6]-fieldStarts[6] == 1) {
+				if (buffer[fieldStarts[6]] == '+') {
+					strand = Location.FORWARD;
+				}
+				else if (buffer[fieldStarts[6]] == '-') {
+					strand = Location.REVERSE;
+				}
+			}
+
+			Chromosome c = chromosome(buffer, fieldStarts[0], fieldEnds[0]);
+			String type = types.intern(buffer, fieldStarts[2], fieldEnds[2]);
+
+			if (fieldCount < 9) {
+				// No group parameter to worry about
+				record(ADD_FEATURE, type, null, c, start, end, strand);
+				return;
+			}
+
+			// Find the only attributes we care about.  We only keep the first
+			// value for any key, so once found they're not overwritten.
+			int idStart = -1, idEnd = -1;
+			int parentStart = -1, parentEnd = -1;
+			int transcriptStart = -1, transcriptEnd = -1;
+			int geneStart = -1, geneEnd = -1;
+
+			int attributeEnd = fieldEnds[8];
+			int attributeStart = fieldStarts[8];
+
+			while (attributeStart < attributeEnd) {
+
+				int segmentEnd = attributeStart;
+				while (segmentEnd < attributeEnd && buffer[segmentEnd] != ';') ++segmentEnd;
+
+				// Trim surrounding spaces from this key value pair
+				int s = attributeStart;
+				int e = segmentEnd;
+				while (s < e && buffer[s] == ' ') ++s;
+				while (e > s && buffer[e-1] == ' ') --e;
+
+				attributeStart = segmentEnd+1;
+
+				if (s == e) continue;
+
+				int keyEnd = -1;
+				int valueStart = -1;
+				int valueEnd = e;
+
+				for (int i=s;i<e;i++) {
+					if (buffer[i] == '=') {
+						keyEnd = i;
+						valueStart = i+1;
+						break;
+					}
+				}
+
+				if (keyEnd < 0) {
+					// This could be a GTF file which uses quoted values in space delimited fields
+					for (int i=s;i<e-1;i++) {
+						if (buffer[i] == ' ' && buffer[i+1] == '"') {
+							keyEnd = i;
+							valueStart = i+2;
+							// We need to remove the quote from the end of the value
+							if (valueEnd > valueStart && buffer[valueEnd-1] == '"') --valueEnd;
+							break;
+						}
+					}
+				}
+
+				// No key value delimiter
+				if (keyEnd < 0) continue;
+
+				if (idStart < 0 && keyMatches(buffer, s, keyEnd, ID_KEY)) {
+					idStart = valueStart;
+					idEnd = valueEnd;
+				}
+				else if (parentStart < 0 && keyMatches(buffer, s, keyEnd, PARENT_KEY)) {
+					parentStart = valueStart;
+					parentEnd = valueEnd;
+				}
+				else if (transcriptStart < 0 && keyMatches(buffer, s, keyEnd, TRANSCRIPT_ID_KEY)) {
+					transcriptStart = valueStart;
+					transcriptEnd = valueEnd;
+				}
+				else if (geneStart < 0 && keyMatches(buffer, s, keyEnd, GENE_ID_KEY)) {
+					geneStart = valueStart;
+					geneEnd = valueEnd;
+				}
+
+			}
+
+			// We now need to figure out what we're going to do with this feature.
+
+			// If it's a GFFv3 file and this feature is a subfeature of another
+			// type of feature then we need to simply add this as a sublocation
+			// to the existing feature.  We only allow this for exon and CDS features
+			// since mRNA has gene as a parent and we don't want to boot that
+
+			if (parentStart >= 0 && !type.equals(MRNA)) {
+
+				// Features of a type get combined under their parent
+
+				// We change exons to mRNA so we don't end up with spliced exon objects
+				if (type.equals(EXON)) type = MRNA;
+
+				int p = parentStart;
+				for (int i=parentStart;i<=parentEnd;i++) {
+					if (i == parentEnd || buffer[i] == ',') {
+						record(ADD_SUBLOCATION, type, ids.intern(buffer, p, i), c, start, end, strand);
+						p = i+1;
+					}
+				}
+			}
+
+			// This could be a GTF file.  If so then we add the subfeature to the appropriate
+			// parent feature
+			else if (transcriptStart >= 0) {
+				if (type.equals(EXON)) type = MRNA;
+
+				record(ADD_SUBLOCATION, type, ids.intern(buffer, transcriptStart, transcriptEnd), c, start, end, strand);
+			}
+
+			else if (idStart >= 0) {
+				// This is a feature which may end up having subfeatures
+				record(ADD_GROUP, type, ids.intern(buffer, idStart, idEnd), c, start, end, strand);
+			}
+
+			else {
+				// We can just add this to the annotation collection.  GTF
+				// genes don't have an ID but we can still name them.
+				String name = null;
+				if (geneStart >= 0) name = ids.intern(buffer, geneStart, geneEnd);
+				record(ADD_FEATURE, type, name, c, start, end, strand);
+			}
+
+		}
+
+		private void record (byte action, String type, String id, Chromosome c, int start, int end, int strand) {
+
+			if (!deferred) {
+				apply(action, type, id, c, start, end, strand);
+				return;
+			}
+
+			if (logSize == logActions.length) {
+				int newSize = logSize*2;
+				logActions = Arrays.copyOf(logActions, newSize);
+				logTypes = Arrays.copyOf(logTypes, newSize);
+				logIds = Arrays.copyOf(logIds, newSize);
+				logChrs = Arrays.copyOf(logChrs, newSize);
+				logStarts = Arrays.copyOf(logStarts, newSize);
+				logEnds = Arrays.copyOf(logEnds, newSize);
+				logStrands = Arrays.copyOf(logStrands, newSize);
+			}
+
+			logActions[logSize] = action;
+			logTypes[logSize] = type;
+			logIds[logSize] = id;
+			logChrs[logSize] = c;
+			logStarts[logSize] = start;
+			logEnds[logSize] = end;
+			logStrands[logSize] = (byte)strand;
+			++logSize;
+		}
+
+		/**
+		 * Applies all of the logged actions from a deferred scan.  This
+		 * must only be called from the thread doing the merge.
+		 */
+		public void replay () {
+			for (int i=0;i<logSize;i++) {
+				apply(logActions[i], logTypes[i], logIds[i], logChrs[i], logStarts[i], logEnds[i], logStrands[i]);
+			}
+		}
+
+		private void apply (byte action, String type, String id, Chromosome c, int start, int end, int strand) {
+			switch (action) {
+				case ADD_FEATURE:
+					addFeature(type, id, c, start, end, strand);
+					break;
+				case ADD_SUBLOCATION:
+					addSublocation(type, id, c, start, end, strand);
+					break;
+				case ADD_GROUP:
+					addGroup(type, id, c, start, end, strand);
+					break;
+			}
+		}
+
+		private Chromosome chromosome (byte [] buffer, int from, int to) {
+
+			if (lastChr != null && keyMatches(buffer, from, to, lastChrName)) {
+				return lastChr;
+			}
+
+			lastChrName = Arrays.copyOfRange(buffer, from, to);
+			lastChr = annotationSet.chromosomeFactory().getChromosome(new String(lastChrName, UTF8));
+			return lastChr;
+		}
+
+	}
+
+	/**
+	 * Reads from a bgzipped file until we reach a given virtual offset.
+	 * Since reads are done in blocks we can go a little past the end,
+	 * but anything we read from there belongs to a different chromosome
+	 * and is filtered out by the scanner.
+	 */
+	private static class RegionInputStream extends InputStream {
+
+		private BlockCompressedInputStream in;
+		private long endOffset;
+
+		public RegionInputStream (BlockCompressedInputStream in, long endOffset) {
+			this.in = in;
+			this.endOffset = endOffset;
+		}
+
+		public int read () throws IOException {
+			if (in.getFilePointer() >= endOffset) return -1;
+			return in.read();
+		}
+
+		public int read (byte [] buffer, int offset, int length) throws IOException {
+			if (in.getFilePointer() >= endOffset) return -1;
+			return in.read(buffer, offset, length);
+		}
+
+	}
+
+	/**
+	 * A simple open addressed table which turns byte ranges into Strings,
+	 * only creating a new String the first time each value is seen.
+	 */
+	private static class ByteInterner {
+
+		private byte [][] keys = new byte[1024][];
+		private String [] values = new String[1024];
+		private int size = 0;
+
+		public String intern (byte [] buffer, int from, int to) {
+
+			int hash = 1;
+			for (int i=from;i<to;i++) {
+				hash = (31*hash)+buffer[i];
+			}
+			hash ^= (hash >>> 16);
+
+			int mask = keys.length-1;
+			int slot = hash & mask;
+
+			while (keys[slot] != null) {
+				if (keyMatches(buffer, from, to, keys[slot])) {
+					return values[slot];
+				}
+				slot = (slot+1) & mask;
+			}
+
+			byte [] key = Arrays.copyOfRange(buffer, from, to);
+			String value = new String(key, UTF8);
+			keys[slot] = key;
+			values[slot] = value;
+
+			if (++size > keys.length/2) {
+				rehash();
+			}
+
+			return value;
+		}
+
+		private void rehash () {
+			byte [][] oldKeys = keys;
+			String [] oldValues = values;
+
+			keys = new byte[oldKeys.length*2][];
+			values = new String[oldKeys.length*2];
+			int mask = keys.length-1;
+
+			for (int k=0;k<oldKeys.length;k++) {
+				if (oldKeys[k] == null) continue;
+
+				int hash = 1;
+				for (int i=0;i<oldKeys[k].length;i++) {
+					hash = (31*hash)+oldKeys[k][i];
+				}
+				hash ^= (hash >>> 16);
+
+				int slot = hash & mask;
+				while (keys[slot] != null) {
+					slot = (slot+1) & mask;
+				}
+				keys[slot] = oldKeys[k];
+				values[slot] = oldValues[k];
+			}
+		}
+
+	}
+
+	/**
+	 * A FeatureGroup collects the blocks of a feature which is spread
+	 * over several lines of the file.
+	 */
+	private class FeatureGroup {
+
+		private Chromosome chr;
+		private int strand;
+
+		/** The location given on the line which defined the group, if there was one */
+		private int start = -1;
+		private int end = -1;
+
+		/** The sub locations. */
+		private int subLocationCount = 0;
+		private int [] subStarts = null;
+		private int [] subEnds = null;
+
+		/**
+		 * Instantiates a new feature group with no location of its own.
+		 *
+		 * @param chr the chromosome
+		 * @param strand the strand
+		 */
+		public FeatureGroup (Chromosome chr, int strand) {
+			this.chr = chr;
+			this.strand = strand;
+		}
+
+		/**
+		 * Instantiates a new feature group.
+		 *
+		 * @param chr the chromosome
+		 * @param start the start of the feature defining the group
+		 * @param end the end of the feature defining the group
+		 * @param strand the strand
+		 */
+		public FeatureGroup (Chromosome chr, int start, int end, int strand) {
+			this(chr, strand);
+			this.start = start;
+			this.end = end;
+		}
+
+		/**
+		 * Adds a sublocation.
+		 *
+		 * @param start the start of the sublocation
+		 * @param end the end of the sublocation
+		 */
+		public void addSublocation (int start, int end) {
+			if (subStarts == null) {
+				subStarts = new int[4];
+				subEnds = new int[4];
+			}
+			else if (subLocationCount == subStarts.length) {
+				subStarts = Arrays.copyOf(subStarts, subLocationCount*2);
+				subEnds = Arrays.copyOf(subEnds, subLocationCount*2);
+			}
+			subStarts[subLocationCount] = start;
+			subEnds[subLocationCount] = end;
+			++subLocationCount;
+		}
+
+		/**
+		 * Adds the finished feature to an annotation set.
+		 *
+		 * @param annotationSet the annotation set
+		 * @param type the type of feature
+		 * @param name the ID the feature was grouped under
+		 */
+		public void addTo (AnnotationSet annotationSet, String type, String name) {
+			if (subLocationCount == 0) {
+				annotationSet.addFeature(type, name, chr, start, end, strand);
+			}
+			else {
+				annotationSet.addFeature(type, name, chr, strand, subStarts, subEnds, subLocationCount);
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,164 @@
+/**
+ * Copyright Copyright 2014 Simon Andrews
+ *
+ *    This file is part of BamQC.
+ *
+ *    BamQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    BamQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with BamQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.babraham.BamQC.Annotation;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.HashMap;
+
+import net.sf.samtools.util.BlockCompressedInputStream;
+
+/**
+ * Reads the parts of a tabix (.tbi) index which we need to pull all of
+ * the lines for a single sequence out of a bgzipped annotation file.
+ * We only ever load whole chromosomes so rather than keeping the
+ * binning and linear indices we just keep the first and last virtual
+ * offsets seen for each sequence.
+ */
+public class TabixIndex {
+
+	// Newer indices add a pseudo-bin holding summary counts rather than
+	// real chunks, so we mustn't treat it as a file position.
+	private static final int PSEUDO_BIN = 37450;
+
+	private String [] names;
+	private long [] startOffsets;
+	private long [] endOffsets;
+	private HashMap<String, Integer> nameIndices = new HashMap<String, Integer>();
+
+	public TabixIndex (File file) throws IOException {
+
+		BlockCompressedInputStream in = new BlockCompressedInputStream(file);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+		try {
+			byte [] buffer = new byte[65536];
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				bytes.write(buffer, 0, read);
+			}
+		}
+		finally {
+			in.close();
+		}
+
+		ByteBuffer data = ByteBuffer.wrap(bytes.toByteArray());
+		data.order(ByteOrder.LITTLE_ENDIAN);
+
+		if (data.remaining() < 36 || data.get() != 'T' || data.get() != 'B' || data.get() != 'I' || data.get() != 1) {
+			throw new IOException(file.getName()+" doesn't look like a tabix index");
+		}
+
+		int sequenceCount = data.getInt();
+
+		// Format, sequence, start and end columns, comment character
+		// and lines to skip.  We parse the file ourselves so we don't
+		// need any of these.
+		for (int i=0;i<6;i++) {
+			data.getInt();
+		}
+
+		int nameLength = data.getInt();
+		byte [] nameBytes = new byte[nameLength];
+		data.get(nameBytes);
+
+		names = new String[sequenceCount];
+		startOffsets = new long[sequenceCount];
+		endOffsets = new long[sequenceCount];
+
+		int nameStart = 0;
+		for (int s=0;s<sequenceCount;s++) {
+			int nameEnd = nameStart;
+			while (nameBytes[nameEnd] != 0) ++nameEnd;
+			names[s] = new String(nameBytes, nameStart, nameEnd-nameStart, "UTF-8");
+			nameIndices.put(names[s], s);
+			nameStart = nameEnd+1;
+		}
+
+		for (int s=0;s<sequenceCount;s++) {
+
+			long first = Long.MAX_VALUE;
+			long last = 0;
+
+			int binCount = data.getInt();
+			for (int b=0;b<binCount;b++) {
+				int bin = data.getInt();
+				int chunkCount = data.getInt();
+				for (int c=0;c<chunkCount;c++) {
+					long chunkStart = data.getLong();
+					long chunkEnd = data.getLong();
+
+					if (bin == PSEUDO_BIN) continue;
+
+					if (chunkStart < first) first = chunkStart;
+					if (chunkEnd > last) last = chunkEnd;
+				}
+			}
+
+			// Skip the linear index
+			int intervalCount = data.getInt();
+			data.position(data.position()+(intervalCount*8));
+
+			if (first == Long.MAX_VALUE) {
+				first = 0;
+			}
+
+			startOffsets[s] = first;
+			endOffsets[s] = last;
+		}
+
+	}
+
+	public String [] sequenceNames () {
+		return names;
+	}
+
+	public boolean hasSequence (String name) {
+		return nameIndices.containsKey(name);
+	}
+
+	/**
+	 * The virtual file offset of the first line for a sequence.
+	 *
+	 * @param name The sequence name
+	 * @return The offset, or -1 if this sequence isn't in the index
+	 */
+	public long startOffset (String name) {
+		Integer index = nameIndices.get(name);
+		if (index == null) return -1;
+		return startOffsets[index];
+	}
+
+	/**
+	 * The virtual file offset just past the last line for a sequence.
+	 *
+	 * @param name The sequence name
+	 * @return The offset, or -1 if this sequence isn't in the index
+	 */
+	public long endOffset (String name) {
+		Integer index = nameIndices.get(name);
+		if (index == null) return -1;
+		return endOffsets[index];
+	}
+
+}
@@ -0,0 +1,265 @@
+/**
+ * Copyright Copyright 2014 Simon Andrews
+ *
+ *    This file is part of BamQC.
+ *
+ *    BamQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    BamQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with BamQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.babraham.BamQC.Annotation;
+
+import java.util.Arrays;
+
+/**
+ * TranscriptCoverage builds up the coverage along the body of every
+ * transcript, from its 5' to its 3' end, as sorted reads sweep along each
+ * chromosome.  Each transcript is split into 100 bins over the length of
+ * its exons, and the share of its coverage in each bin is averaged over
+ * all of the transcripts with any reads.
+ *
+ * Coverage is only held for transcripts the sweep is currently inside.
+ * Each has a difference array over its exons, so a read block just adds
+ * one where it starts and takes one off after it ends.  Once the reads
+ * have passed the end of a transcript its coverage is added up into bins
+ * and the array is let go.
+ */
+public class TranscriptCoverage {
+
+	public static final int BINS = 100;
+
+	// The transcripts on the current chromosome
+	private ChromosomeFeatures features = null;
+
+	// For each transcript on the chromosome, 0 if we haven't seen it, the
+	// open slot plus one if we're collecting its coverage, or SKIPPED
+	private static final int SKIPPED = -1;
+	private int [] slots = new int[0];
+
+	// The transcripts we're collecting coverage for
+	private int openCount = 0;
+	private int [] openFeatures = new int[16];
+	private int [][] exonOffsets = new int[16][];
+	private int [][] coverageChanges = new int[16][];
+
+	// The soonest any open transcript finishes
+	private int nextEnd = Integer.MAX_VALUE;
+
+	private double [] binCoverage = new double[BINS];
+	private double [] binTotals = new double[BINS];
+	private long transcriptCount = 0;
+
+	private boolean abandoned = false;
+
+	/**
+	 * Finishes the transcripts on the last chromosome and starts on a new one.
+	 *
+	 * @param transcripts The transcripts on the new chromosome, which can be null
+	 */
+	public void startChromosome (ChromosomeFeatures transcripts) {
+		finish();
+		features = transcripts;
+		if (features != null && slots.length < features.size()) {
+			slots = new int[features.size()];
+		}
+	}
+
+	/**
+	 * Tells us the sweep has reached a position, so any transcript ending
+	 * before it is complete.
+	 */
+	public void passPosition (int position) {
+		if (position <= nextEnd) return;
+
+		nextEnd = Integer.MAX_VALUE;
+		for (int s=openCount-1;s>=0;s--) {
+			int end = features.end(openFeatures[s]);
+			if (end < position) {
+				close(s);
+			}
+			else if (end < nextEnd) {
+				nextEnd = end;
+			}
+		}
+	}
+
+	/**
+	 * Adds the blocks of a read to the coverage of a transcript it overlaps.
+	 *
+	 * @param feature The index of the transcript on the current chromosome
+	 * @param readStarts The starts of the aligned blocks of the read, sorted
+	 * @param readEnds The ends of the aligned blocks of the read
+	 * @param readBlockCount The number of read blocks
+	 */
+	public void addRead (int feature, int [] readStarts, int [] readEnds, int readBlockCount) {
+
+		if (abandoned || features == null) return;
+
+		int slot = slots[feature];
+		if (slot == SKIPPED) return;
+		if (slot == 0) {
+			slot = open(feature);
+			if (slot == SKIPPED) return;
+		}
+		--slot;
+
+		int [] offsets = exonOffsets[slot];
+		int [] changes = coverageChanges[slot];
+		int blockCount = offsets.length-1;
+
+		int block = 0;
+		for (int r=0;r<readBlockCount;r++) {
+			while (block < blockCount && features.blockEnd(feature, block) < readStarts[r]) {
+				++block;
+			}
+
+			for (int b=block;b<blockCount;b++) {
+				int blockStart = features.blockStart(feature, b);
+				if (blockStart > readEnds[r]) break;
+
+				int start = Math.max(readStarts[r], blockStart);
+				int end = Math.min(readEnds[r], features.blockEnd(feature, b));
+				if (end < start) continue;
+
+				++changes[offsets[b]+(start-blockStart)];
+				--changes[offsets[b]+(end-blockStart)+1];
+			}
+		}
+	}
+
+	private int open (int feature) {
+
+		int blockCount = features.blockCount(feature);
+		int [] offsets = new int[blockCount+1];
+		for (int b=0;b<blockCount;b++) {
+			offsets[b+1] = offsets[b]+(features.blockEnd(feature, b)-features.blockStart(feature, b))+1;
+		}
+
+		// A transcript shorter than the number of bins would leave some empty
+		if (offsets[blockCount] < BINS) {
+			slots[feature] = SKIPPED;
+			return SKIPPED;
+		}
+
+		if (openCount == openFeatures.length) {
+			openFeatures = Arrays.copyOf(openFeatures, openCount*2);
+			exonOffsets = Arrays.copyOf(exonOffsets, openCount*2);
+			coverageChanges = Arrays.copyOf(coverageChanges, openCount*2);
+		}
+
+		openFeatures[openCount] = feature;
+		exonOffsets[openCount] = offsets;
+		coverageChanges[openCount] = new int[offsets[blockCount]+1];
+		++openCount;
+
+		if (features.end(feature) < nextEnd) nextEnd = features.end(feature);
+
+		slots[feature] = openCount;
+		return openCount;
+	}
+
+	private void close (int slot) {
+
+		int feature = openFeatures[slot];
+		int [] changes = coverageChanges[slot];
+		int length = changes.length-1;
+
+		// Each bin gets the mean coverage over its part of the transcript
+		Arrays.fill(binCoverage, 0);
+		long covering = 0;
+		double total = 0;
+		int position = 0;
+		for (int bin=0;bin<BINS;bin++) {
+			int binEnd = (int)((((long)bin+1)*length)/BINS);
+			long binSum = 0;
+			for (;position<binEnd;position++) {
+				covering += changes[position];
+				binSum += covering;
+			}
+			binCoverage[bin] = binSum/(double)(binEnd-((int)(((long)bin*length)/BINS)));
+			total += binCoverage[bin];
+		}
+
+		if (total > 0) {
+			boolean reverse = features.strand(feature) == Location.REVERSE;
+			for (int bin=0;bin<BINS;bin++) {
+				binTotals[reverse ? BINS-1-bin : bin] += binCoverage[bin]/total;
+			}
+			++transcriptCount;
+		}
+
+		// We won't see this transcript again on this chromosome, so the
+		// slot is left marked as used
+		slots[feature] = SKIPPED;
+
+		--openCount;
+		openFeatures[slot] = openFeatures[openCount];
+		exonOffsets[slot] = exonOffsets[openCount];
+		coverageChanges[slot] = coverageChanges[openCount];
+		exonOffsets[openCount] = null;
+		coverageChanges[openCount] = null;
+		if (slot < openCount) {
+			slots[openFeatures[slot]] = slot+1;
+		}
+	}
+
+	/**
+	 * Completes every transcript still open.  This should be called once
+	 * all of the reads have been seen.
+	 */
+	public void finish () {
+		while (openCount > 0) {
+			close(openCount-1);
+		}
+		if (features != null) {
+			Arrays.fill(slots, 0, features.size(), 0);
+		}
+		features = null;
+		nextEnd = Integer.MAX_VALUE;
+	}
+
+	/**
+	 * Gives up on measuring coverage, which we have to do if the reads
+	 * turn out not to be sorted.
+	 */
+	public void abandon () {
+		if (abandoned) return;
+		abandoned = true;
+		finish();
+		Arrays.fill(binTotals, 0);
+		transcriptCount = 0;
+	}
+
+	public boolean isAbandoned () {
+		return abandoned;
+	}
+
+	/**
+	 * The number of transcripts with reads which went into the totals.
+	 */
+	public long transcriptCount () {
+		return transcriptCount;
+	}
+
+	/**
+	 * The average share of each transcript's coverage falling into a bin.
+	 *
+	 * @param bin The bin, from 0 at the 5' end to BINS-1 at the 3' end
+	 * @return The percentage of coverage
+	 */
+	public double binPercentage (int bin) {
+		if (transcriptCount == 0) return 0;
+		return (binTotals[bin]*100)/transcriptCount;
+	}
+
+}
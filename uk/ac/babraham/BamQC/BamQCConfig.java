@@ -21,6 +21,8 @@ package uk.ac.babraham.BamQC;
 
 import java.io.File;
 
+import uk.ac.babraham.BamQC.Utilities.OffHeapLongMap;
+
 public class BamQCConfig {
 	
 	private static BamQCConfig instance = new BamQCConfig();
@@ -37,6 +39,16 @@ public class BamQCConfig {
 	public String lineSeparator = System.getProperty("line.separator");
 	public String sequence_format = null;
 	public File limits_file = null;
+	public File adapter_file = null;
+	public File alias_file = null;
+	public String strandedness = "none";
+	public boolean unique_features = false;
+	public File annotation_cache = null;
+	public int duplication_limit = 10000000;
+	public int complexity_limit = 10000000;
+	public int kmer_sample = 50;
+	public double overrepresented_error = 0.01;
+	public int mate_buffer = 1000000;
 
 	private BamQCConfig () {
 		
@@ -64,6 +76,50 @@ public class BamQCConfig {
 			}
 		}
 		
+		// Adapter file
+		if (System.getProperty("bamqc.adapter_file") != null) {
+			adapter_file = new File(System.getProperty("bamqc.adapter_file"));
+			if (!(adapter_file.exists() && adapter_file.canRead())) {
+				throw new IllegalArgumentException("Adapter file "+adapter_file+" doesn't exist or can't be read");
+			}
+		}
+		
+		// Chromosome alias file
+		if (System.getProperty("bamqc.alias_file") != null) {
+			alias_file = new File(System.getProperty("bamqc.alias_file"));
+			if (!(alias_file.exists() && alias_file.canRead())) {
+				throw new IllegalArgumentException("Alias file "+alias_file+" doesn't exist or can't be read");
+			}
+		}
+		
+		// Library strandedness
+		if (System.getProperty("bamqc.strandedness") != null) {
+			strandedness = System.getProperty("bamqc.strandedness");
+			if (!(strandedness.equals("none") || strandedness.equals("forward") || strandedness.equals("reverse"))) {
+				throw new IllegalArgumentException("Strandedness must be none, forward or reverse, not "+strandedness);
+			}
+		}
+		
+		// Unique feature assignment
+		if (System.getProperty("bamqc.unique_features") != null && System.getProperty("bamqc.unique_features").equals("true")) {
+			unique_features = true;
+		}
+		
+		// Precomputed annotation cache.  This doesn't need to exist yet
+		// since we'll build it if it's not there.
+		if (System.getProperty("bamqc.annotation_cache") != null) {
+			annotation_cache = new File(System.getProperty("bamqc.annotation_cache"));
+		}
+		
+		// The number of distinct positions the duplication module tracks
+		// before it starts sampling.  0 means no limit.
+		if (System.getProperty("bamqc.duplication_limit") != null) {
+			duplication_limit = Integer.parseInt(System.getProperty("bamqc.duplication_limit"));
+			if (duplication_limit < 0) {
+				throw new IllegalArgumentException("Duplication limit must be >= 0");
+			}
+		}
+		
 		// Threads
 		if (System.getProperty("bamqc.threads") != null) {
 			threads = Integer.parseInt(System.getProperty("bamqc.threads"));
@@ -72,11 +128,36 @@ public class BamQCConfig {
 			}
 		}
 		
-		// Threads
+		// Kmer size
 		if (System.getProperty("bamqc.kmer_size") != null) {
 			kmer_size = Integer.parseInt(System.getProperty("bamqc.kmer_size"));
 		}
+
+		// How many reads we take one from when counting kmers
+		if (System.getProperty("bamqc.kmer_sample") != null) {
+			kmer_sample = Integer.parseInt(System.getProperty("bamqc.kmer_sample"));
+			if (kmer_sample < 1) {
+				throw new IllegalArgumentException("Kmer sampling must be >= 1");
+			}
+		}
 		
+		// The most an overrepresented sequence count can be out by, as a
+		// percentage of all reads
+		if (System.getProperty("bamqc.overrepresented_error") != null) {
+			overrepresented_error = Double.parseDouble(System.getProperty("bamqc.overrepresented_error"));
+			if (overrepresented_error <= 0 || overrepresented_error >= 100) {
+				throw new IllegalArgumentException("Overrepresented sequence error must be between 0 and 100");
+			}
+		}
+
+		// How many mates we hold in memory while waiting for their pair
+		if (System.getProperty("bamqc.mate_buffer") != null) {
+			mate_buffer = Integer.parseInt(System.getProperty("bamqc.mate_buffer"));
+			if (mate_buffer < 1000) {
+				throw new IllegalArgumentException("Mate buffer must be at least 1000");
+			}
+		}
+
 		// Quiet
 		if (System.getProperty("bamqc.quiet") != null && System.getProperty("bamqc.quiet").equals("true")) {
 			quiet = true;
@@ -98,6 +179,27 @@ public class BamQCConfig {
 			do_unzip = true;
 		}
 		
+		// The duplication, library complexity and paired end modules keep
+		// their maps in direct memory, which has its own limit.  Each file
+		// we're processing at once gets an equal share, of which half goes
+		// to duplication and an eighth each to library complexity and the
+		// mate buffer, leaving the rest for everything else.  Anything the
+		// user didn't set is cut down to fit.
+		long directMemory = OffHeapLongMap.maxDirectMemory()/(threads == null ? 1 : threads);
+		
+		if (System.getProperty("bamqc.duplication_limit") == null) {
+			duplication_limit = (int)Math.max(1, Math.min(duplication_limit, OffHeapLongMap.entriesFitting(directMemory/2)));
+		}
+		
+		complexity_limit = (int)Math.max(1, Math.min(complexity_limit, OffHeapLongMap.entriesFitting(directMemory/8)));
+		if (duplication_limit > 0) {
+			complexity_limit = Math.min(complexity_limit, duplication_limit);
+		}
+		
+		if (System.getProperty("bamqc.mate_buffer") == null) {
+			mate_buffer = (int)Math.max(1000, Math.min(mate_buffer, OffHeapLongMap.entriesFitting(directMemory/8)));
+		}
+		
 	};
 
 	public static BamQCConfig getInstance() {
@@ -26,14 +26,16 @@ import javax.swing.filechooser.FileFilter;
 public class GFFFileFilter extends FileFilter {
 
 	public boolean accept(File f) {
-		if (f.isDirectory() || f.getName().toLowerCase().endsWith(".gff") || f.getName().toLowerCase().endsWith(".gff3") || f.getName().toLowerCase().endsWith(".gtf")) {
+		// We can read compressed annotation too
+		String name = f.getName().toLowerCase().replaceAll("\\.b?gz$", "");
+		if (f.isDirectory() || name.endsWith(".gff") || name.endsWith(".gff3") || name.endsWith(".gtf")) {
 			return true;
 		}
 		return false;
 	}
 
 	public String getDescription() {
-		return "BAM/SAM Files";
+		return "GFF/GTF Files";
 	}
 
 }
@@ -34,14 +34,14 @@ import uk.ac.babraham.BamQC.Utilities.HotColdColourGradient;
 public class TileGraph extends JPanel {
 
 	private String [] xLabels;
-	private int [] tiles;
+	private String [] tiles;
 	private double [][]tileBaseMeans;
 	private HotColdColourGradient gradient = new HotColdColourGradient();
 
 	private int height = -1;
 	private int width = -1;
 
-	public TileGraph (String [] xLabels, int [] tiles, double [][] tileBaseMeans) {
+	public TileGraph (String [] xLabels, String [] tiles, double [][] tileBaseMeans) {
 		this.xLabels = xLabels;
 		this.tiles = tiles;
 		this.tileBaseMeans = tileBaseMeans;
@@ -87,7 +87,7 @@ public class TileGraph extends JPanel {
 		int xOffset = 0;
 
 		for (int i=0;i<tiles.length;i++) {
-			String label = ""+tiles[i];
+			String label = tiles[i];
 			int width = g.getFontMetrics().stringWidth(label);
 			if (width > xOffset) {
 				xOffset = width;
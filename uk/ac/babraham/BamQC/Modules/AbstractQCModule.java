@@ -20,9 +20,11 @@
 
 package uk.ac.babraham.BamQC.Modules;
 
+import java.awt.Graphics;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
 
+import javax.swing.JPanel;
 import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.XMLStreamWriter;
 import javax.swing.table.TableModel;
@@ -48,6 +50,18 @@ public abstract class AbstractQCModule implements QCModule {
 		xhtml.writeEndElement();//p
 	}
 
+	/**
+	 * Draws one of our graphs into the report as an image.
+	 */
+	protected void writeGraph(HTMLReportArchive report, JPanel graph, String alt) throws XMLStreamException {
+		BufferedImage img = new BufferedImage(800, 600, BufferedImage.TYPE_INT_RGB);
+		graph.setSize(img.getWidth(), img.getHeight());
+		Graphics g = img.getGraphics();
+		graph.paint(g);
+		g.dispose();
+		simpleXhtmlReport(report, img, alt);
+	}
+
 	protected void writeTable(HTMLReportArchive report, TableModel table) throws IOException,XMLStreamException {
 		writeXhtmlTable(report,table);
 		writeTextTable(report,table);	
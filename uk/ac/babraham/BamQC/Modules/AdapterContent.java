@@ -0,0 +1,349 @@
+/**
+ * Copyright Copyright 2014 Simon Andrews
+ *
+ *    This file is part of BamQC.
+ *
+ *    BamQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    BamQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with BamQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.babraham.BamQC.Modules;
+
+import java.io.BufferedReader;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.Arrays;
+import java.util.Vector;
+
+import javax.swing.JPanel;
+import javax.swing.table.AbstractTableModel;
+import javax.xml.stream.XMLStreamException;
+
+import net.sf.samtools.SAMRecord;
+import uk.ac.babraham.BamQC.BamQCConfig;
+import uk.ac.babraham.BamQC.Annotation.AnnotationSet;
+import uk.ac.babraham.BamQC.Graphs.BaseGroup;
+import uk.ac.babraham.BamQC.Graphs.LineGraph;
+import uk.ac.babraham.BamQC.Report.HTMLReportArchive;
+import uk.ac.babraham.BamQC.Sequence.PackedRecord;
+import uk.ac.babraham.BamQC.Sequence.SequenceFile;
+import uk.ac.babraham.BamQC.Utilities.AhoCorasick;
+
+/**
+ * Shows how many reads have read through into an adapter by each
+ * position.  As in FastQC, once an adapter has been seen in a read it's
+ * counted at that position and every one after it, so the plot shows the
+ * fraction of the library which would be lost if reads were trimmed back
+ * to each length.
+ *
+ * All of the adapters are searched for together with an Aho-Corasick
+ * automaton, so each read is scanned once whatever the number of
+ * adapters, and we only record the first hit for each.
+ *
+ * Adapter sequence doesn't match the genome, so a read which runs into
+ * one is either left unmapped or has the end soft clipped.  Only those
+ * reads are searched.  Reads which aligned end to end still count towards
+ * the total, but we don't spend any time looking in them.
+ */
+public class AdapterContent extends AbstractQCModule {
+
+	// The A, C, G or T each 4 bit code stands for as 0-3, and -1 for
+	// anything else, as read and complemented.
+	private static final int [] SYMBOLS = new int[16];
+	private static final int [] COMPLEMENT_SYMBOLS = new int[16];
+
+	static {
+		for (int code=0;code<16;code++) {
+			int symbol = "ACGT".indexOf(PackedRecord.BASE_CODES.charAt(code));
+			SYMBOLS[code] = symbol;
+			COMPLEMENT_SYMBOLS[code] = symbol < 0 ? -1 : 3-symbol;
+		}
+	}
+
+	private String [] adapterNames;
+	private AhoCorasick automaton;
+	private long allAdapters;
+
+	private PackedRecord record = new PackedRecord();
+
+	// The number of reads where each adapter was first seen at each
+	// position, indexed by (position * adapters) + adapter.  These are
+	// added up along the read at the end.
+	private long [] firstHits;
+
+	private int maxLength = 0;
+	private long totalReads = 0;
+	private long searchedReads = 0;
+
+	private boolean calculated = false;
+
+	// The percentage of reads with each adapter by each position
+	private double [][] enrichments = new double[0][0];
+	private double maxEnrichment = 0;
+
+	public AdapterContent () {
+
+		Vector<String> names = new Vector<String>();
+		Vector<String> sequences = new Vector<String>();
+
+		try {
+			readAdapters(names, sequences);
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+		}
+
+		if (sequences.size() > AhoCorasick.MAX_PATTERNS) {
+			System.err.println("Only the first "+AhoCorasick.MAX_PATTERNS+" adapters will be searched for");
+			names.setSize(AhoCorasick.MAX_PATTERNS);
+			sequences.setSize(AhoCorasick.MAX_PATTERNS);
+		}
+
+		adapterNames = names.toArray(new String[0]);
+		automaton = new AhoCorasick(sequences.toArray(new String[0]));
+		allAdapters = adapterNames.length == 64 ? -1L : (1L<<adapterNames.length)-1;
+
+		reset();
+	}
+
+	private static void readAdapters (Vector<String> names, Vector<String> sequences) throws IOException {
+
+		BufferedReader br;
+
+		if (BamQCConfig.getInstance().adapter_file == null) {
+			InputStream rsrc = AdapterContent.class.getResourceAsStream("/Configuration/adapter_list.txt");
+			if (rsrc == null) throw new FileNotFoundException("cannot find Configuration/adapter_list.txt");
+			br = new BufferedReader(new InputStreamReader(rsrc));
+		}
+		else {
+			br = new BufferedReader(new FileReader(BamQCConfig.getInstance().adapter_file));
+		}
+
+		String line;
+		while ((line = br.readLine()) != null) {
+
+			if (line.startsWith("#")) continue;
+
+			if (line.trim().length() == 0) continue;
+
+			// The name can have spaces in it, so the sequence is whatever
+			// comes after the last tab
+			String [] sections = line.split("\\t+");
+			if (sections.length < 2) {
+				System.err.println("Expected 2 sections for adapter line but got "+sections.length+" from "+line);
+				continue;
+			}
+
+			String sequence = sections[sections.length-1].trim().toUpperCase();
+			if (!sequence.matches("[ACGT]+")) {
+				System.err.println("Adapter sequence "+sequence+" can only contain A, C, G or T");
+				continue;
+			}
+
+			StringBuffer name = new StringBuffer(sections[0].trim());
+			for (int s=1;s<sections.length-1;s++) {
+				name.append(" ");
+				name.append(sections[s].trim());
+			}
+
+			names.add(name.toString());
+			sequences.add(sequence);
+		}
+
+		br.close();
+	}
+
+	public void processSequence(SAMRecord read) {
+
+		if (read.isSecondaryOrSupplementary()) return;
+
+		record.load(read);
+
+		int cigarCount = record.cigarCount();
+		int readLength = record.readLength();
+		boolean mapped = !read.getReadUnmappedFlag();
+		boolean reverse = mapped && read.getReadNegativeStrandFlag();
+
+		int leadingClip = record.leadingHardClip();
+		int trailingClip = record.trailingHardClip();
+		boolean softClipped = false;
+		for (int c=0;c<cigarCount;c++) {
+			if (record.cigarOperator(c) == PackedRecord.CIGAR_SOFT_CLIP) {
+				softClipped = true;
+				break;
+			}
+		}
+		int fullLength = leadingClip+readLength+trailingClip;
+		if (fullLength == 0) return;
+
+		++totalReads;
+		if (fullLength > maxLength) {
+			maxLength = fullLength;
+			if (maxLength*adapterNames.length > firstHits.length) {
+				firstHits = Arrays.copyOf(firstHits, Math.max(firstHits.length*2, maxLength*adapterNames.length));
+			}
+		}
+
+		if (mapped && !softClipped) return;
+		if (adapterNames.length == 0) return;
+
+		++searchedReads;
+
+		int offset = reverse ? trailingClip : leadingClip;
+		int [] symbols = reverse ? COMPLEMENT_SYMBOLS : SYMBOLS;
+		int state = AhoCorasick.START;
+		long found = 0;
+
+		for (int i=0;i<readLength;i++) {
+			int symbol = symbols[record.baseCode(reverse ? readLength-1-i : i)];
+			if (symbol < 0) {
+				state = AhoCorasick.START;
+				continue;
+			}
+
+			state = automaton.next(state, symbol);
+			long matches = automaton.matches(state) & ~found;
+			if (matches == 0) continue;
+
+			found |= matches;
+			for (int a=0;a<adapterNames.length;a++) {
+				if ((matches & (1L<<a)) != 0) {
+					int position = offset+i+1-automaton.patternLength(a);
+					++firstHits[(position*adapterNames.length)+a];
+				}
+			}
+			if (found == allAdapters) break;
+		}
+	}
+
+	private synchronized void calculateEnrichment () {
+
+		if (calculated) return;
+		calculated = true;
+
+		enrichments = new double[adapterNames.length][maxLength];
+		maxEnrichment = 0;
+		if (totalReads == 0) return;
+
+		for (int a=0;a<adapterNames.length;a++) {
+			long running = 0;
+			for (int position=0;position<maxLength;position++) {
+				running += firstHits[(position*adapterNames.length)+a];
+				enrichments[a][position] = (running*100d)/totalReads;
+				if (enrichments[a][position] > maxEnrichment) maxEnrichment = enrichments[a][position];
+			}
+		}
+	}
+
+	public void processFile(SequenceFile file) {}
+
+	public void processAnnotationSet(AnnotationSet annotation) {}
+
+	public JPanel getResultsPanel() {
+		calculateEnrichment();
+
+		BaseGroup [] groups = BaseGroup.makeBaseGroups(maxLength);
+		String [] labels = new String[groups.length];
+		double [][] data = new double[adapterNames.length][groups.length];
+
+		for (int g=0;g<groups.length;g++) {
+			labels[g] = groups[g].toString();
+			for (int a=0;a<adapterNames.length;a++) {
+				double total = 0;
+				for (int position=groups[g].lowerCount()-1;position<groups[g].upperCount();position++) {
+					total += enrichments[a][position];
+				}
+				data[a][g] = total/((groups[g].upperCount()-groups[g].lowerCount())+1);
+			}
+		}
+
+		return new LineGraph(data, 0d, 100d, "Position in read (bp)", adapterNames, labels, "% Adapter ("+searchedReads+" unmapped or clipped reads searched)");
+	}
+
+	public String name() {
+		return "Adapter Content";
+	}
+
+	public String description() {
+		return "Searches for specific adapter sequences in a library";
+	}
+
+	public void reset() {
+		firstHits = new long[150*adapterNames.length];
+		maxLength = 0;
+		totalReads = 0;
+		searchedReads = 0;
+		calculated = false;
+		enrichments = new double[0][0];
+		maxEnrichment = 0;
+	}
+
+	public boolean raisesError() {
+		calculateEnrichment();
+		return maxEnrichment > ModuleConfig.getParam("adapter", "error");
+	}
+
+	public boolean raisesWarning() {
+		calculateEnrichment();
+		return maxEnrichment > ModuleConfig.getParam("adapter", "warn");
+	}
+
+	public boolean needsToSeeSequences() {
+		return true;
+	}
+
+	public boolean needsToSeeAnnotation() {
+		return false;
+	}
+
+	public boolean ignoreInReport() {
+		return ModuleConfig.getParam("adapter", "ignore") > 0 || adapterNames.length == 0 || totalReads == 0;
+	}
+
+	public void makeReport(HTMLReportArchive report) throws XMLStreamException, IOException {
+		writeGraph(report, getResultsPanel(), "Adapter graph");
+		super.writeTable(report, new ResultsTable());
+	}
+
+	@SuppressWarnings("serial")
+	private class ResultsTable extends AbstractTableModel {
+
+		// Position then one column per adapter
+		public int getColumnCount() {
+			return adapterNames.length+1;
+		}
+
+		public int getRowCount() {
+			return maxLength;
+		}
+
+		public Object getValueAt(int rowIndex, int columnIndex) {
+			if (columnIndex == 0) return rowIndex+1;
+			return enrichments[columnIndex-1][rowIndex];
+		}
+
+		public String getColumnName (int columnIndex) {
+			if (columnIndex == 0) return "Position";
+			return adapterNames[columnIndex-1];
+		}
+
+		public Class<?> getColumnClass (int columnIndex) {
+			if (columnIndex == 0) return Integer.class;
+			return Double.class;
+		}
+	}
+
+}
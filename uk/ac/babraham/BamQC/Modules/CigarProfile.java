@@ -0,0 +1,320 @@
+/**
+ * Copyright Copyright 2014 Simon Andrews
+ *
+ *    This file is part of BamQC.
+ *
+ *    BamQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    BamQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with BamQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.babraham.BamQC.Modules;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import javax.swing.JPanel;
+import javax.swing.table.AbstractTableModel;
+import javax.xml.stream.XMLStreamException;
+
+import net.sf.samtools.SAMRecord;
+import uk.ac.babraham.BamQC.Annotation.AnnotationSet;
+import uk.ac.babraham.BamQC.Graphs.BaseGroup;
+import uk.ac.babraham.BamQC.Graphs.LineGraph;
+import uk.ac.babraham.BamQC.Report.HTMLReportArchive;
+import uk.ac.babraham.BamQC.Sequence.PackedRecord;
+import uk.ac.babraham.BamQC.Sequence.SequenceFile;
+
+/**
+ * Shows how often reads are soft clipped, contain insertions or
+ * deletions, or are split over a skipped region, at each sequencing
+ * cycle and separately for each strand.  Clipping which builds up
+ * towards the end of the reads usually means they ran through into the
+ * adapter, and a sudden change between the strands often means the
+ * aligner wasn't set up properly.
+ *
+ * Clipped and inserted bases are counted at their own cycle.  Deletions
+ * and skipped regions sit between two bases, so we count them at the
+ * cycle of the base which comes before them in the read as it was
+ * sequenced.
+ */
+public class CigarProfile extends AbstractQCModule {
+
+	private static final String [] STRAND_NAMES = new String [] {"Forward", "Reverse"};
+	private static final String [] EVENT_NAMES = new String [] {"soft clipped", "insertion", "deletion", "skipped"};
+
+	private static final int SOFT_CLIP = 0;
+	private static final int INSERTION = 1;
+	private static final int DELETION = 2;
+	private static final int SKIPPED = 3;
+
+	// Each cycle has a count for every event on each strand
+	private static final int SLOTS = STRAND_NAMES.length*EVENT_NAMES.length;
+
+	private PackedRecord record = new PackedRecord();
+
+	// Indexed by (cycle * SLOTS) + (strand * EVENT_NAMES.length) + event
+	private long [] counts = new long[150*SLOTS];
+
+	// The number of reads of each full length on each strand, indexed by
+	// ((length-1) * 2) + strand, from which we work out how many reads
+	// reached each cycle.
+	private long [] readLengths = new long[150*STRAND_NAMES.length];
+
+	private int maxLength = 0;
+	private long [] reads = new long[STRAND_NAMES.length];
+
+	// Reads whose CIGAR doesn't account for their sequence, such as those
+	// stored without one, which we can't place events in
+	private long unreadableReads = 0;
+
+	public void processSequence(SAMRecord read) {
+
+		if (read.getReadUnmappedFlag() || read.isSecondaryOrSupplementary()) return;
+
+		record.load(read);
+
+		int cigarCount = record.cigarCount();
+		int readLength = record.readLength();
+
+		int queryLength = 0;
+		for (int c=0;c<cigarCount;c++) {
+			switch (record.cigarOperator(c)) {
+				case PackedRecord.CIGAR_MATCH:
+				case PackedRecord.CIGAR_SEQUENCE_MATCH:
+				case PackedRecord.CIGAR_SEQUENCE_MISMATCH:
+				case PackedRecord.CIGAR_SOFT_CLIP:
+				case PackedRecord.CIGAR_INSERTION:
+					queryLength += record.cigarLength(c);
+			}
+		}
+		if (queryLength != readLength) {
+			++unreadableReads;
+			return;
+		}
+
+		int leadingClip = record.leadingHardClip();
+		int trailingClip = record.trailingHardClip();
+		int fullLength = leadingClip+readLength+trailingClip;
+		if (fullLength == 0) return;
+
+		if (fullLength*SLOTS > counts.length) {
+			counts = Arrays.copyOf(counts, Math.max(counts.length*2, fullLength*SLOTS));
+		}
+		if (fullLength*STRAND_NAMES.length > readLengths.length) {
+			readLengths = Arrays.copyOf(readLengths, Math.max(readLengths.length*2, fullLength*STRAND_NAMES.length));
+		}
+		if (fullLength > maxLength) maxLength = fullLength;
+
+		boolean reverse = read.getReadNegativeStrandFlag();
+		int strand = reverse ? 1 : 0;
+
+		++readLengths[((fullLength-1)*STRAND_NAMES.length)+strand];
+		++reads[strand];
+
+		int strandOffset = strand*EVENT_NAMES.length;
+		int position = leadingClip;
+
+		for (int c=0;c<cigarCount;c++) {
+			int length = record.cigarLength(c);
+
+			switch (record.cigarOperator(c)) {
+
+				case PackedRecord.CIGAR_MATCH:
+				case PackedRecord.CIGAR_SEQUENCE_MATCH:
+				case PackedRecord.CIGAR_SEQUENCE_MISMATCH:
+					position += length;
+					break;
+
+				case PackedRecord.CIGAR_SOFT_CLIP:
+				case PackedRecord.CIGAR_INSERTION:
+					int event = record.cigarOperator(c) == PackedRecord.CIGAR_SOFT_CLIP ? SOFT_CLIP : INSERTION;
+					for (int i=0;i<length;i++,position++) {
+						int cycle = reverse ? fullLength-1-position : position;
+						++counts[(cycle*SLOTS)+strandOffset+event];
+					}
+					break;
+
+				case PackedRecord.CIGAR_DELETION:
+				case PackedRecord.CIGAR_SKIPPED:
+					// On the reverse strand the base before the gap in the
+					// sequenced read is the one after it in the alignment
+					int cycle = reverse ? fullLength-1-position : position-1;
+					if (cycle < 0 || cycle >= fullLength) break;
+					int gap = record.cigarOperator(c) == PackedRecord.CIGAR_DELETION ? DELETION : SKIPPED;
+					++counts[(cycle*SLOTS)+strandOffset+gap];
+					break;
+			}
+		}
+	}
+
+	/**
+	 * Works out how many reads on each strand reached each cycle.
+	 *
+	 * @return Indexed by (cycle * 2) + strand
+	 */
+	private long [] readsByCycle () {
+		long [] covering = new long[maxLength*STRAND_NAMES.length];
+		long [] running = new long[STRAND_NAMES.length];
+		for (int cycle=maxLength-1;cycle>=0;cycle--) {
+			for (int s=0;s<STRAND_NAMES.length;s++) {
+				running[s] += readLengths[(cycle*STRAND_NAMES.length)+s];
+				covering[(cycle*STRAND_NAMES.length)+s] = running[s];
+			}
+		}
+		return covering;
+	}
+
+	private long total (int strand, int event) {
+		long total = 0;
+		for (int cycle=0;cycle<maxLength;cycle++) {
+			total += counts[(cycle*SLOTS)+(strand*EVENT_NAMES.length)+event];
+		}
+		return total;
+	}
+
+	public void processFile(SequenceFile file) {}
+
+	public void processAnnotationSet(AnnotationSet annotation) {}
+
+	public JPanel getResultsPanel() {
+
+		long [] covering = readsByCycle();
+		BaseGroup [] groups = BaseGroup.makeBaseGroups(maxLength);
+		String [] labels = new String[groups.length];
+		for (int g=0;g<groups.length;g++) {
+			labels[g] = groups[g].toString();
+		}
+
+		// We leave out anything which never happened, such as skipped
+		// regions in genomic data
+		int seriesCount = 0;
+		for (int s=0;s<STRAND_NAMES.length;s++) {
+			for (int e=0;e<EVENT_NAMES.length;e++) {
+				if (total(s, e) > 0) ++seriesCount;
+			}
+		}
+
+		double [][] data = new double[seriesCount][groups.length];
+		String [] seriesNames = new String[seriesCount];
+		double maxY = 0;
+		int series = 0;
+
+		for (int e=0;e<EVENT_NAMES.length;e++) {
+			for (int s=0;s<STRAND_NAMES.length;s++) {
+				if (total(s, e) == 0) continue;
+				seriesNames[series] = STRAND_NAMES[s]+" "+EVENT_NAMES[e];
+
+				for (int g=0;g<groups.length;g++) {
+					long events = 0;
+					long readCount = 0;
+					for (int cycle=groups[g].lowerCount()-1;cycle<groups[g].upperCount();cycle++) {
+						events += counts[(cycle*SLOTS)+(s*EVENT_NAMES.length)+e];
+						readCount += covering[(cycle*STRAND_NAMES.length)+s];
+					}
+					data[series][g] = readCount == 0 ? 0 : (events*100d)/readCount;
+					if (data[series][g] > maxY) maxY = data[series][g];
+				}
+				++series;
+			}
+		}
+
+		String title = "Clipping, indels and skipped regions (% of reads at each position)";
+		if (unreadableReads > 0) {
+			title += " - "+unreadableReads+" reads whose CIGAR didn't match their sequence left out";
+		}
+
+		return new LineGraph(data, 0d, Math.max(maxY, 1d), "Position in read (bp)", seriesNames, labels, title);
+	}
+
+	public String name() {
+		return "CIGAR Profile";
+	}
+
+	public String description() {
+		return "Shows the rates of clipping, indels and skipped regions along the reads";
+	}
+
+	public void reset() {
+		counts = new long[150*SLOTS];
+		readLengths = new long[150*STRAND_NAMES.length];
+		maxLength = 0;
+		reads = new long[STRAND_NAMES.length];
+		unreadableReads = 0;
+	}
+
+	public boolean raisesError() {
+		return false;
+	}
+
+	public boolean raisesWarning() {
+		return false;
+	}
+
+	public boolean needsToSeeSequences() {
+		return true;
+	}
+
+	public boolean needsToSeeAnnotation() {
+		return false;
+	}
+
+	public boolean ignoreInReport() {
+		return ModuleConfig.getParam("cigar", "ignore") > 0 || maxLength == 0;
+	}
+
+	public void makeReport(HTMLReportArchive report) throws XMLStreamException, IOException {
+		writeGraph(report, getResultsPanel(), "CIGAR profile graph");
+		super.writeTable(report, new ResultsTable());
+	}
+
+	@SuppressWarnings("serial")
+	private class ResultsTable extends AbstractTableModel {
+
+		// Strand - Reads - then the events per 100 reads
+		public int getColumnCount() {
+			return 2+EVENT_NAMES.length;
+		}
+
+		public int getRowCount() {
+			return STRAND_NAMES.length;
+		}
+
+		public Object getValueAt(int rowIndex, int columnIndex) {
+			if (columnIndex == 0) return STRAND_NAMES[rowIndex];
+			if (columnIndex == 1) return reads[rowIndex];
+			if (reads[rowIndex] == 0) return 0f;
+			return (float)((total(rowIndex, columnIndex-2)*100d)/reads[rowIndex]);
+		}
+
+		public String getColumnName (int columnIndex) {
+			switch (columnIndex) {
+				case 0: return "Strand";
+				case 1: return "Reads";
+				case 2: return "Soft clipped bases per 100 reads";
+				case 3: return "Inserted bases per 100 reads";
+				case 4: return "Deletions per 100 reads";
+				case 5: return "Skipped regions per 100 reads";
+			}
+			return null;
+		}
+
+		public Class<?> getColumnClass (int columnIndex) {
+			switch (columnIndex) {
+				case 0: return String.class;
+				case 1: return Long.class;
+			}
+			return Float.class;
+		}
+	}
+
+}
@@ -0,0 +1,426 @@
+/**
+ * Copyright Copyright 2014 Simon Andrews
+ *
+ *    This file is part of BamQC.
+ *
+ *    BamQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    BamQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with BamQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.babraham.BamQC.Modules;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import javax.swing.JPanel;
+import javax.swing.table.AbstractTableModel;
+import javax.xml.stream.XMLStreamException;
+
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.SAMSequenceDictionary;
+import uk.ac.babraham.BamQC.Annotation.AnnotationSet;
+import uk.ac.babraham.BamQC.Graphs.LineGraph;
+import uk.ac.babraham.BamQC.Report.HTMLReportArchive;
+import uk.ac.babraham.BamQC.Sequence.PackedRecord;
+import uk.ac.babraham.BamQC.Sequence.SequenceFile;
+
+/**
+ * Measures the depth of coverage at every base of the genome, and says
+ * how much of it is covered to 1, 10, 20 and 30x along with the mean and
+ * median depth.  Like samtools depth and mosdepth we leave out
+ * duplicates, reads which failed QC and secondary alignments.  Deletions
+ * count as covered but spliced introns don't.
+ *
+ * This needs reads sorted by position.  Each aligned block adds one to
+ * a difference array where it starts and takes one off after it ends.
+ * Once a read starting at some position arrives no later read can change
+ * anything before it, so the depths up to there are added to the
+ * histogram and their part of the array is reused.  The array is a ring
+ * in a direct buffer, so it only has to be as long as the longest read,
+ * not the chromosome.  Stretches with no changes waiting, such as the
+ * gaps between reads, are added to the histogram in one go.
+ */
+public class DepthOfCoverage extends AbstractQCModule {
+
+	// Depths at or above this all go in the last bin of the histogram
+	private static final int MAX_DEPTH = 10000;
+
+	private static final int [] THRESHOLDS = new int [] {1, 10, 20, 30};
+
+	// 2^20 positions, which is 4MB
+	private static final int INITIAL_WINDOW_BITS = 20;
+
+	private PackedRecord record = new PackedRecord();
+
+	private boolean sorted = true;
+	private int [] referenceLengths = new int[0];
+	private long genomeLength = 0;
+
+	// The ring of changes in depth, indexed by position & windowMask
+	private ByteBuffer changes = null;
+	private int windowMask;
+
+	// Where we are in the current chromosome.  Everything before
+	// windowStart is in the histogram, and the furthest change we're
+	// holding is at lastChange.
+	private int reference = -1;
+	private int windowStart = 1;
+	private int lastChange = 0;
+	private int lastStart = 0;
+	private int depth = 0;
+
+	private long [] depthCounts = new long[MAX_DEPTH+1];
+	private long totalDepth = 0;
+	private long basesCounted = 0;
+	private long readsCounted = 0;
+
+	private boolean calculated = false;
+
+	// The number of bases at each depth or more
+	private long [] basesAtLeast = new long[MAX_DEPTH+1];
+	private double medianDepth = 0;
+	private double [] thresholdPercentages = new double[THRESHOLDS.length];
+
+	public DepthOfCoverage () {
+		reset();
+	}
+
+	public void processSequence(SAMRecord read) {
+
+		if (!sorted) return;
+
+		if (read.getReadUnmappedFlag() || read.isSecondaryOrSupplementary()) return;
+		if (read.getDuplicateReadFlag() || read.getReadFailsVendorQualityCheckFlag()) return;
+
+		int readReference = read.getReferenceIndex();
+		if (readReference < 0) return;
+
+		int start = read.getAlignmentStart();
+
+		if (readReference != reference) {
+			if (readReference < reference) {
+				stopMeasuring();
+				return;
+			}
+			finishReference();
+			reference = readReference;
+			windowStart = 1;
+			lastChange = 0;
+			lastStart = 0;
+			depth = 0;
+		}
+
+		if (start < lastStart) {
+			stopMeasuring();
+			return;
+		}
+		lastStart = start;
+		++readsCounted;
+
+		if (changes == null) {
+			changes = ByteBuffer.allocateDirect((1<<INITIAL_WINDOW_BITS)<<2).order(ByteOrder.nativeOrder());
+			windowMask = (1<<INITIAL_WINDOW_BITS)-1;
+		}
+
+		// Nothing from here on can start before this read, so everything
+		// before it is finished
+		addDepths(start);
+
+		record.load(read);
+
+		int position = start;
+		int blockStart = start;
+		int cigarCount = record.cigarCount();
+		for (int c=0;c<cigarCount;c++) {
+			int operator = record.cigarOperator(c);
+			if (operator == PackedRecord.CIGAR_SKIPPED) {
+				addBlock(blockStart, position-1);
+				position += record.cigarLength(c);
+				blockStart = position;
+			}
+			else if (operator == PackedRecord.CIGAR_MATCH || operator == PackedRecord.CIGAR_DELETION || operator == PackedRecord.CIGAR_SEQUENCE_MATCH || operator == PackedRecord.CIGAR_SEQUENCE_MISMATCH) {
+				position += record.cigarLength(c);
+			}
+		}
+		addBlock(blockStart, position-1);
+	}
+
+	private void stopMeasuring () {
+		System.err.println("Reads aren't sorted by position, so depth of coverage won't be measured");
+		sorted = false;
+		changes = null;
+	}
+
+	private void addBlock (int start, int end) {
+		if (end < start) return;
+
+		if ((end+1)-windowStart > windowMask) {
+			growWindow((end+1)-windowStart);
+		}
+
+		addChange(start, 1);
+		addChange(end+1, -1);
+		if (end+1 > lastChange) lastChange = end+1;
+	}
+
+	private void addChange (int position, int change) {
+		int offset = (position & windowMask)<<2;
+		changes.putInt(offset, changes.getInt(offset)+change);
+	}
+
+	/**
+	 * Makes the ring big enough to hold changes this far past windowStart.
+	 */
+	private void growWindow (int span) {
+		int size = windowMask+1;
+		while (span >= size) {
+			size *= 2;
+		}
+
+		ByteBuffer newChanges = ByteBuffer.allocateDirect(size<<2).order(ByteOrder.nativeOrder());
+		int newMask = size-1;
+		for (int position=windowStart;position<=lastChange;position++) {
+			newChanges.putInt((position & newMask)<<2, changes.getInt((position & windowMask)<<2));
+		}
+
+		changes = newChanges;
+		windowMask = newMask;
+	}
+
+	/**
+	 * Adds the depths of everything from windowStart up to, but not
+	 * including, a position to the histogram.
+	 */
+	private void addDepths (int upTo) {
+		if (upTo <= windowStart) return;
+
+		// Only positions up to lastChange can have anything waiting
+		int scanTo = Math.min(upTo, lastChange+1);
+		int runStart = windowStart;
+		for (int position=windowStart;position<scanTo;position++) {
+			int offset = (position & windowMask)<<2;
+			int change = changes.getInt(offset);
+			if (change != 0) {
+				countBases(depth, position-runStart);
+				depth += change;
+				runStart = position;
+				changes.putInt(offset, 0);
+			}
+		}
+		countBases(depth, upTo-runStart);
+
+		windowStart = upTo;
+	}
+
+	private void countBases (int depth, long bases) {
+		if (bases <= 0) return;
+		depthCounts[Math.min(depth, MAX_DEPTH)] += bases;
+		totalDepth += depth*bases;
+		basesCounted += bases;
+	}
+
+	/**
+	 * Adds the rest of the current chromosome to the histogram.
+	 */
+	private void finishReference () {
+		if (reference < 0) return;
+
+		int end = lastChange+1;
+		if (reference < referenceLengths.length && referenceLengths[reference]+1 > end) {
+			end = referenceLengths[reference]+1;
+		}
+		addDepths(end);
+		reference = -1;
+	}
+
+	private synchronized void calculateDepths () {
+
+		if (calculated) return;
+		calculated = true;
+
+		if (!sorted) return;
+
+		finishReference();
+
+		// Chromosomes without any reads are all at zero depth
+		if (genomeLength > basesCounted) {
+			depthCounts[0] += genomeLength-basesCounted;
+			basesCounted = genomeLength;
+		}
+
+		if (basesCounted == 0) return;
+
+		long running = 0;
+		for (int d=MAX_DEPTH;d>=0;d--) {
+			running += depthCounts[d];
+			basesAtLeast[d] = running;
+		}
+
+		medianDepth = 0;
+		for (int d=MAX_DEPTH;d>=0;d--) {
+			if (basesAtLeast[d]*2 > basesCounted) {
+				medianDepth = d;
+				break;
+			}
+		}
+
+		for (int t=0;t<THRESHOLDS.length;t++) {
+			thresholdPercentages[t] = (basesAtLeast[THRESHOLDS[t]]*100d)/basesCounted;
+		}
+	}
+
+	private double meanDepth () {
+		if (basesCounted == 0) return 0;
+		return totalDepth/(double)basesCounted;
+	}
+
+	public void processFile(SequenceFile file) {
+		if (!file.isCoordinateSorted()) {
+			sorted = false;
+			changes = null;
+			return;
+		}
+
+		SAMSequenceDictionary dictionary = file.getSequenceDictionary();
+		if (dictionary == null) return;
+
+		referenceLengths = new int[dictionary.size()];
+		genomeLength = 0;
+		for (int s=0;s<referenceLengths.length;s++) {
+			referenceLengths[s] = dictionary.getSequence(s).getSequenceLength();
+			genomeLength += referenceLengths[s];
+		}
+	}
+
+	public void processAnnotationSet(AnnotationSet annotation) {}
+
+	public JPanel getResultsPanel() {
+		calculateDepths();
+
+		// We show depths until less than 1% of the genome is that deep,
+		// and no fewer than the highest threshold
+		int maxShown = THRESHOLDS[THRESHOLDS.length-1];
+		while (maxShown < MAX_DEPTH && basesAtLeast[maxShown+1]*100 >= basesCounted) {
+			++maxShown;
+		}
+		int step = (maxShown/100)+1;
+
+		int points = (maxShown/step)+1;
+		double [] percentages = new double[points];
+		String [] labels = new String[points];
+		for (int p=0;p<points;p++) {
+			labels[p] = ""+(p*step);
+			percentages[p] = basesCounted == 0 ? 0 : (basesAtLeast[p*step]*100d)/basesCounted;
+		}
+
+		return new LineGraph(new double [][] {percentages}, 0d, 100d, "Depth of coverage (x)", new String [] {"% Genome at this depth or more"}, labels, String.format("Genome coverage (mean depth %.1fx)", meanDepth()));
+	}
+
+	public String name() {
+		return "Depth of coverage";
+	}
+
+	public String description() {
+		return "Measures the depth of coverage over the genome";
+	}
+
+	public void reset() {
+		sorted = true;
+		referenceLengths = new int[0];
+		genomeLength = 0;
+		changes = null;
+		reference = -1;
+		windowStart = 1;
+		lastChange = 0;
+		lastStart = 0;
+		depth = 0;
+		depthCounts = new long[MAX_DEPTH+1];
+		totalDepth = 0;
+		basesCounted = 0;
+		readsCounted = 0;
+		calculated = false;
+		basesAtLeast = new long[MAX_DEPTH+1];
+		medianDepth = 0;
+		thresholdPercentages = new double[THRESHOLDS.length];
+	}
+
+	public boolean raisesError() {
+		return false;
+	}
+
+	public boolean raisesWarning() {
+		return false;
+	}
+
+	public boolean needsToSeeSequences() {
+		return true;
+	}
+
+	public boolean needsToSeeAnnotation() {
+		return false;
+	}
+
+	public boolean ignoreInReport() {
+		return ModuleConfig.getParam("depth", "ignore") > 0 || !sorted || readsCounted == 0;
+	}
+
+	public void makeReport(HTMLReportArchive report) throws XMLStreamException, IOException {
+		writeGraph(report, getResultsPanel(), "Depth of coverage graph");
+		super.writeTable(report, new ResultsTable());
+	}
+
+	@SuppressWarnings("serial")
+	private class ResultsTable extends AbstractTableModel {
+
+		// Mean, median, then one row per threshold
+		public int getColumnCount() {
+			return 2;
+		}
+
+		public int getRowCount() {
+			return 2+THRESHOLDS.length;
+		}
+
+		public Object getValueAt(int rowIndex, int columnIndex) {
+			switch (columnIndex) {
+				case 0:
+					if (rowIndex == 0) return "Mean depth";
+					if (rowIndex == 1) return "Median depth";
+					return "Percentage of genome at "+THRESHOLDS[rowIndex-2]+"x or more";
+				case 1:
+					if (rowIndex == 0) return meanDepth();
+					if (rowIndex == 1) return medianDepth;
+					return thresholdPercentages[rowIndex-2];
+			}
+			return null;
+		}
+
+		public String getColumnName (int columnIndex) {
+			switch (columnIndex) {
+				case 0: return "Measure";
+				case 1: return "Value";
+			}
+			return null;
+		}
+
+		public Class<?> getColumnClass (int columnIndex) {
+			switch (columnIndex) {
+				case 0: return String.class;
+				case 1: return Double.class;
+			}
+			return null;
+		}
+	}
+
+}
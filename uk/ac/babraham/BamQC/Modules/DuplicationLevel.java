@@ -0,0 +1,455 @@
+/**
+ * Copyright Copyright 2014 Simon Andrews
+ *
+ *    This file is part of BamQC.
+ *
+ *    BamQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    BamQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with BamQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.babraham.BamQC.Modules;
+
+import java.io.IOException;
+
+import javax.swing.JPanel;
+import javax.swing.table.AbstractTableModel;
+import javax.xml.stream.XMLStreamException;
+
+import net.sf.samtools.SAMRecord;
+import uk.ac.babraham.BamQC.BamQCConfig;
+import uk.ac.babraham.BamQC.Annotation.AnnotationSet;
+import uk.ac.babraham.BamQC.Graphs.LineGraph;
+import uk.ac.babraham.BamQC.Report.HTMLReportArchive;
+import uk.ac.babraham.BamQC.Sequence.PackedRecord;
+import uk.ac.babraham.BamQC.Sequence.SequenceFile;
+import uk.ac.babraham.BamQC.Utilities.IlluminaReadName;
+import uk.ac.babraham.BamQC.Utilities.OffHeapLongMap;
+import uk.ac.babraham.BamQC.Utilities.TileIndex;
+
+/**
+ * Estimates how many of the alignments are duplicates.  Two alignments
+ * are counted as duplicates if they start at the same place on the same
+ * strand, and their mates do too.  We use the unclipped 5' end so that
+ * reads which have had adapter or low quality bases clipped still match.
+ *
+ * Duplicates which came from a cluster close to the first copy on the
+ * same tile are probably optical duplicates rather than PCR duplicates,
+ * and are counted separately.
+ *
+ * Each start position is kept as a 64 bit hash in an OffHeapLongMap,
+ * along with how often we've seen it and where the first copy was on
+ * the flowcell, as its exact tile and coordinates.  Once a position has
+ * been seen more than 2047 times we only keep its count, so further
+ * copies of it aren't checked for being optical duplicates.
+ *
+ * If we get more positions than the configured limit we start sampling,
+ * keeping only positions whose hash has its lowest bits clear.  Since we
+ * keep or drop every copy of a position together the duplicate rate in
+ * the sample is the same as in the whole file.  We also start sampling
+ * if there isn't enough direct memory for the map to grow.
+ */
+public class DuplicationLevel extends AbstractQCModule {
+
+	// The duplication levels we report on
+	private static final String [] LEVEL_NAMES = new String [] {"1","2","3","4","5","6","7","8","9",">10",">50",">100",">500",">1k",">5k",">10k"};
+
+	// Duplicates whose clusters were within this many pixels of the
+	// first copy on the same tile count as optical duplicates
+	private static final int OPTICAL_DISTANCE = 100;
+
+	// The value stored for each position is packed as:
+	// 0 (1 bit) | count (11 bits) | tile id (12 bits) | x (20 bits) | y (20 bits)
+	// with a tile id of 0 if we don't know where the first copy was.  Once
+	// the count won't fit we stop looking for optical duplicates of that
+	// position, and store COUNT_ONLY | count instead.
+	private static final long COUNT_ONLY = 1L<<63;
+	private static final int COUNT_SHIFT = 52;
+	private static final long MAX_LOCATED_COUNT = (1L<<11)-1;
+	private static final int TILE_SHIFT = 40;
+	private static final int MAX_TILES = (1<<12)-1;
+	private static final int COORDINATE_BITS = 20;
+	private static final long COORDINATE_MASK = (1L<<COORDINATE_BITS)-1;
+	private static final long LOCATION_MASK = (1L<<COUNT_SHIFT)-1;
+
+	private OffHeapLongMap positions = null;
+	private PackedRecord record = new PackedRecord();
+	private IlluminaReadName readName = new IlluminaReadName();
+
+	// Tile ids are the tile's index plus one
+	private TileIndex tiles = new TileIndex();
+
+	// Once we're sampling we only keep positions whose hash has none of
+	// these bits set.
+	private long sampleMask = 0;
+	private int sampleBits = 0;
+
+	// Reads and optical duplicates, split by how many low bits of their
+	// hash were clear.  When we start sampling we can then work out how
+	// many reads fell in the sample without going back over them.
+	private long [] readsBySampleLevel = new long[65];
+	private long [] opticalBySampleLevel = new long[65];
+
+	private boolean calculated = false;
+	private long sampledReads = 0;
+	private long distinctPositions = 0;
+	private long opticalDuplicates = 0;
+	private double percentRemaining = 100;
+	private double [] dedupPercentages = new double[LEVEL_NAMES.length];
+	private double [] totalPercentages = new double[LEVEL_NAMES.length];
+
+	public DuplicationLevel () {
+		reset();
+	}
+
+	public void processSequence(SAMRecord read) {
+
+		// We only look at one alignment per read, and only mapped ones
+		if (read.getReadUnmappedFlag() || read.isSecondaryOrSupplementary() || read.getReadFailsVendorQualityCheckFlag()) return;
+
+		if (positions == null) {
+			int limit = BamQCConfig.getInstance().duplication_limit;
+			positions = new OffHeapLongMap(limit > 0 ? Math.min(limit, 1000000) : 1000000);
+		}
+
+		long key = positionKey(read);
+
+		int level = Long.numberOfTrailingZeros(key);
+		++readsBySampleLevel[level];
+
+		if ((key & sampleMask) != 0) return;
+
+		record.load(read);
+		long location = location();
+
+		long value = positions.get(key);
+
+		if (value == OffHeapLongMap.NO_VALUE) {
+			positions.put(key, (1L<<COUNT_SHIFT) | location);
+
+			int limit = BamQCConfig.getInstance().duplication_limit;
+			while ((limit > 0 && positions.size() > limit) || positions.isFull()) {
+				++sampleBits;
+				sampleMask = (sampleMask<<1) | 1;
+				positions.removeKeysMatching(sampleMask);
+			}
+			return;
+		}
+
+		if ((value & COUNT_ONLY) != 0) {
+			positions.put(key, value+1);
+			return;
+		}
+
+		if (isOpticalDuplicate(value, location)) {
+			++opticalBySampleLevel[level];
+		}
+
+		long count = value>>>COUNT_SHIFT;
+		if (count < MAX_LOCATED_COUNT) {
+			positions.put(key, ((count+1)<<COUNT_SHIFT) | (value & LOCATION_MASK));
+		}
+		else {
+			positions.put(key, COUNT_ONLY | (count+1));
+		}
+	}
+
+	private static long count (long value) {
+		if ((value & COUNT_ONLY) != 0) return value & ~COUNT_ONLY;
+		return value>>>COUNT_SHIFT;
+	}
+
+	/**
+	 * Packs the flowcell position of the current read from its name,
+	 * which is read straight from the BAM record.
+	 *
+	 * @return The tile id, x and y, or 0 if we can't tell where the read was
+	 */
+	private long location () {
+		if (!readName.parse(record.data(), 0, record.nameLength())) return 0;
+
+		if (readName.x() > COORDINATE_MASK || readName.y() > COORDINATE_MASK) return 0;
+
+		int key = readName.laneTileKey();
+		if (key < 0) return 0;
+
+		int tileIndex = tiles.find(key);
+		if (tileIndex < 0) {
+			if (tiles.size() == MAX_TILES) return 0;
+			tileIndex = tiles.add(key);
+		}
+		long tileId = tileIndex+1;
+
+		return (tileId<<TILE_SHIFT) | (((long)readName.x())<<COORDINATE_BITS) | readName.y();
+	}
+
+	/**
+	 * Makes a well mixed 64 bit hash of the reference, unclipped 5' end
+	 * and strand of a read and its mate.
+	 */
+	static long positionKey (SAMRecord read) {
+
+		boolean reverse = read.getReadNegativeStrandFlag();
+		int fivePrime = reverse ? read.getUnclippedEnd() : read.getUnclippedStart();
+
+		long mateReference = -1;
+		long matePosition = -1;
+		boolean mateReverse = false;
+
+		if (read.getReadPairedFlag() && !read.getMateUnmappedFlag()) {
+			mateReference = read.getMateReferenceIndex();
+			matePosition = read.getMateAlignmentStart();
+			mateReverse = read.getMateNegativeStrandFlag();
+		}
+
+		long key = mix((((long)read.getReferenceIndex())<<32) | (fivePrime & 0xFFFFFFFFL));
+		key = mix(key ^ (mateReference<<32) ^ (matePosition & 0xFFFFFFFFL));
+		key = mix(key ^ (reverse ? 1 : 0) ^ (mateReverse ? 2 : 0));
+
+		// 0 marks an empty slot in the map
+		if (key == 0) key = 1;
+
+		return key;
+	}
+
+	/**
+	 * The 64 bit finaliser from MurmurHash3
+	 */
+	private static long mix (long key) {
+		key ^= key>>>33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key>>>33;
+		key *= 0xc4ceb9fe1a85ec53L;
+		key ^= key>>>33;
+		return key;
+	}
+
+	private static boolean isOpticalDuplicate (long firstValue, long location) {
+		long firstLocation = firstValue & LOCATION_MASK;
+		if (firstLocation == 0 || location == 0) return false;
+
+		// Must be on the same tile
+		if ((firstLocation>>>TILE_SHIFT) != (location>>>TILE_SHIFT)) return false;
+
+		int dx = (int)((firstLocation>>>COORDINATE_BITS) & COORDINATE_MASK)-(int)((location>>>COORDINATE_BITS) & COORDINATE_MASK);
+		int dy = (int)(firstLocation & COORDINATE_MASK)-(int)(location & COORDINATE_MASK);
+
+		return Math.abs(dx) <= OPTICAL_DISTANCE && Math.abs(dy) <= OPTICAL_DISTANCE;
+	}
+
+	private static int levelIndex (long count) {
+		if (count < 10) return (int)count-1;
+		if (count < 50) return 9;
+		if (count < 100) return 10;
+		if (count < 500) return 11;
+		if (count < 1000) return 12;
+		if (count < 5000) return 13;
+		if (count < 10000) return 14;
+		return 15;
+	}
+
+	private synchronized void calculateLevels () {
+
+		if (calculated) return;
+
+		sampledReads = 0;
+		opticalDuplicates = 0;
+		for (int level=sampleBits;level<readsBySampleLevel.length;level++) {
+			sampledReads += readsBySampleLevel[level];
+			opticalDuplicates += opticalBySampleLevel[level];
+		}
+
+		long [] dedupCounts = new long[LEVEL_NAMES.length];
+		long [] totalCounts = new long[LEVEL_NAMES.length];
+		distinctPositions = 0;
+
+		if (positions != null) {
+			for (long slot=0;slot<positions.capacity();slot++) {
+				if (!positions.isUsed(slot)) continue;
+				long count = count(positions.valueAt(slot));
+				int index = levelIndex(count);
+				++dedupCounts[index];
+				totalCounts[index] += count;
+				++distinctPositions;
+			}
+		}
+
+		for (int i=0;i<LEVEL_NAMES.length;i++) {
+			dedupPercentages[i] = distinctPositions == 0 ? 0 : (dedupCounts[i]*100d)/distinctPositions;
+			totalPercentages[i] = sampledReads == 0 ? 0 : (totalCounts[i]*100d)/sampledReads;
+		}
+
+		percentRemaining = sampledReads == 0 ? 100 : (distinctPositions*100d)/sampledReads;
+
+		// We don't need the positions any more, and they can be large
+		positions = null;
+		calculated = true;
+	}
+
+	private long totalReads () {
+		long total = 0;
+		for (int level=0;level<readsBySampleLevel.length;level++) {
+			total += readsBySampleLevel[level];
+		}
+		return total;
+	}
+
+	public void processFile(SequenceFile file) {}
+
+	public void processAnnotationSet(AnnotationSet annotation) {}
+
+	public JPanel getResultsPanel() {
+		calculateLevels();
+
+		String title = "Percent of alignments remaining if deduplicated "+String.format("%.2f", percentRemaining)+"%";
+		if (opticalDuplicates > 0) {
+			title += " ("+String.format("%.2f", (opticalDuplicates*100d)/sampledReads)+"% optical duplicates)";
+		}
+
+		return new LineGraph(new double [][] {dedupPercentages, totalPercentages}, 0d, 100d, "Duplication Level", new String [] {"% Deduplicated alignments", "% Total alignments"}, LEVEL_NAMES, title);
+	}
+
+	public String name() {
+		return "Duplication Levels";
+	}
+
+	public String description() {
+		return "Estimates the proportion of PCR and optical duplicate alignments";
+	}
+
+	public void reset() {
+		positions = null;
+		tiles.clear();
+		sampleMask = 0;
+		sampleBits = 0;
+		readsBySampleLevel = new long[65];
+		opticalBySampleLevel = new long[65];
+		calculated = false;
+	}
+
+	public boolean raisesError() {
+		calculateLevels();
+		return percentRemaining < ModuleConfig.getParam("duplication", "error");
+	}
+
+	public boolean raisesWarning() {
+		calculateLevels();
+		return percentRemaining < ModuleConfig.getParam("duplication", "warn");
+	}
+
+	public boolean needsToSeeSequences() {
+		return true;
+	}
+
+	public boolean needsToSeeAnnotation() {
+		return false;
+	}
+
+	public boolean ignoreInReport() {
+		return ModuleConfig.getParam("duplication", "ignore") > 0 || totalReads() == 0;
+	}
+
+	public void makeReport(HTMLReportArchive report) throws XMLStreamException, IOException {
+		calculateLevels();
+		super.writeTable(report, new SummaryTable());
+		super.writeTable(report, new ResultsTable());
+	}
+
+	@SuppressWarnings("serial")
+	private class SummaryTable extends AbstractTableModel {
+
+		private String [] rowNames = new String [] {
+				"Alignments checked",
+				"Alignments sampled",
+				"Distinct positions",
+				"Percent remaining if deduplicated",
+				"Percent optical duplicates"
+		};
+
+		// Measure - Value
+		public int getColumnCount() {
+			return 2;
+		}
+
+		public int getRowCount() {
+			return rowNames.length;
+		}
+
+		public Object getValueAt(int rowIndex, int columnIndex) {
+			switch (columnIndex) {
+				case 0: return rowNames[rowIndex];
+				case 1:
+					switch (rowIndex) {
+						case 0: return ""+totalReads();
+						case 1: return ""+sampledReads;
+						case 2: return ""+distinctPositions;
+						case 3: return String.format("%.2f", percentRemaining);
+						case 4: return String.format("%.2f", sampledReads == 0 ? 0 : (opticalDuplicates*100d)/sampledReads);
+					}
+			}
+			return null;
+		}
+
+		public String getColumnName (int columnIndex) {
+			switch (columnIndex) {
+				case 0: return "Measure";
+				case 1: return "Value";
+			}
+			return null;
+		}
+
+		public Class<?> getColumnClass (int columnIndex) {
+			return String.class;
+		}
+	}
+
+	@SuppressWarnings("serial")
+	private class ResultsTable extends AbstractTableModel {
+
+		// Level - Deduplicated - Total
+		public int getColumnCount() {
+			return 3;
+		}
+
+		public int getRowCount() {
+			return LEVEL_NAMES.length;
+		}
+
+		public Object getValueAt(int rowIndex, int columnIndex) {
+			switch (columnIndex) {
+				case 0: return LEVEL_NAMES[rowIndex];
+				case 1: return dedupPercentages[rowIndex];
+				case 2: return totalPercentages[rowIndex];
+			}
+			return null;
+		}
+
+		public String getColumnName (int columnIndex) {
+			switch (columnIndex) {
+				case 0: return "Duplication Level";
+				case 1: return "Percentage of deduplicated";
+				case 2: return "Percentage of total";
+			}
+			return null;
+		}
+
+		public Class<?> getColumnClass (int columnIndex) {
+			switch (columnIndex) {
+				case 0: return String.class;
+				case 1: return Double.class;
+				case 2: return Double.class;
+			}
+			return null;
+		}
+	}
+
+}
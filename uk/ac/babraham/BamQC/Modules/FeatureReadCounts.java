@@ -0,0 +1,270 @@
+/**
+ * Copyright Copyright 2014 Simon Andrews
+ *
+ *    This file is part of BamQC.
+ *
+ *    BamQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    BamQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with BamQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.babraham.BamQC.Modules;
+
+import java.awt.BorderLayout;
+import java.io.IOException;
+
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.JTable;
+import javax.swing.table.AbstractTableModel;
+import javax.xml.stream.XMLStreamException;
+
+import net.sf.samtools.SAMRecord;
+import uk.ac.babraham.BamQC.Annotation.AnnotationSet;
+import uk.ac.babraham.BamQC.Annotation.Chromosome;
+import uk.ac.babraham.BamQC.Annotation.ChromosomeFeatures;
+import uk.ac.babraham.BamQC.Annotation.FeatureClass;
+import uk.ac.babraham.BamQC.Report.HTMLReportArchive;
+import uk.ac.babraham.BamQC.Sequence.SequenceFile;
+
+/**
+ * Lists the individual features which took up the most reads, so you
+ * can see whether a library is dominated by a handful of genes such as
+ * rRNA or mitochondrial transcripts.
+ */
+public class FeatureReadCounts extends AbstractQCModule {
+
+	// The number of features we list
+	private static final int TOP_FEATURE_COUNT = 20;
+
+	// We'd rather report on genes, but if there aren't any we'll use
+	// transcripts, and failing that whichever type has the most features.
+	private static final String [] PREFERRED_TYPES = new String [] {"gene", "transcript", "mRNA"};
+
+	private String featureType = null;
+	private int featureCount = 0;
+	private long totalReads = 0;
+	private int ambiguousReads = 0;
+
+	private String [] topNames = new String[0];
+	private String [] topLocations = new String[0];
+	private int [] topCounts = new int[0];
+
+	public void processSequence(SAMRecord read) {}
+
+	public void processFile(SequenceFile file) {}
+
+	public void processAnnotationSet(AnnotationSet annotation) {
+
+		if (!annotation.hasFeatures() || !annotation.countsFeatures()) return;
+
+		featureType = chooseFeatureType(annotation);
+
+		FeatureClass featureClass = annotation.getFeatureClassForType(featureType);
+		ambiguousReads = featureClass.ambiguousCount();
+
+		// We keep the top features in order as we go through, so that we
+		// never need to hold or sort a list of all of them.
+		int [] counts = new int[TOP_FEATURE_COUNT];
+		ChromosomeFeatures [] sources = new ChromosomeFeatures[TOP_FEATURE_COUNT];
+		Chromosome [] chromosomes = new Chromosome[TOP_FEATURE_COUNT];
+		int [] indices = new int[TOP_FEATURE_COUNT];
+		int found = 0;
+
+		Chromosome [] featureChromosomes = featureClass.listChromosomes();
+
+		for (int c=0;c<featureChromosomes.length;c++) {
+			ChromosomeFeatures features = featureClass.getFeatures(featureChromosomes[c]);
+
+			for (int i=0;i<features.size();i++) {
+				int count = features.readCount(i);
+				++featureCount;
+				totalReads += count;
+
+				if (count == 0) continue;
+				if (found == TOP_FEATURE_COUNT && count <= counts[found-1]) continue;
+
+				if (found < TOP_FEATURE_COUNT) ++found;
+
+				int position = found-1;
+				while (position > 0 && counts[position-1] < count) {
+					counts[position] = counts[position-1];
+					sources[position] = sources[position-1];
+					chromosomes[position] = chromosomes[position-1];
+					indices[position] = indices[position-1];
+					--position;
+				}
+
+				counts[position] = count;
+				sources[position] = features;
+				chromosomes[position] = featureChromosomes[c];
+				indices[position] = i;
+			}
+		}
+
+		topNames = new String[found];
+		topLocations = new String[found];
+		topCounts = new int[found];
+
+		for (int f=0;f<found;f++) {
+			topLocations[f] = chromosomes[f].name()+":"+sources[f].start(indices[f])+"-"+sources[f].end(indices[f]);
+			topNames[f] = sources[f].name(indices[f]);
+			if (topNames[f] == null) topNames[f] = topLocations[f];
+			topCounts[f] = counts[f];
+		}
+
+	}
+
+	private String chooseFeatureType (AnnotationSet annotation) {
+
+		for (int t=0;t<PREFERRED_TYPES.length;t++) {
+			if (annotation.getFeatureClassForType(PREFERRED_TYPES[t]) != null) {
+				return PREFERRED_TYPES[t];
+			}
+		}
+
+		String [] types = annotation.listFeatureTypes();
+		String bestType = types[0];
+		int mostFeatures = -1;
+
+		for (int t=0;t<types.length;t++) {
+			FeatureClass featureClass = annotation.getFeatureClassForType(types[t]);
+			Chromosome [] chromosomes = featureClass.listChromosomes();
+			int count = 0;
+			for (int c=0;c<chromosomes.length;c++) {
+				count += featureClass.getFeatures(chromosomes[c]).size();
+			}
+			if (count > mostFeatures) {
+				mostFeatures = count;
+				bestType = types[t];
+			}
+		}
+
+		return bestType;
+	}
+
+	public JPanel getResultsPanel() {
+		JPanel returnPanel = new JPanel();
+		returnPanel.setLayout(new BorderLayout());
+
+		if (featureType == null) {
+			returnPanel.add(new JLabel("No annotation was loaded",JLabel.CENTER),BorderLayout.CENTER);
+			return returnPanel;
+		}
+
+		String title = "Top "+featureType+" features by read count ("+featureCount+" features";
+		if (ambiguousReads > 0) {
+			title += ", "+ambiguousReads+" ambiguous reads not assigned";
+		}
+		title += ")";
+
+		returnPanel.add(new JLabel(title,JLabel.CENTER),BorderLayout.NORTH);
+		returnPanel.add(new JScrollPane(new JTable(new ResultsTable())),BorderLayout.CENTER);
+
+		return returnPanel;
+	}
+
+	public String name() {
+		return "Feature Read Counts";
+	}
+
+	public String description() {
+		return "Shows which individual features take up the most reads";
+	}
+
+	public void reset() {
+		featureType = null;
+		featureCount = 0;
+		totalReads = 0;
+		ambiguousReads = 0;
+		topNames = new String[0];
+		topLocations = new String[0];
+		topCounts = new int[0];
+	}
+
+	public boolean raisesError() {
+		return false;
+	}
+
+	public boolean raisesWarning() {
+		return false;
+	}
+
+	public boolean needsToSeeSequences() {
+		return false;
+	}
+
+	public boolean needsToSeeAnnotation() {
+		return true;
+	}
+
+	public boolean ignoreInReport() {
+		return featureType == null;
+	}
+
+	public void makeReport(HTMLReportArchive report) throws XMLStreamException, IOException {
+		super.writeTable(report, new ResultsTable());
+	}
+
+	@SuppressWarnings("serial")
+	private class ResultsTable extends AbstractTableModel {
+
+		// Feature - Location - Reads - Percentage - Cumulative percentage
+		public int getColumnCount() {
+			return 5;
+		}
+
+		public int getRowCount() {
+			return topCounts.length;
+		}
+
+		public Object getValueAt(int rowIndex, int columnIndex) {
+			switch (columnIndex) {
+				case 0: return topNames[rowIndex];
+				case 1: return topLocations[rowIndex];
+				case 2: return topCounts[rowIndex];
+				case 3: return (topCounts[rowIndex]*100f)/totalReads;
+				case 4:
+					long cumulative = 0;
+					for (int r=0;r<=rowIndex;r++) {
+						cumulative += topCounts[r];
+					}
+					return (cumulative*100f)/totalReads;
+			}
+			return null;
+		}
+
+		public String getColumnName (int columnIndex) {
+			switch (columnIndex) {
+				case 0: return "Feature";
+				case 1: return "Location";
+				case 2: return "Reads";
+				case 3: return "Percentage";
+				case 4: return "Cumulative Percentage";
+			}
+			return null;
+		}
+
+		public Class<?> getColumnClass (int columnIndex) {
+			switch (columnIndex) {
+				case 0: return String.class;
+				case 1: return String.class;
+				case 2: return Integer.class;
+				case 3: return Float.class;
+				case 4: return Float.class;
+			}
+			return null;
+		}
+	}
+
+}
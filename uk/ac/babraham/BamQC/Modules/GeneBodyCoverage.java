@@ -0,0 +1,151 @@
+/**
+ * Copyright Copyright 2014 Simon Andrews
+ *
+ *    This file is part of BamQC.
+ *
+ *    BamQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    BamQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with BamQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.babraham.BamQC.Modules;
+
+import java.io.IOException;
+
+import javax.swing.JPanel;
+import javax.swing.table.AbstractTableModel;
+import javax.xml.stream.XMLStreamException;
+
+import net.sf.samtools.SAMRecord;
+import uk.ac.babraham.BamQC.Annotation.AnnotationSet;
+import uk.ac.babraham.BamQC.Annotation.TranscriptCoverage;
+import uk.ac.babraham.BamQC.Graphs.LineGraph;
+import uk.ac.babraham.BamQC.Report.HTMLReportArchive;
+import uk.ac.babraham.BamQC.Sequence.SequenceFile;
+
+/**
+ * Shows how coverage is spread along the body of transcripts, from the
+ * 5' to the 3' end.  An intact RNA-seq library should be fairly even,
+ * but degraded RNA, or a library made by priming from the poly-A tail,
+ * will have more of its coverage towards the 3' end.
+ *
+ * The coverage is measured by the annotation as it sweeps along the
+ * sorted reads, so there's no second pass over the file.  It isn't
+ * available if the reads aren't sorted by position.
+ */
+public class GeneBodyCoverage extends AbstractQCModule {
+
+	private long transcriptCount = 0;
+	private double [] binPercentages = new double[TranscriptCoverage.BINS];
+
+	public void processSequence(SAMRecord read) {}
+
+	public void processFile(SequenceFile file) {}
+
+	public void processAnnotationSet(AnnotationSet annotation) {
+
+		TranscriptCoverage coverage = annotation.transcriptCoverage();
+
+		transcriptCount = coverage.transcriptCount();
+		for (int bin=0;bin<binPercentages.length;bin++) {
+			binPercentages[bin] = coverage.binPercentage(bin);
+		}
+	}
+
+	public JPanel getResultsPanel() {
+
+		String [] labels = new String[binPercentages.length];
+		double max = 0;
+		for (int bin=0;bin<binPercentages.length;bin++) {
+			labels[bin] = ""+(bin+1);
+			if (binPercentages[bin] > max) max = binPercentages[bin];
+		}
+
+		return new LineGraph(new double [][] {binPercentages}, 0d, Math.max(max*1.1, 1d/binPercentages.length), "Percentile of transcript body (5' to 3')", new String [] {"% Coverage"}, labels, "Coverage along "+transcriptCount+" transcripts");
+	}
+
+	public String name() {
+		return "Gene body coverage";
+	}
+
+	public String description() {
+		return "Shows how coverage is spread from the 5' to the 3' end of transcripts";
+	}
+
+	public void reset() {
+		transcriptCount = 0;
+		binPercentages = new double[TranscriptCoverage.BINS];
+	}
+
+	public boolean raisesError() {
+		return false;
+	}
+
+	public boolean raisesWarning() {
+		return false;
+	}
+
+	public boolean needsToSeeSequences() {
+		return false;
+	}
+
+	public boolean needsToSeeAnnotation() {
+		return true;
+	}
+
+	public boolean ignoreInReport() {
+		return ModuleConfig.getParam("genebody", "ignore") > 0 || transcriptCount == 0;
+	}
+
+	public void makeReport(HTMLReportArchive report) throws XMLStreamException, IOException {
+		writeGraph(report, getResultsPanel(), "Gene body coverage graph");
+		super.writeTable(report, new ResultsTable());
+	}
+
+	@SuppressWarnings("serial")
+	private class ResultsTable extends AbstractTableModel {
+
+		// Percentile - Percentage of coverage
+		public int getColumnCount() {
+			return 2;
+		}
+
+		public int getRowCount() {
+			return binPercentages.length;
+		}
+
+		public Object getValueAt(int rowIndex, int columnIndex) {
+			switch (columnIndex) {
+				case 0: return rowIndex+1;
+				case 1: return binPercentages[rowIndex];
+			}
+			return null;
+		}
+
+		public String getColumnName (int columnIndex) {
+			switch (columnIndex) {
+				case 0: return "Percentile";
+				case 1: return "Coverage";
+			}
+			return null;
+		}
+
+		public Class<?> getColumnClass (int columnIndex) {
+			switch (columnIndex) {
+				case 0: return Integer.class;
+				case 1: return Double.class;
+			}
+			return null;
+		}
+	}
+
+}
@@ -0,0 +1,329 @@
+/**
+ * Copyright Copyright 2014 Simon Andrews
+ *
+ *    This file is part of BamQC.
+ *
+ *    BamQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    BamQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with BamQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.babraham.BamQC.Modules;
+
+import java.io.IOException;
+
+import javax.swing.JPanel;
+import javax.swing.table.AbstractTableModel;
+import javax.xml.stream.XMLStreamException;
+
+import net.sf.samtools.SAMRecord;
+import uk.ac.babraham.BamQC.Annotation.AnnotationSet;
+import uk.ac.babraham.BamQC.Graphs.BaseGroup;
+import uk.ac.babraham.BamQC.Graphs.LineGraph;
+import uk.ac.babraham.BamQC.Report.HTMLReportArchive;
+import uk.ac.babraham.BamQC.Sequence.SequenceFile;
+
+/**
+ * Shows the distribution of insert sizes for properly paired reads,
+ * split by the orientation of the pairs.  A normal paired end library
+ * should have almost all of its pairs facing each other (FR), whereas a
+ * mate pair library will have them facing away (RF).  A mixture of the
+ * two, or lots of pairs on the same strand, suggests a problem with the
+ * library or the mapping.
+ *
+ * Sizes go into a fixed histogram for each orientation, with anything
+ * larger than MAX_INSERT_SIZE counted in a single overflow bin, and all
+ * of the statistics are worked out from the histograms at the end.
+ */
+public class InsertSizeDistribution extends AbstractQCModule {
+
+	private static final String [] ORIENTATION_NAMES = new String [] {"FR", "RF", "Tandem"};
+	private static final int FR = 0;
+	private static final int RF = 1;
+	private static final int TANDEM = 2;
+
+	// Inserts larger than this all go in the last bin of the histogram
+	private static final int MAX_INSERT_SIZE = 10000;
+	private static final int OVERFLOW = MAX_INSERT_SIZE+1;
+
+	private static final int [] PERCENTILES = new int [] {10, 25, 50, 75, 90};
+
+	private long [][] histograms = new long[ORIENTATION_NAMES.length][OVERFLOW+1];
+	private long [] pairCounts = new long[ORIENTATION_NAMES.length];
+
+	private boolean calculated = false;
+	private long totalPairs = 0;
+	private int mainOrientation = FR;
+	private int [][] percentiles = new int[ORIENTATION_NAMES.length][PERCENTILES.length];
+	private int [] medians = new int[ORIENTATION_NAMES.length];
+	private int [] mads = new int[ORIENTATION_NAMES.length];
+
+	public void processSequence(SAMRecord read) {
+
+		// We take one read from each properly paired pair
+		if (!read.getReadPairedFlag() || !read.getProperPairFlag() || !read.getFirstOfPairFlag()) return;
+		if (read.getReadUnmappedFlag() || read.getMateUnmappedFlag() || read.isSecondaryOrSupplementary()) return;
+
+		int insertSize = read.getInferredInsertSize();
+		if (insertSize == 0) return;
+
+		int orientation = orientation(read, insertSize);
+
+		if (insertSize < 0) insertSize = 0-insertSize;
+		if (insertSize > MAX_INSERT_SIZE) insertSize = OVERFLOW;
+
+		++histograms[orientation][insertSize];
+		++pairCounts[orientation];
+	}
+
+	/**
+	 * Works out whether a pair faces inwards, outwards or is on one strand.
+	 * We compare the 5' end of the forward read with the 5' end of the
+	 * reverse one; if the forward read starts first the pair faces in.
+	 */
+	private static int orientation (SAMRecord read, int insertSize) {
+
+		boolean reverse = read.getReadNegativeStrandFlag();
+		if (reverse == read.getMateNegativeStrandFlag()) return TANDEM;
+
+		long forwardFivePrime = reverse ? read.getMateAlignmentStart() : read.getAlignmentStart();
+		long reverseFivePrime = reverse ? read.getAlignmentEnd() : ((long)read.getAlignmentStart())+insertSize;
+
+		if (forwardFivePrime < reverseFivePrime) return FR;
+		return RF;
+	}
+
+	private synchronized void calculateStatistics () {
+
+		if (calculated) return;
+		calculated = true;
+
+		totalPairs = 0;
+		for (int o=0;o<ORIENTATION_NAMES.length;o++) {
+			totalPairs += pairCounts[o];
+			if (pairCounts[o] > pairCounts[mainOrientation]) mainOrientation = o;
+
+			if (pairCounts[o] == 0) continue;
+
+			findPercentiles(histograms[o], pairCounts[o], percentiles[o]);
+			medians[o] = percentiles[o][2];
+			mads[o] = medianAbsoluteDeviation(histograms[o], pairCounts[o], medians[o]);
+		}
+	}
+
+	/**
+	 * Finds all of the percentiles in one pass along the histogram.
+	 */
+	private static void findPercentiles (long [] histogram, long total, int [] results) {
+		long cumulative = 0;
+		int p = 0;
+		for (int size=0;size<histogram.length && p<PERCENTILES.length;size++) {
+			cumulative += histogram[size];
+			while (p < PERCENTILES.length && cumulative*100 >= total*PERCENTILES[p]) {
+				results[p++] = size;
+			}
+		}
+	}
+
+	/**
+	 * Finds the median of the distances from the median by walking out
+	 * from the median in both directions at once, so we pass through the
+	 * deviations in order.
+	 */
+	private static int medianAbsoluteDeviation (long [] histogram, long total, int median) {
+		long cumulative = histogram[median];
+		int deviation = 0;
+		while (cumulative*2 < total) {
+			++deviation;
+			if (median-deviation >= 0) cumulative += histogram[median-deviation];
+			if (median+deviation < histogram.length) cumulative += histogram[median+deviation];
+		}
+		return deviation;
+	}
+
+	/**
+	 * The percentage of pairs which aren't in the most common orientation.
+	 */
+	private double percentUnexpectedOrientation () {
+		calculateStatistics();
+		if (totalPairs == 0) return 0;
+		return ((totalPairs-pairCounts[mainOrientation])*100d)/totalPairs;
+	}
+
+	public void processFile(SequenceFile file) {}
+
+	public void processAnnotationSet(AnnotationSet annotation) {}
+
+	private LineGraph makeGraph () {
+		calculateStatistics();
+
+		// We show up to the 99th percentile of all pairs, since the
+		// long tail would squash the rest of the plot
+		long [] combined = new long[OVERFLOW+1];
+		for (int o=0;o<ORIENTATION_NAMES.length;o++) {
+			for (int size=0;size<combined.length;size++) {
+				combined[size] += histograms[o][size];
+			}
+		}
+		long cumulative = 0;
+		int maxSize = 1;
+		for (int size=0;size<combined.length;size++) {
+			cumulative += combined[size];
+			if (cumulative*100 >= totalPairs*99) {
+				maxSize = Math.max(1, Math.min(size, MAX_INSERT_SIZE));
+				break;
+			}
+		}
+
+		BaseGroup [] groups = BaseGroup.makeBaseGroups(maxSize);
+		String [] labels = new String[groups.length];
+		for (int g=0;g<groups.length;g++) {
+			labels[g] = groups[g].toString();
+		}
+
+		int seriesCount = 0;
+		for (int o=0;o<ORIENTATION_NAMES.length;o++) {
+			if (pairCounts[o] > 0) ++seriesCount;
+		}
+
+		double [][] data = new double[seriesCount][groups.length];
+		String [] seriesNames = new String[seriesCount];
+		double maxY = 0;
+		int series = 0;
+
+		for (int o=0;o<ORIENTATION_NAMES.length;o++) {
+			if (pairCounts[o] == 0) continue;
+			seriesNames[series] = ORIENTATION_NAMES[o];
+			for (int g=0;g<groups.length;g++) {
+				long count = 0;
+				for (int size=groups[g].lowerCount();size<=groups[g].upperCount();size++) {
+					count += histograms[o][size];
+				}
+				data[series][g] = (count*100d)/totalPairs;
+				if (data[series][g] > maxY) maxY = data[series][g];
+			}
+			++series;
+		}
+
+		return new LineGraph(data, 0d, maxY, "Insert size (bp)", seriesNames, labels, "Insert size distribution (% of pairs), median "+medians[mainOrientation]+"bp for "+ORIENTATION_NAMES[mainOrientation]+" pairs");
+	}
+
+	public JPanel getResultsPanel() {
+		return makeGraph();
+	}
+
+	public String name() {
+		return "Insert Size Distribution";
+	}
+
+	public String description() {
+		return "Shows the insert sizes and orientations of properly paired reads";
+	}
+
+	public void reset() {
+		histograms = new long[ORIENTATION_NAMES.length][OVERFLOW+1];
+		pairCounts = new long[ORIENTATION_NAMES.length];
+		calculated = false;
+		totalPairs = 0;
+		mainOrientation = FR;
+		percentiles = new int[ORIENTATION_NAMES.length][PERCENTILES.length];
+		medians = new int[ORIENTATION_NAMES.length];
+		mads = new int[ORIENTATION_NAMES.length];
+	}
+
+	public boolean raisesError() {
+		return percentUnexpectedOrientation() > ModuleConfig.getParam("insert_size", "error");
+	}
+
+	public boolean raisesWarning() {
+		return percentUnexpectedOrientation() > ModuleConfig.getParam("insert_size", "warn");
+	}
+
+	public boolean needsToSeeSequences() {
+		return true;
+	}
+
+	public boolean needsToSeeAnnotation() {
+		return false;
+	}
+
+	public boolean ignoreInReport() {
+		calculateStatistics();
+		return ModuleConfig.getParam("insert_size", "ignore") > 0 || totalPairs == 0;
+	}
+
+	public void makeReport(HTMLReportArchive report) throws XMLStreamException, IOException {
+		writeGraph(report, makeGraph(), "Insert size graph");
+		super.writeTable(report, new ResultsTable());
+	}
+
+	@SuppressWarnings("serial")
+	private class ResultsTable extends AbstractTableModel {
+
+		// Orientation - Pairs - Percentage - Median - MAD - then the other percentiles
+		public int getColumnCount() {
+			return 9;
+		}
+
+		public int getRowCount() {
+			return ORIENTATION_NAMES.length;
+		}
+
+		private String size (int size) {
+			if (size == OVERFLOW) return ">"+MAX_INSERT_SIZE;
+			return ""+size;
+		}
+
+		public Object getValueAt(int rowIndex, int columnIndex) {
+			if (columnIndex == 0) return ORIENTATION_NAMES[rowIndex];
+			if (columnIndex == 1) return pairCounts[rowIndex];
+			if (columnIndex == 2) return totalPairs == 0 ? 0f : (float)((pairCounts[rowIndex]*100d)/totalPairs);
+
+			if (pairCounts[rowIndex] == 0) return "NA";
+
+			switch (columnIndex) {
+				case 3: return size(medians[rowIndex]);
+				case 4: return ""+mads[rowIndex];
+				case 5: return size(percentiles[rowIndex][0]);
+				case 6: return size(percentiles[rowIndex][1]);
+				case 7: return size(percentiles[rowIndex][3]);
+				case 8: return size(percentiles[rowIndex][4]);
+			}
+			return null;
+		}
+
+		public String getColumnName (int columnIndex) {
+			switch (columnIndex) {
+				case 0: return "Orientation";
+				case 1: return "Pairs";
+				case 2: return "Percentage";
+				case 3: return "Median";
+				case 4: return "MAD";
+				case 5: return "10th Percentile";
+				case 6: return "25th Percentile";
+				case 7: return "75th Percentile";
+				case 8: return "90th Percentile";
+			}
+			return null;
+		}
+
+		public Class<?> getColumnClass (int columnIndex) {
+			switch (columnIndex) {
+				case 0: return String.class;
+				case 1: return Long.class;
+				case 2: return Float.class;
+			}
+			return String.class;
+		}
+	}
+
+}
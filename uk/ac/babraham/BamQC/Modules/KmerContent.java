@@ -0,0 +1,484 @@
+/**
+ * Copyright Copyright 2014 Simon Andrews
+ *
+ *    This file is part of BamQC.
+ *
+ *    BamQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    BamQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with BamQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.babraham.BamQC.Modules;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Vector;
+
+import javax.swing.JPanel;
+import javax.swing.table.AbstractTableModel;
+import javax.xml.stream.XMLStreamException;
+
+import org.apache.commons.math3.distribution.BinomialDistribution;
+
+import net.sf.samtools.SAMRecord;
+import uk.ac.babraham.BamQC.BamQCConfig;
+import uk.ac.babraham.BamQC.Annotation.AnnotationSet;
+import uk.ac.babraham.BamQC.Graphs.BaseGroup;
+import uk.ac.babraham.BamQC.Graphs.LineGraph;
+import uk.ac.babraham.BamQC.Report.HTMLReportArchive;
+import uk.ac.babraham.BamQC.Sequence.PackedRecord;
+import uk.ac.babraham.BamQC.Sequence.SequenceFile;
+
+/**
+ * Looks for short sequences which turn up much more often at some
+ * positions in the reads than they do overall.  These are usually
+ * adapters, primers or biases from library fragmentation.
+ *
+ * Each kmer is held as a number with two bits per base, which we roll
+ * along the read as we go, so we never make a string for it.  The counts
+ * go into one flat array indexed by position and kmer.  If the reads are
+ * too long for that to fit in MAX_COUNTS then neighbouring positions are
+ * merged together, so memory stays fixed however long the reads get.
+ *
+ * We only count one read in every kmer_sample, since the enrichment we're
+ * looking for shows up long before we've seen every read.
+ */
+public class KmerContent extends AbstractQCModule {
+
+	private static final int DEFAULT_KMER_SIZE = 7;
+
+	// The most counts we'll keep, which is 64MB of ints
+	private static final int MAX_COUNTS = 16*1024*1024;
+
+	// Enriched kmers are only reported if they pass this corrected p-value
+	private static final double MAX_P_VALUE = 0.01;
+
+	// The number of kmers we draw on the graph
+	private static final int GRAPH_KMERS = 6;
+
+	// The number of enriched kmers we list in the table
+	private static final int TABLE_KMERS = 20;
+
+	// Two bit codes for each of the 4 bit base codes, going forwards and
+	// as the complement for reverse strand reads.  Anything which isn't a
+	// single base is -1, and breaks the kmer.
+	private static final int [] FORWARD_CODES = new int[16];
+	private static final int [] REVERSE_CODES = new int[16];
+	private static final String BASES = "ACGT";
+
+	static {
+		Arrays.fill(FORWARD_CODES, -1);
+		Arrays.fill(REVERSE_CODES, -1);
+		for (int b=0;b<BASES.length();b++) {
+			int code = PackedRecord.BASE_CODES.indexOf(BASES.charAt(b));
+			FORWARD_CODES[code] = b;
+			REVERSE_CODES[code] = 3-b;
+		}
+	}
+
+	private PackedRecord record = new PackedRecord();
+
+	private int kmerSize;
+	private int kmerCount;
+	private int sampleEvery;
+	private long readsSeen = 0;
+
+	// Indexed by (bucket * kmerCount) + kmer, where each bucket holds
+	// (1 << bucketShift) positions
+	private int [] counts = null;
+	private int bucketShift = 0;
+	private int maxLength = 0;
+
+	private boolean calculated = false;
+	private String [] groupLabels = new String[0];
+	private Vector<Kmer> enrichedKmers = new Vector<Kmer>();
+
+	public KmerContent () {
+		Integer configuredSize = BamQCConfig.getInstance().kmer_size;
+		kmerSize = configuredSize == null ? DEFAULT_KMER_SIZE : configuredSize;
+		kmerCount = 1<<(kmerSize*2);
+		sampleEvery = BamQCConfig.getInstance().kmer_sample;
+	}
+
+	public void processSequence(SAMRecord read) {
+
+		if (read.isSecondaryOrSupplementary()) return;
+		if (readsSeen++ % sampleEvery != 0) return;
+
+		record.load(read);
+		int length = record.readLength();
+		if (length < kmerSize) return;
+
+		makeRoom(length);
+
+		// We count kmers in the order the read was sequenced, so reads on
+		// the reverse strand are read backwards and complemented.
+		boolean reverse = !read.getReadUnmappedFlag() && read.getReadNegativeStrandFlag();
+		int [] codes = reverse ? REVERSE_CODES : FORWARD_CODES;
+		int index = reverse ? length-1 : 0;
+		int step = reverse ? -1 : 1;
+
+		int [] counts = this.counts;
+		int mask = kmerCount-1;
+		int shift = bucketShift;
+		int kmer = 0;
+		int basesInKmer = 0;
+
+		for (int i=0;i<length;i++,index+=step) {
+			int code = codes[record.baseCode(index)];
+			if (code < 0) {
+				basesInKmer = 0;
+				continue;
+			}
+			kmer = ((kmer<<2) | code) & mask;
+
+			if (++basesInKmer >= kmerSize) {
+				++counts[(((i+1-kmerSize)>>shift)*kmerCount)+kmer];
+			}
+		}
+	}
+
+	/**
+	 * Makes sure there's a bucket for every kmer position in a read of the
+	 * given length, merging pairs of buckets if there isn't room.
+	 */
+	private void makeRoom (int length) {
+
+		if (length > maxLength) maxLength = length;
+
+		int positions = length-kmerSize+1;
+		int maxBuckets = Math.max(1, MAX_COUNTS/kmerCount);
+
+		while (((positions-1)>>bucketShift)+1 > maxBuckets) {
+			++bucketShift;
+			if (counts != null) {
+				int [] merged = new int[counts.length];
+				for (int bucket=0;bucket<counts.length/kmerCount;bucket++) {
+					int from = bucket*kmerCount;
+					int to = (bucket>>1)*kmerCount;
+					for (int k=0;k<kmerCount;k++) {
+						merged[to+k] += counts[from+k];
+					}
+				}
+				counts = merged;
+			}
+		}
+
+		int buckets = ((positions-1)>>bucketShift)+1;
+
+		if (counts == null) {
+			counts = new int[Math.min(Math.max(buckets, 150>>bucketShift), maxBuckets)*kmerCount];
+		}
+		else if (buckets*kmerCount > counts.length) {
+			counts = Arrays.copyOf(counts, Math.min(Math.max(buckets, (counts.length/kmerCount)*2), maxBuckets)*kmerCount);
+		}
+	}
+
+	private synchronized void calculateEnrichment () {
+
+		if (calculated) return;
+		calculated = true;
+
+		if (counts == null) return;
+
+		int positions = maxLength-kmerSize+1;
+		int buckets = ((positions-1)>>bucketShift)+1;
+
+		// The groups we test, each a range of buckets.  If we didn't have
+		// to merge positions we use the normal base groups, otherwise each
+		// bucket is a group.
+		int [] groupStarts;
+		int [] groupEnds;
+		if (bucketShift == 0) {
+			BaseGroup [] groups = BaseGroup.makeBaseGroups(positions);
+			groupStarts = new int[groups.length];
+			groupEnds = new int[groups.length];
+			groupLabels = new String[groups.length];
+			for (int g=0;g<groups.length;g++) {
+				groupStarts[g] = groups[g].lowerCount()-1;
+				groupEnds[g] = groups[g].upperCount()-1;
+				groupLabels[g] = groups[g].toString();
+			}
+		}
+		else {
+			groupStarts = new int[buckets];
+			groupEnds = new int[buckets];
+			groupLabels = new String[buckets];
+			for (int b=0;b<buckets;b++) {
+				groupStarts[b] = b;
+				groupEnds[b] = b;
+				groupLabels[b] = ((b<<bucketShift)+1)+"-"+Math.min(positions, (b+1)<<bucketShift);
+			}
+		}
+
+		// Total counts for each kmer and each group
+		long [] kmerTotals = new long[kmerCount];
+		long [] groupTotals = new long[groupStarts.length];
+		long total = 0;
+		for (int g=0;g<groupStarts.length;g++) {
+			for (int bucket=groupStarts[g];bucket<=groupEnds[g];bucket++) {
+				int offset = bucket*kmerCount;
+				for (int k=0;k<kmerCount;k++) {
+					kmerTotals[k] += counts[offset+k];
+					groupTotals[g] += counts[offset+k];
+				}
+			}
+			total += groupTotals[g];
+		}
+
+		if (total == 0) return;
+
+		Kmer [] results = new Kmer[kmerCount];
+		long [] groupCounts = new long[kmerCount];
+
+		for (int g=0;g<groupStarts.length;g++) {
+
+			if (groupTotals[g] == 0 || groupTotals[g] > Integer.MAX_VALUE) continue;
+
+			Arrays.fill(groupCounts, 0);
+			for (int bucket=groupStarts[g];bucket<=groupEnds[g];bucket++) {
+				int offset = bucket*kmerCount;
+				for (int k=0;k<kmerCount;k++) {
+					groupCounts[k] += counts[offset+k];
+				}
+			}
+
+			for (int k=0;k<kmerCount;k++) {
+				if (kmerTotals[k] == 0) continue;
+
+				double proportion = ((double)kmerTotals[k])/total;
+				double expected = groupTotals[g]*proportion;
+
+				// We only look for enrichment, so anything at or below what
+				// we expect can't be significant.
+				if (groupCounts[k] <= expected) continue;
+
+				BinomialDistribution binomial = new BinomialDistribution((int)groupTotals[g], proportion);
+
+				// The chance of seeing at least this many, corrected for
+				// the number of kmers we tested
+				double pValue = (1-binomial.cumulativeProbability((int)groupCounts[k]-1))*kmerCount;
+				if (pValue >= MAX_P_VALUE) continue;
+
+				double ratio = groupCounts[k]/expected;
+
+				if (results[k] == null) {
+					results[k] = new Kmer(k, kmerTotals[k], groupStarts.length);
+				}
+				results[k].addEnrichment(g, ratio, pValue);
+			}
+		}
+
+		enrichedKmers = new Vector<Kmer>();
+		for (int k=0;k<kmerCount;k++) {
+			if (results[k] != null) enrichedKmers.add(results[k]);
+		}
+		Collections.sort(enrichedKmers);
+
+		if (enrichedKmers.size() > TABLE_KMERS) {
+			enrichedKmers.setSize(TABLE_KMERS);
+		}
+	}
+
+	/**
+	 * The -log10 p-value of the most enriched kmer.
+	 */
+	private double bestScore () {
+		calculateEnrichment();
+		if (enrichedKmers.size() == 0) return 0;
+		double pValue = enrichedKmers.elementAt(0).pValue();
+		if (pValue <= 0) return Double.MAX_VALUE;
+		return -Math.log10(pValue);
+	}
+
+	private String sequence (int kmer) {
+		char [] bases = new char[kmerSize];
+		for (int b=kmerSize-1;b>=0;b--) {
+			bases[b] = BASES.charAt(kmer & 3);
+			kmer >>= 2;
+		}
+		return new String(bases);
+	}
+
+	public void processFile(SequenceFile file) {}
+
+	public void processAnnotationSet(AnnotationSet annotation) {}
+
+	public JPanel getResultsPanel() {
+		calculateEnrichment();
+
+		int kmersToShow = Math.min(GRAPH_KMERS, enrichedKmers.size());
+		double [][] data = new double[kmersToShow][];
+		String [] names = new String[kmersToShow];
+		double maxY = 1;
+
+		for (int k=0;k<kmersToShow;k++) {
+			Kmer kmer = enrichedKmers.elementAt(k);
+			data[k] = kmer.ratios();
+			names[k] = sequence(kmer.kmer());
+			for (int g=0;g<data[k].length;g++) {
+				if (data[k][g] > maxY) maxY = data[k][g];
+			}
+		}
+
+		return new LineGraph(data, 0d, maxY, "Position in read (bp)", names, groupLabels, "Relative enrichment over read length");
+	}
+
+	public String name() {
+		return "Kmer Content";
+	}
+
+	public String description() {
+		return "Identifies short sequences which are overrepresented at particular positions";
+	}
+
+	public void reset() {
+		readsSeen = 0;
+		counts = null;
+		bucketShift = 0;
+		maxLength = 0;
+		calculated = false;
+		groupLabels = new String[0];
+		enrichedKmers = new Vector<Kmer>();
+	}
+
+	public boolean raisesError() {
+		return bestScore() > ModuleConfig.getParam("kmer", "error");
+	}
+
+	public boolean raisesWarning() {
+		return bestScore() > ModuleConfig.getParam("kmer", "warn");
+	}
+
+	public boolean needsToSeeSequences() {
+		return true;
+	}
+
+	public boolean needsToSeeAnnotation() {
+		return false;
+	}
+
+	public boolean ignoreInReport() {
+		return ModuleConfig.getParam("kmer", "ignore") > 0 || counts == null;
+	}
+
+	public void makeReport(HTMLReportArchive report) throws XMLStreamException, IOException {
+		calculateEnrichment();
+		if (enrichedKmers.size() > 0) {
+			writeGraph(report, getResultsPanel(), "Kmer graph");
+		}
+		super.writeTable(report, new ResultsTable());
+	}
+
+	private class Kmer implements Comparable<Kmer> {
+
+		private int kmer;
+		private long count;
+		private double [] ratios;
+		private double pValue = 1;
+		private double maxRatio = 0;
+		private int maxGroup = 0;
+
+		public Kmer (int kmer, long count, int groupCount) {
+			this.kmer = kmer;
+			this.count = count;
+			ratios = new double[groupCount];
+		}
+
+		public void addEnrichment (int group, double ratio, double pValue) {
+			ratios[group] = ratio;
+			if (pValue < this.pValue) this.pValue = pValue;
+			if (ratio > maxRatio) {
+				maxRatio = ratio;
+				maxGroup = group;
+			}
+		}
+
+		public int kmer () {
+			return kmer;
+		}
+
+		public long count () {
+			return count;
+		}
+
+		public double [] ratios () {
+			return ratios;
+		}
+
+		public double pValue () {
+			return pValue;
+		}
+
+		public double maxRatio () {
+			return maxRatio;
+		}
+
+		public int maxGroup () {
+			return maxGroup;
+		}
+
+		// Most significant first, then the most enriched
+		public int compareTo(Kmer o) {
+			if (pValue != o.pValue) return Double.compare(pValue, o.pValue);
+			return Double.compare(o.maxRatio, maxRatio);
+		}
+	}
+
+	@SuppressWarnings("serial")
+	private class ResultsTable extends AbstractTableModel {
+
+		public int getColumnCount() {
+			return 5;
+		}
+
+		public int getRowCount() {
+			return enrichedKmers.size();
+		}
+
+		public Object getValueAt(int rowIndex, int columnIndex) {
+			Kmer kmer = enrichedKmers.elementAt(rowIndex);
+			switch (columnIndex) {
+				case 0: return sequence(kmer.kmer());
+				case 1: return kmer.count()*sampleEvery;
+				case 2: return kmer.pValue();
+				case 3: return (float)kmer.maxRatio();
+				case 4: return groupLabels[kmer.maxGroup()];
+			}
+			return null;
+		}
+
+		public String getColumnName (int columnIndex) {
+			switch (columnIndex) {
+				case 0: return "Sequence";
+				case 1: return "Count";
+				case 2: return "PValue";
+				case 3: return "Obs/Exp Max";
+				case 4: return "Max Obs/Exp Position";
+			}
+			return null;
+		}
+
+		public Class<?> getColumnClass (int columnIndex) {
+			switch (columnIndex) {
+				case 0: return String.class;
+				case 1: return Long.class;
+				case 2: return Double.class;
+				case 3: return Float.class;
+				case 4: return String.class;
+			}
+			return null;
+		}
+	}
+
+}
@@ -0,0 +1,319 @@
+/**
+ * Copyright Copyright 2014 Simon Andrews
+ *
+ *    This file is part of BamQC.
+ *
+ *    BamQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    BamQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with BamQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.babraham.BamQC.Modules;
+
+import java.io.IOException;
+
+import javax.swing.JPanel;
+import javax.swing.table.AbstractTableModel;
+import javax.xml.stream.XMLStreamException;
+
+import net.sf.samtools.SAMRecord;
+import uk.ac.babraham.BamQC.BamQCConfig;
+import uk.ac.babraham.BamQC.Annotation.AnnotationSet;
+import uk.ac.babraham.BamQC.Graphs.LineGraph;
+import uk.ac.babraham.BamQC.Report.HTMLReportArchive;
+import uk.ac.babraham.BamQC.Sequence.SequenceFile;
+import uk.ac.babraham.BamQC.Statistics.ZeroTruncatedNegativeBinomial;
+import uk.ac.babraham.BamQC.Utilities.OffHeapLongMap;
+
+/**
+ * Predicts how many more distinct fragments we'd see if the library was
+ * sequenced more deeply.  We count how many times each fragment was seen,
+ * using the same signature as the duplication module but only counting
+ * one read from each pair, and build a histogram of how many fragments
+ * were seen once, twice and so on.
+ *
+ * Up to the current depth the curve comes straight from the histogram,
+ * since we can work out how many fragments we'd have seen in a random
+ * subset of the reads.  Beyond that we fit a zero truncated negative
+ * binomial to the histogram, which estimates how many fragments were in
+ * the library altogether, and extrapolate from that.
+ *
+ * Memory is limited in the same way as in the duplication module: past
+ * a set number of fragments we only follow those whose hash has its low
+ * bits clear.  This keeps all of the copies of a fragment together, so
+ * the histogram of the sample has the same shape as that of the whole
+ * library.  The number is kept well below the duplication module's,
+ * since both maps have to fit in direct memory at once, and the
+ * histogram only needs a fair sample.
+ */
+public class LibraryComplexity extends AbstractQCModule {
+
+	// The multiples of the current depth we show
+	private static final double [] DEPTHS = new double [] {0.25, 0.5, 0.75, 1, 1.5, 2, 3, 4, 5, 6, 7, 8, 9, 10};
+
+	// Fragments seen more often than this are put in with the ones seen
+	// exactly this often, which keeps the histogram a sensible size.
+	private static final int MAX_HISTOGRAM_COUNT = 1000000;
+
+	private OffHeapLongMap fragments = null;
+
+	private long sampleMask = 0;
+	private int sampleBits = 0;
+
+	// Fragments split by how many low bits of their hash were clear, so we
+	// know how many are in the current sample.
+	private long [] fragmentsBySampleLevel = new long[65];
+
+	private boolean calculated = false;
+	private double totalFragments = 0;
+	private double distinctFragments = 0;
+	private double librarySize = -1;
+	private double [] fragmentsAtDepth = new double[DEPTHS.length];
+	private double [] distinctAtDepth = new double[DEPTHS.length];
+
+	public void processSequence(SAMRecord read) {
+
+		if (read.getReadUnmappedFlag() || read.isSecondaryOrSupplementary() || read.getReadFailsVendorQualityCheckFlag()) return;
+
+		// We count each fragment once, from its first read
+		if (read.getReadPairedFlag() && !read.getFirstOfPairFlag()) return;
+
+		if (fragments == null) {
+			fragments = new OffHeapLongMap(Math.min(BamQCConfig.getInstance().complexity_limit, 1000000));
+		}
+
+		long key = DuplicationLevel.positionKey(read);
+
+		++fragmentsBySampleLevel[Long.numberOfTrailingZeros(key)];
+
+		if ((key & sampleMask) != 0) return;
+
+		long count = fragments.get(key);
+
+		if (count == OffHeapLongMap.NO_VALUE) {
+			fragments.put(key, 1);
+
+			while (fragments.size() > BamQCConfig.getInstance().complexity_limit || fragments.isFull()) {
+				++sampleBits;
+				sampleMask = (sampleMask<<1) | 1;
+				fragments.removeKeysMatching(sampleMask);
+			}
+		}
+		else {
+			fragments.put(key, count+1);
+		}
+	}
+
+	private synchronized void calculateCurve () {
+
+		if (calculated) return;
+		calculated = true;
+
+		if (fragments == null) return;
+
+		// Everything we measure on the sample gets scaled up by this much
+		double scale = Math.pow(2, sampleBits);
+
+		long sampledFragments = 0;
+		for (int level=sampleBits;level<fragmentsBySampleLevel.length;level++) {
+			sampledFragments += fragmentsBySampleLevel[level];
+		}
+
+		// Make the histogram of how many fragments were seen each number of times
+		int maxCount = 0;
+		for (long slot=0;slot<fragments.capacity();slot++) {
+			if (!fragments.isUsed(slot)) continue;
+			int count = (int)Math.min(fragments.valueAt(slot), MAX_HISTOGRAM_COUNT);
+			if (count > maxCount) maxCount = count;
+		}
+
+		long [] histogram = new long[maxCount+1];
+		for (long slot=0;slot<fragments.capacity();slot++) {
+			if (!fragments.isUsed(slot)) continue;
+			++histogram[(int)Math.min(fragments.valueAt(slot), MAX_HISTOGRAM_COUNT)];
+		}
+
+		fragments = null;
+
+		int binCount = 0;
+		for (int c=1;c<histogram.length;c++) {
+			if (histogram[c] > 0) ++binCount;
+		}
+
+		int [] values = new int[binCount];
+		long [] frequencies = new long[binCount];
+		long sampledDistinct = 0;
+		binCount = 0;
+		for (int c=1;c<histogram.length;c++) {
+			if (histogram[c] == 0) continue;
+			values[binCount] = c;
+			frequencies[binCount] = histogram[c];
+			sampledDistinct += histogram[c];
+			++binCount;
+		}
+
+		totalFragments = sampledFragments*scale;
+		distinctFragments = sampledDistinct*scale;
+
+		ZeroTruncatedNegativeBinomial fit = ZeroTruncatedNegativeBinomial.fit(values, frequencies, binCount);
+
+		if (fit != null) {
+			librarySize = distinctFragments/fit.fractionSeen(1);
+		}
+
+		for (int d=0;d<DEPTHS.length;d++) {
+			fragmentsAtDepth[d] = totalFragments*DEPTHS[d];
+
+			if (DEPTHS[d] <= 1) {
+				// A fragment seen k times would be missed in a random
+				// subset of the reads with probability (1-depth)^k
+				double distinct = 0;
+				for (int b=0;b<binCount;b++) {
+					distinct += frequencies[b]*(1-Math.pow(1-DEPTHS[d], values[b]));
+				}
+				distinctAtDepth[d] = distinct*scale;
+			}
+			else if (fit != null) {
+				distinctAtDepth[d] = librarySize*fit.fractionSeen(DEPTHS[d]);
+			}
+			else {
+				// With no duplicates at all we've no sign of the library
+				// running out, so every new fragment should be distinct.
+				distinctAtDepth[d] = distinctFragments*DEPTHS[d];
+			}
+		}
+	}
+
+	public void processFile(SequenceFile file) {}
+
+	public void processAnnotationSet(AnnotationSet annotation) {}
+
+	public JPanel getResultsPanel() {
+		calculateCurve();
+
+		// Show the counts in millions if they're large enough
+		double unit = fragmentsAtDepth[DEPTHS.length-1] >= 1000000 ? 1000000 : 1;
+		String unitName = unit > 1 ? " (millions)" : "";
+
+		double [] distinct = new double[DEPTHS.length];
+		double [] total = new double[DEPTHS.length];
+		String [] labels = new String[DEPTHS.length];
+		for (int d=0;d<DEPTHS.length;d++) {
+			distinct[d] = distinctAtDepth[d]/unit;
+			total[d] = fragmentsAtDepth[d]/unit;
+			labels[d] = depthLabel(d);
+		}
+
+		String title = "Expected distinct fragments with deeper sequencing"+unitName;
+		if (librarySize > 0) {
+			title += ", estimated library size "+String.format("%.0f", librarySize);
+		}
+
+		return new LineGraph(new double [][] {distinct, total}, 0d, total[DEPTHS.length-1], "Multiple of current depth", new String [] {"Distinct fragments", "Total fragments"}, labels, title);
+	}
+
+	private static String depthLabel (int d) {
+		if (DEPTHS[d] == Math.floor(DEPTHS[d])) return ((int)DEPTHS[d])+"x";
+		return DEPTHS[d]+"x";
+	}
+
+	public String name() {
+		return "Library Complexity";
+	}
+
+	public String description() {
+		return "Predicts how many more distinct fragments deeper sequencing would find";
+	}
+
+	public void reset() {
+		fragments = null;
+		sampleMask = 0;
+		sampleBits = 0;
+		fragmentsBySampleLevel = new long[65];
+		calculated = false;
+		totalFragments = 0;
+		distinctFragments = 0;
+		librarySize = -1;
+		fragmentsAtDepth = new double[DEPTHS.length];
+		distinctAtDepth = new double[DEPTHS.length];
+	}
+
+	public boolean raisesError() {
+		return false;
+	}
+
+	public boolean raisesWarning() {
+		return false;
+	}
+
+	public boolean needsToSeeSequences() {
+		return true;
+	}
+
+	public boolean needsToSeeAnnotation() {
+		return false;
+	}
+
+	public boolean ignoreInReport() {
+		calculateCurve();
+		return totalFragments == 0;
+	}
+
+	public void makeReport(HTMLReportArchive report) throws XMLStreamException, IOException {
+		calculateCurve();
+		super.writeTable(report, new ResultsTable());
+	}
+
+	@SuppressWarnings("serial")
+	private class ResultsTable extends AbstractTableModel {
+
+		// Depth - Fragments - Distinct fragments - Percent distinct
+		public int getColumnCount() {
+			return 4;
+		}
+
+		public int getRowCount() {
+			return DEPTHS.length;
+		}
+
+		public Object getValueAt(int rowIndex, int columnIndex) {
+			switch (columnIndex) {
+				case 0: return depthLabel(rowIndex);
+				case 1: return Math.round(fragmentsAtDepth[rowIndex]);
+				case 2: return Math.round(distinctAtDepth[rowIndex]);
+				case 3: return fragmentsAtDepth[rowIndex] == 0 ? 0f : (float)((distinctAtDepth[rowIndex]*100)/fragmentsAtDepth[rowIndex]);
+			}
+			return null;
+		}
+
+		public String getColumnName (int columnIndex) {
+			switch (columnIndex) {
+				case 0: return "Depth";
+				case 1: return "Fragments";
+				case 2: return "Distinct fragments";
+				case 3: return "Percent distinct";
+			}
+			return null;
+		}
+
+		public Class<?> getColumnClass (int columnIndex) {
+			switch (columnIndex) {
+				case 0: return String.class;
+				case 1: return Long.class;
+				case 2: return Long.class;
+				case 3: return Float.class;
+			}
+			return null;
+		}
+	}
+
+}
@@ -0,0 +1,589 @@
+/**
+ * Copyright Copyright 2014 Simon Andrews
+ *
+ *    This file is part of BamQC.
+ *
+ *    BamQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    BamQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with BamQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.babraham.BamQC.Modules;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import javax.swing.JPanel;
+import javax.swing.table.AbstractTableModel;
+import javax.xml.stream.XMLStreamException;
+
+import net.sf.samtools.SAMRecord;
+import uk.ac.babraham.BamQC.Annotation.AnnotationSet;
+import uk.ac.babraham.BamQC.Graphs.BaseGroup;
+import uk.ac.babraham.BamQC.Graphs.LineGraph;
+import uk.ac.babraham.BamQC.Report.HTMLReportArchive;
+import uk.ac.babraham.BamQC.Sequence.PackedRecord;
+import uk.ac.babraham.BamQC.Sequence.SequenceFile;
+
+/**
+ * Measures how often aligned bases disagree with the reference, by
+ * sequencing cycle, by type of substitution and by base quality.
+ *
+ * The MD tag tells us which reference base was at each mismatch, so we
+ * walk along it and the CIGAR string together.  Both are read straight
+ * from the packed record so we don't make any strings or arrays for each
+ * read.  Substitutions are reported as they were sequenced, so for reads
+ * on the reverse strand both bases are complemented.
+ *
+ * If a read has no MD tag we fall back to its NM tag, which gives us the
+ * number of mismatches in the read but not where they were.
+ */
+public class MismatchProfile extends AbstractQCModule {
+
+	private static final String [] BASES = new String [] {"A", "C", "G", "T"};
+
+	// The index in BASES of each of the 4 bit base codes, or -1 if it
+	// isn't a single base
+	private static final int [] CODE_TO_BASE = new int[16];
+
+	// The index in BASES of each reference letter in an MD tag
+	private static final int [] LETTER_TO_BASE = new int[128];
+
+	static {
+		Arrays.fill(CODE_TO_BASE, -1);
+		Arrays.fill(LETTER_TO_BASE, -1);
+		for (int b=0;b<BASES.length;b++) {
+			CODE_TO_BASE[PackedRecord.BASE_CODES.indexOf(BASES[b])] = b;
+			LETTER_TO_BASE[BASES[b].charAt(0)] = b;
+			LETTER_TO_BASE[Character.toLowerCase(BASES[b].charAt(0))] = b;
+		}
+	}
+
+	private static final int QUALITY_SLOTS = 64;
+
+	// Reads with more mismatches than this are counted together
+	private static final int MAX_READ_MISMATCHES = 20;
+
+	private PackedRecord record = new PackedRecord();
+
+	private long [] alignedByCycle = new long[150];
+	private long [] mismatchesByCycle = new long[150];
+	private int maxLength = 0;
+
+	// Indexed by (reference base * 4) + read base
+	private long [] substitutions = new long[16];
+
+	private long [] alignedByQuality = new long[QUALITY_SLOTS];
+	private long [] mismatchesByQuality = new long[QUALITY_SLOTS];
+
+	private long [] readsByMismatches = new long[MAX_READ_MISMATCHES+1];
+
+	private long mdReads = 0;
+	private long nmReads = 0;
+	private long untaggedReads = 0;
+	private long unreadableReads = 0;
+	private long alignedBases = 0;
+	private long mismatchedBases = 0;
+
+	public void processSequence(SAMRecord read) {
+
+		if (read.getReadUnmappedFlag() || read.isSecondaryOrSupplementary()) return;
+
+		record.load(read);
+
+		int md = record.stringTag('M', 'D');
+		if (md >= 0) {
+			if (countFromMD(md, read.getReadNegativeStrandFlag())) {
+				++mdReads;
+			}
+			else {
+				++unreadableReads;
+			}
+			return;
+		}
+
+		long nm = record.integerTag('N', 'M', -1);
+		if (nm < 0) {
+			++untaggedReads;
+			return;
+		}
+
+		countFromNM(nm);
+		++nmReads;
+	}
+
+	/**
+	 * Walks along the CIGAR and MD tag together.  The MD tag is a run of
+	 * matching bases, then either a mismatched reference base or a ^ and
+	 * the deleted reference bases, then another run and so on.
+	 *
+	 * An N in the reference is ambiguous, so we leave those bases out.
+	 *
+	 * @return false if the MD tag didn't fit the CIGAR
+	 */
+	private boolean countFromMD (int md, boolean reverse) {
+
+		// We check the whole tag first so that a bad one doesn't leave
+		// part of the read in the totals
+		if (!mdFitsCigar(md)) return false;
+
+		byte [] data = record.data();
+		int readLength = record.readLength();
+		int cigarCount = record.cigarCount();
+
+		int leadingClip = record.leadingHardClip();
+		int trailingClip = record.trailingHardClip();
+		int fullLength = leadingClip+readLength+trailingClip;
+
+		if (fullLength > alignedByCycle.length) {
+			alignedByCycle = Arrays.copyOf(alignedByCycle, Math.max(fullLength, alignedByCycle.length*2));
+			mismatchesByCycle = Arrays.copyOf(mismatchesByCycle, alignedByCycle.length);
+		}
+		if (fullLength > maxLength) maxLength = fullLength;
+
+		int position = md;
+		int matches = 0;
+		while (data[position] >= '0' && data[position] <= '9') {
+			matches = (matches*10)+(data[position++]-'0');
+		}
+
+		int readMismatches = 0;
+		int readPosition = 0;
+
+		for (int c=0;c<cigarCount;c++) {
+			int length = record.cigarLength(c);
+
+			switch (record.cigarOperator(c)) {
+
+				case PackedRecord.CIGAR_MATCH:
+				case PackedRecord.CIGAR_SEQUENCE_MATCH:
+				case PackedRecord.CIGAR_SEQUENCE_MISMATCH:
+
+					for (int i=0;i<length;i++,readPosition++) {
+						int referenceBase = -1;
+
+						if (matches > 0) {
+							--matches;
+						}
+						else {
+							referenceBase = LETTER_TO_BASE[data[position]];
+							++position;
+
+							while (data[position] >= '0' && data[position] <= '9') {
+								matches = (matches*10)+(data[position++]-'0');
+							}
+
+							if (referenceBase < 0) continue;
+						}
+
+						int readBase = CODE_TO_BASE[record.baseCode(readPosition)];
+
+						// We don't count Ns, which aligners put in as mismatches
+						if (readBase < 0) continue;
+
+						boolean mismatch = referenceBase >= 0 && referenceBase != readBase;
+						if (mismatch) ++readMismatches;
+						if (referenceBase < 0) referenceBase = readBase;
+
+						int cycle = leadingClip+readPosition;
+						if (reverse) {
+							cycle = fullLength-1-cycle;
+							referenceBase = 3-referenceBase;
+							readBase = 3-readBase;
+						}
+
+						++alignedByCycle[cycle];
+						++substitutions[(referenceBase*4)+readBase];
+						++alignedBases;
+
+						int quality = record.quality(readPosition);
+						if (quality != PackedRecord.MISSING_QUALITY) {
+							if (quality >= QUALITY_SLOTS) quality = QUALITY_SLOTS-1;
+							++alignedByQuality[quality];
+							if (mismatch) ++mismatchesByQuality[quality];
+						}
+
+						if (mismatch) {
+							++mismatchesByCycle[cycle];
+							++mismatchedBases;
+						}
+					}
+					break;
+
+				case PackedRecord.CIGAR_INSERTION:
+				case PackedRecord.CIGAR_SOFT_CLIP:
+					readPosition += length;
+					break;
+
+				case PackedRecord.CIGAR_DELETION:
+					++position;
+					while (isLetter(data[position])) ++position;
+					while (data[position] >= '0' && data[position] <= '9') {
+						matches = (matches*10)+(data[position++]-'0');
+					}
+					break;
+			}
+		}
+
+		++readsByMismatches[Math.min(readMismatches, MAX_READ_MISMATCHES)];
+
+		return true;
+	}
+
+	/**
+	 * Walks along the CIGAR and MD tag together without counting anything,
+	 * to see whether they describe the same alignment.
+	 */
+	private boolean mdFitsCigar (int md) {
+
+		byte [] data = record.data();
+		int readLength = record.readLength();
+
+		int position = md;
+		int matches = 0;
+		while (data[position] >= '0' && data[position] <= '9') {
+			matches = (matches*10)+(data[position++]-'0');
+		}
+
+		int readPosition = 0;
+
+		for (int c=0;c<record.cigarCount();c++) {
+			int length = record.cigarLength(c);
+
+			switch (record.cigarOperator(c)) {
+
+				case PackedRecord.CIGAR_MATCH:
+				case PackedRecord.CIGAR_SEQUENCE_MATCH:
+				case PackedRecord.CIGAR_SEQUENCE_MISMATCH:
+
+					if (readPosition+length > readLength) return false;
+					readPosition += length;
+
+					for (int i=0;i<length;i++) {
+						if (matches > 0) {
+							--matches;
+							continue;
+						}
+
+						if (!isLetter(data[position])) return false;
+						++position;
+
+						while (data[position] >= '0' && data[position] <= '9') {
+							matches = (matches*10)+(data[position++]-'0');
+						}
+					}
+					break;
+
+				case PackedRecord.CIGAR_INSERTION:
+				case PackedRecord.CIGAR_SOFT_CLIP:
+					readPosition += length;
+					break;
+
+				case PackedRecord.CIGAR_DELETION:
+					if (matches > 0 || data[position] != '^') return false;
+					++position;
+					while (isLetter(data[position])) ++position;
+					while (data[position] >= '0' && data[position] <= '9') {
+						matches = (matches*10)+(data[position++]-'0');
+					}
+					break;
+			}
+		}
+
+		return true;
+	}
+
+	private static boolean isLetter (int c) {
+		return (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z');
+	}
+
+	/**
+	 * NM is the edit distance, so we take off the indels from the CIGAR
+	 * to leave the number of mismatches.
+	 */
+	private void countFromNM (long nm) {
+
+		long aligned = 0;
+		long indels = 0;
+
+		for (int c=0;c<record.cigarCount();c++) {
+			switch (record.cigarOperator(c)) {
+				case PackedRecord.CIGAR_MATCH:
+				case PackedRecord.CIGAR_SEQUENCE_MATCH:
+				case PackedRecord.CIGAR_SEQUENCE_MISMATCH:
+					aligned += record.cigarLength(c);
+					break;
+				case PackedRecord.CIGAR_INSERTION:
+				case PackedRecord.CIGAR_DELETION:
+					indels += record.cigarLength(c);
+					break;
+			}
+		}
+
+		long mismatches = Math.max(0, nm-indels);
+
+		alignedBases += aligned;
+		mismatchedBases += mismatches;
+		++readsByMismatches[(int)Math.min(mismatches, MAX_READ_MISMATCHES)];
+	}
+
+	private double mismatchPercentage () {
+		if (alignedBases == 0) return 0;
+		return (mismatchedBases*100d)/alignedBases;
+	}
+
+	public void processFile(SequenceFile file) {}
+
+	public void processAnnotationSet(AnnotationSet annotation) {}
+
+	public JPanel getResultsPanel() {
+
+		// Without any MD tags we can only show how many mismatches each
+		// read had
+		if (maxLength == 0) {
+			long reads = nmReads+mdReads;
+			double [] percentages = new double[readsByMismatches.length];
+			String [] labels = new String[readsByMismatches.length];
+			double maxY = 0;
+			for (int m=0;m<readsByMismatches.length;m++) {
+				percentages[m] = reads == 0 ? 0 : (readsByMismatches[m]*100d)/reads;
+				if (percentages[m] > maxY) maxY = percentages[m];
+				labels[m] = m == MAX_READ_MISMATCHES ? m+"+" : ""+m;
+			}
+			return new LineGraph(new double [][] {percentages}, 0d, maxY, "Mismatches in read", new String [] {"% of reads"}, labels, "Mismatches per read");
+		}
+
+		BaseGroup [] groups = BaseGroup.makeBaseGroups(maxLength);
+		double [] percentages = new double[groups.length];
+		String [] labels = new String[groups.length];
+		double maxY = 0;
+
+		for (int g=0;g<groups.length;g++) {
+			labels[g] = groups[g].toString();
+
+			long aligned = 0;
+			long mismatches = 0;
+			for (int cycle=groups[g].lowerCount()-1;cycle<groups[g].upperCount();cycle++) {
+				aligned += alignedByCycle[cycle];
+				mismatches += mismatchesByCycle[cycle];
+			}
+
+			percentages[g] = aligned == 0 ? 0 : (mismatches*100d)/aligned;
+			if (percentages[g] > maxY) maxY = percentages[g];
+		}
+
+		return new LineGraph(new double [][] {percentages}, 0d, maxY, "Position in read (bp)", new String [] {"% mismatches"}, labels, "Mismatches across all bases, "+String.format("%.3f", mismatchPercentage())+"% overall");
+	}
+
+	public String name() {
+		return "Mismatch Profile";
+	}
+
+	public String description() {
+		return "Shows where and how aligned bases differ from the reference";
+	}
+
+	public void reset() {
+		alignedByCycle = new long[150];
+		mismatchesByCycle = new long[150];
+		maxLength = 0;
+		substitutions = new long[16];
+		alignedByQuality = new long[QUALITY_SLOTS];
+		mismatchesByQuality = new long[QUALITY_SLOTS];
+		readsByMismatches = new long[MAX_READ_MISMATCHES+1];
+		mdReads = 0;
+		nmReads = 0;
+		untaggedReads = 0;
+		unreadableReads = 0;
+		alignedBases = 0;
+		mismatchedBases = 0;
+	}
+
+	public boolean raisesError() {
+		return mismatchPercentage() > ModuleConfig.getParam("mismatch", "error");
+	}
+
+	public boolean raisesWarning() {
+		return mismatchPercentage() > ModuleConfig.getParam("mismatch", "warn");
+	}
+
+	public boolean needsToSeeSequences() {
+		return true;
+	}
+
+	public boolean needsToSeeAnnotation() {
+		return false;
+	}
+
+	public boolean ignoreInReport() {
+		return ModuleConfig.getParam("mismatch", "ignore") > 0 || alignedBases == 0;
+	}
+
+	public void makeReport(HTMLReportArchive report) throws XMLStreamException, IOException {
+		writeGraph(report, getResultsPanel(), "Mismatch graph");
+		super.writeTable(report, new SummaryTable());
+		if (maxLength > 0) {
+			super.writeTable(report, new SubstitutionTable());
+			super.writeTable(report, new QualityTable());
+		}
+	}
+
+	@SuppressWarnings("serial")
+	private class SummaryTable extends AbstractTableModel {
+
+		private String [] names = new String [] {"Reads with MD tags", "Reads with only NM tags", "Reads with neither tag", "Reads whose MD tag didn't match the CIGAR", "Aligned bases", "Mismatched bases", "Mismatch percentage"};
+
+		public int getColumnCount() {
+			return 2;
+		}
+
+		public int getRowCount() {
+			return names.length;
+		}
+
+		public Object getValueAt(int rowIndex, int columnIndex) {
+			if (columnIndex == 0) return names[rowIndex];
+
+			switch (rowIndex) {
+				case 0: return ""+mdReads;
+				case 1: return ""+nmReads;
+				case 2: return ""+untaggedReads;
+				case 3: return ""+unreadableReads;
+				case 4: return ""+alignedBases;
+				case 5: return ""+mismatchedBases;
+				case 6: return String.format("%.3f", mismatchPercentage());
+			}
+			return null;
+		}
+
+		public String getColumnName (int columnIndex) {
+			if (columnIndex == 0) return "Measure";
+			return "Value";
+		}
+
+		public Class<?> getColumnClass (int columnIndex) {
+			return String.class;
+		}
+	}
+
+	@SuppressWarnings("serial")
+	private class SubstitutionTable extends AbstractTableModel {
+
+		// Only the 12 real substitutions, not bases which matched
+		public int getColumnCount() {
+			return 4;
+		}
+
+		public int getRowCount() {
+			return 12;
+		}
+
+		private int substitution (int rowIndex) {
+			int reference = rowIndex/3;
+			int read = rowIndex%3;
+			if (read >= reference) ++read;
+			return (reference*4)+read;
+		}
+
+		public Object getValueAt(int rowIndex, int columnIndex) {
+			int index = substitution(rowIndex);
+			switch (columnIndex) {
+				case 0: return BASES[index/4];
+				case 1: return BASES[index%4];
+				case 2: return substitutions[index];
+				case 3: return mismatchedBases == 0 ? 0f : (float)((substitutions[index]*100d)/mismatchedBases);
+			}
+			return null;
+		}
+
+		public String getColumnName (int columnIndex) {
+			switch (columnIndex) {
+				case 0: return "Reference";
+				case 1: return "Read";
+				case 2: return "Count";
+				case 3: return "Percent of mismatches";
+			}
+			return null;
+		}
+
+		public Class<?> getColumnClass (int columnIndex) {
+			switch (columnIndex) {
+				case 2: return Long.class;
+				case 3: return Float.class;
+			}
+			return String.class;
+		}
+	}
+
+	@SuppressWarnings("serial")
+	private class QualityTable extends AbstractTableModel {
+
+		private int [] qualities;
+
+		public QualityTable () {
+			int count = 0;
+			for (int q=0;q<QUALITY_SLOTS;q++) {
+				if (alignedByQuality[q] > 0) ++count;
+			}
+			qualities = new int[count];
+			count = 0;
+			for (int q=0;q<QUALITY_SLOTS;q++) {
+				if (alignedByQuality[q] > 0) qualities[count++] = q;
+			}
+		}
+
+		// Quality - Bases - Mismatches - Percentage - Measured quality
+		public int getColumnCount() {
+			return 5;
+		}
+
+		public int getRowCount() {
+			return qualities.length;
+		}
+
+		public Object getValueAt(int rowIndex, int columnIndex) {
+			int q = qualities[rowIndex];
+			switch (columnIndex) {
+				case 0: return q;
+				case 1: return alignedByQuality[q];
+				case 2: return mismatchesByQuality[q];
+				case 3: return (float)((mismatchesByQuality[q]*100d)/alignedByQuality[q]);
+				case 4:
+					// With no mismatches we can only say the quality is at least this
+					double errorRate = Math.max(mismatchesByQuality[q], 1)/(double)alignedByQuality[q];
+					return (float)(-10*Math.log10(errorRate));
+			}
+			return null;
+		}
+
+		public String getColumnName (int columnIndex) {
+			switch (columnIndex) {
+				case 0: return "Quality";
+				case 1: return "Bases";
+				case 2: return "Mismatches";
+				case 3: return "Mismatch percentage";
+				case 4: return "Measured quality";
+			}
+			return null;
+		}
+
+		public Class<?> getColumnClass (int columnIndex) {
+			switch (columnIndex) {
+				case 0: return Integer.class;
+				case 1: return Long.class;
+				case 2: return Long.class;
+			}
+			return Float.class;
+		}
+	}
+
+}
@@ -62,6 +62,12 @@ public class ModuleConfig {
 		params.put("sequence_length:error",	1d);
 		params.put("adapter:warn", 5d);
 		params.put("adapter:error", 10d);
+		params.put("insert_size:warn", 10d);
+		params.put("insert_size:error", 25d);
+		params.put("mismatch:warn", 1d);
+		params.put("mismatch:error", 2d);
+		params.put("pair:warn", 10d);
+		params.put("pair:error", 25d);
 		
 		params.put("duplication:ignore",0d);
 		params.put("kmer:ignore",0d);
@@ -70,10 +76,18 @@ public class ModuleConfig {
 		params.put("quality_base:ignore",0d);
 		params.put("sequence:ignore",0d);
 		params.put("gc_quality:ignore",0d);
+		params.put("gc_sequence:ignore",0d);
 		params.put("quality_sequence:ignore",0d);
 		params.put("tile:ignore",0d);
 		params.put("sequence_length:ignore",0d);
 		params.put("adapter:ignore",0d);
+		params.put("insert_size:ignore",0d);
+		params.put("mismatch:ignore",0d);
+		params.put("cigar:ignore",0d);
+		params.put("pair:ignore",0d);
+		params.put("junction:ignore",0d);
+		params.put("genebody:ignore",0d);
+		params.put("depth:ignore",0d);
 				
 		// Now read the config file to see if there are updated values for any of these.
 		
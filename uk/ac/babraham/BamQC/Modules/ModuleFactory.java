@@ -27,7 +27,24 @@ public class ModuleFactory {
 		QCModule [] module_list = new QCModule [] {
 				new BasicStats(),
 				new ChromosomeDensity(),
+				new DepthOfCoverage(),
 				new FeatureCoverage(),
+				new FeatureReadCounts(),
+				new TranscriptLocation(),
+				new GeneBodyCoverage(),
+				new DuplicationLevel(),
+				new LibraryComplexity(),
+				new InsertSizeDistribution(),
+				new PairedEndConsistency(),
+				new PerBaseQualityScores(),
+				new PerTileQualityScores(),
+				new MismatchProfile(),
+				new CigarProfile(),
+				new SpliceJunctions(),
+				new PerSequenceGCContent(),
+				new KmerContent(),
+				new OverRepresentedSeqs(),
+				new AdapterContent(),
 			};
 	
 		return (module_list);
@@ -0,0 +1,367 @@
+/**
+ * Copyright Copyright 2014 Simon Andrews
+ *
+ *    This file is part of BamQC.
+ *
+ *    BamQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    BamQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with BamQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.babraham.BamQC.Modules;
+
+import java.awt.BorderLayout;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Vector;
+
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.JTable;
+import javax.swing.table.AbstractTableModel;
+import javax.xml.stream.XMLStreamException;
+
+import net.sf.samtools.SAMRecord;
+import uk.ac.babraham.BamQC.BamQCConfig;
+import uk.ac.babraham.BamQC.Annotation.AnnotationSet;
+import uk.ac.babraham.BamQC.Report.HTMLReportArchive;
+import uk.ac.babraham.BamQC.Sequence.PackedRecord;
+import uk.ac.babraham.BamQC.Sequence.SequenceFile;
+import uk.ac.babraham.BamQC.Utilities.OffHeapLongMap;
+import uk.ac.babraham.BamQC.Utilities.SpaceSaving;
+
+/**
+ * Finds read sequences which make up a large part of the library, such
+ * as adapter dimers or contaminants.
+ *
+ * We can't keep an exact count of every distinct sequence in a large
+ * file, so each read is hashed and the hashes are counted with a fixed
+ * number of Space-Saving counters.  The number of counters comes from the
+ * overrepresented_error setting, which is the most any count can be out
+ * by as a percentage of all reads.  We keep the sequence for each counter
+ * so we can report it.
+ *
+ * Once a sequence is certainly above half of the warning level it's
+ * moved out into a small table of candidates and counted exactly from
+ * then on, so the counters are left for the rest of the library.
+ *
+ * As in FastQC, reads longer than 75bp are cut down to their first 50bp,
+ * since they're unlikely to be duplicated all the way along.
+ */
+public class OverRepresentedSeqs extends AbstractQCModule {
+
+	private static final int MAX_FULL_LENGTH = 75;
+	private static final int TRUNCATED_LENGTH = 50;
+
+	// The 4 bit codes are a bit for each possible base, so complementing
+	// a code reverses its bits.
+	private static final int [] COMPLEMENT_CODES = new int[16];
+
+	static {
+		for (int code=0;code<16;code++) {
+			COMPLEMENT_CODES[code] = ((code & 1)<<3) | ((code & 2)<<1) | ((code & 4)>>1) | ((code & 8)>>3);
+		}
+	}
+
+	private PackedRecord record = new PackedRecord();
+	private byte [] codes = new byte[MAX_FULL_LENGTH];
+
+	private SpaceSaving counters;
+
+	// The sequence for each counter, MAX_FULL_LENGTH codes per slot
+	private byte [] slotSequences;
+	private byte [] slotLengths;
+
+	// Sequences we're counting exactly, found through candidateIndex
+	private OffHeapLongMap candidateIndex;
+	private int maxCandidates;
+	private int candidateCount = 0;
+	private long [] candidateCounts;
+	private long [] candidateErrors;
+	private String [] candidateSequences;
+
+	// A candidate must be certain to be at least this fraction of the reads
+	private double promoteFraction;
+
+	private long totalReads = 0;
+
+	private boolean calculated = false;
+	private Vector<OverrepresentedSeq> overrepresentedSeqs = new Vector<OverrepresentedSeq>();
+
+	public OverRepresentedSeqs () {
+		reset();
+	}
+
+	public void processSequence(SAMRecord read) {
+
+		if (read.isSecondaryOrSupplementary()) return;
+
+		record.load(read);
+		int fullLength = record.readLength();
+		if (fullLength == 0) return;
+
+		int length = fullLength > MAX_FULL_LENGTH ? TRUNCATED_LENGTH : fullLength;
+
+		// We want the sequence as it was read, so reverse strand reads are
+		// turned back round
+		boolean reverse = !read.getReadUnmappedFlag() && read.getReadNegativeStrandFlag();
+
+		long hash = length;
+		for (int i=0;i<length;i++) {
+			int code = reverse ? COMPLEMENT_CODES[record.baseCode(fullLength-1-i)] : record.baseCode(i);
+			codes[i] = (byte)code;
+			hash = (hash ^ code)*0x100000001b3L;
+		}
+
+		hash ^= hash>>>33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash>>>33;
+		if (hash == 0) hash = 1;
+
+		++totalReads;
+
+		long candidate = candidateIndex.get(hash);
+		if (candidate != OffHeapLongMap.NO_VALUE) {
+			++candidateCounts[(int)candidate];
+			return;
+		}
+
+		int slot = counters.offer(hash);
+
+		if (counters.wasInserted()) {
+			System.arraycopy(codes, 0, slotSequences, slot*MAX_FULL_LENGTH, length);
+			slotLengths[slot] = (byte)length;
+		}
+
+		// We don't move anything out until the counters have had a chance
+		// to fill, otherwise the first reads would all look common.
+		if (totalReads < counters.capacity() || candidateCount == maxCandidates) return;
+
+		long certainCount = counters.count(slot)-counters.error(slot);
+		if (certainCount >= 2 && certainCount >= totalReads*promoteFraction) {
+			candidateCounts[candidateCount] = counters.count(slot);
+			candidateErrors[candidateCount] = counters.error(slot);
+			candidateSequences[candidateCount] = sequence(slot);
+			candidateIndex.put(hash, candidateCount);
+			++candidateCount;
+			counters.remove(hash);
+		}
+	}
+
+	private String sequence (int slot) {
+		char [] bases = new char[slotLengths[slot]];
+		for (int i=0;i<bases.length;i++) {
+			bases[i] = PackedRecord.BASE_CODES.charAt(slotSequences[(slot*MAX_FULL_LENGTH)+i]);
+		}
+		return new String(bases);
+	}
+
+	private synchronized void calculateOverrepresented () {
+
+		if (calculated) return;
+		calculated = true;
+
+		overrepresentedSeqs = new Vector<OverrepresentedSeq>();
+		if (totalReads == 0) return;
+
+		double reportLevel = ModuleConfig.getParam("overrepresented", "warn");
+
+		for (int c=0;c<candidateCount;c++) {
+			if ((candidateCounts[c]*100d)/totalReads >= reportLevel) {
+				overrepresentedSeqs.add(new OverrepresentedSeq(candidateSequences[c], candidateCounts[c], candidateErrors[c]));
+			}
+		}
+
+		for (int slot=0;slot<counters.capacity();slot++) {
+			if (!counters.isUsed(slot)) continue;
+			if ((counters.count(slot)*100d)/totalReads >= reportLevel) {
+				overrepresentedSeqs.add(new OverrepresentedSeq(sequence(slot), counters.count(slot), counters.error(slot)));
+			}
+		}
+
+		Collections.sort(overrepresentedSeqs);
+	}
+
+	/**
+	 * The highest percentage of the reads we can be sure any one
+	 * sequence made up.
+	 */
+	private double highestCertainPercentage () {
+		calculateOverrepresented();
+		double highest = 0;
+		for (int s=0;s<overrepresentedSeqs.size();s++) {
+			OverrepresentedSeq seq = overrepresentedSeqs.elementAt(s);
+			highest = Math.max(highest, ((seq.count()-seq.error())*100d)/totalReads);
+		}
+		return highest;
+	}
+
+	public void processFile(SequenceFile file) {}
+
+	public void processAnnotationSet(AnnotationSet annotation) {}
+
+	public JPanel getResultsPanel() {
+		calculateOverrepresented();
+
+		JPanel returnPanel = new JPanel();
+		returnPanel.setLayout(new BorderLayout());
+		returnPanel.add(new JLabel("Overrepresented sequences",JLabel.CENTER),BorderLayout.NORTH);
+
+		if (overrepresentedSeqs.size() > 0) {
+			returnPanel.add(new JScrollPane(new JTable(new ResultsTable())),BorderLayout.CENTER);
+		}
+		else {
+			returnPanel.add(new JLabel("There are no overrepresented sequences",JLabel.CENTER),BorderLayout.CENTER);
+		}
+
+		return returnPanel;
+	}
+
+	public String name() {
+		return "Overrepresented sequences";
+	}
+
+	public String description() {
+		return "Identifies sequences which are overrepresented in the set";
+	}
+
+	public void reset() {
+		int capacity = (int)Math.ceil(100/BamQCConfig.getInstance().overrepresented_error);
+		counters = new SpaceSaving(capacity);
+		slotSequences = new byte[capacity*MAX_FULL_LENGTH];
+		slotLengths = new byte[capacity];
+
+		// No more than 2/warn percent of sequences can be above half of the
+		// warning level at once
+		double warnLevel = ModuleConfig.getParam("overrepresented", "warn");
+		promoteFraction = warnLevel/200;
+		maxCandidates = (int)Math.min(100000, Math.max(10, Math.ceil(200/warnLevel)));
+		candidateIndex = new OffHeapLongMap(maxCandidates);
+		candidateCount = 0;
+		candidateCounts = new long[maxCandidates];
+		candidateErrors = new long[maxCandidates];
+		candidateSequences = new String[maxCandidates];
+
+		totalReads = 0;
+		calculated = false;
+		overrepresentedSeqs = new Vector<OverrepresentedSeq>();
+	}
+
+	public boolean raisesError() {
+		return highestCertainPercentage() > ModuleConfig.getParam("overrepresented", "error");
+	}
+
+	public boolean raisesWarning() {
+		return highestCertainPercentage() > ModuleConfig.getParam("overrepresented", "warn");
+	}
+
+	public boolean needsToSeeSequences() {
+		return true;
+	}
+
+	public boolean needsToSeeAnnotation() {
+		return false;
+	}
+
+	public boolean ignoreInReport() {
+		return ModuleConfig.getParam("overrepresented", "ignore") > 0 || totalReads == 0;
+	}
+
+	public void makeReport(HTMLReportArchive report) throws XMLStreamException, IOException {
+		calculateOverrepresented();
+		if (overrepresentedSeqs.size() == 0) {
+			report.xhtmlStream().writeStartElement("p");
+			report.xhtmlStream().writeCharacters("No overrepresented sequences");
+			report.xhtmlStream().writeEndElement();
+		}
+		else {
+			super.writeTable(report, new ResultsTable());
+		}
+	}
+
+	private class OverrepresentedSeq implements Comparable<OverrepresentedSeq> {
+
+		private String seq;
+		private long count;
+		private long error;
+
+		public OverrepresentedSeq (String seq, long count, long error) {
+			this.seq = seq;
+			this.count = count;
+			this.error = error;
+		}
+
+		public String seq () {
+			return seq;
+		}
+
+		public long count () {
+			return count;
+		}
+
+		public long error () {
+			return error;
+		}
+
+		public int compareTo(OverrepresentedSeq o) {
+			if (o.count > count) return 1;
+			if (o.count < count) return -1;
+			return 0;
+		}
+	}
+
+	@SuppressWarnings("serial")
+	private class ResultsTable extends AbstractTableModel {
+
+		// Sequence - Count - Percentage - Possible overcount
+		public int getColumnCount() {
+			return 4;
+		}
+
+		public int getRowCount() {
+			return overrepresentedSeqs.size();
+		}
+
+		public Object getValueAt(int rowIndex, int columnIndex) {
+			OverrepresentedSeq seq = overrepresentedSeqs.elementAt(rowIndex);
+			switch (columnIndex) {
+				case 0: return seq.seq();
+				case 1: return seq.count();
+				case 2: return (seq.count()*100d)/totalReads;
+				case 3: return seq.error();
+			}
+			return null;
+		}
+
+		public String getColumnName (int columnIndex) {
+			switch (columnIndex) {
+				case 0: return "Sequence";
+				case 1: return "Count";
+				case 2: return "Percentage";
+				case 3: return "Possible overcount";
+			}
+			return null;
+		}
+
+		public Class<?> getColumnClass (int columnIndex) {
+			switch (columnIndex) {
+				case 0: return String.class;
+				case 1: return Long.class;
+				case 2: return Double.class;
+				case 3: return Long.class;
+			}
+			return null;
+		}
+	}
+
+}
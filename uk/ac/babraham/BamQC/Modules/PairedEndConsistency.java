@@ -0,0 +1,687 @@
+/**
+ * Copyright Copyright 2014 Simon Andrews
+ *
+ *    This file is part of BamQC.
+ *
+ *    BamQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    BamQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with BamQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.babraham.BamQC.Modules;
+
+import java.awt.BorderLayout;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Vector;
+
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.JTable;
+import javax.swing.table.AbstractTableModel;
+import javax.xml.stream.XMLStreamException;
+
+import net.sf.samtools.SAMRecord;
+import uk.ac.babraham.BamQC.BamQCConfig;
+import uk.ac.babraham.BamQC.Annotation.AnnotationSet;
+import uk.ac.babraham.BamQC.Report.HTMLReportArchive;
+import uk.ac.babraham.BamQC.Sequence.PackedRecord;
+import uk.ac.babraham.BamQC.Sequence.SequenceFile;
+import uk.ac.babraham.BamQC.Utilities.OffHeapLongMap;
+
+/**
+ * Checks that aligned reads in pairs agree with their mates.  We count
+ * proper pairs, reads whose mate didn't align, mates on different
+ * chromosomes and the orientation of pairs on the same chromosome.
+ *
+ * In a position sorted file we also check that each mate really is where
+ * its partner says it is, on the strand it says, and count the reads
+ * which aren't part of a pair which agrees.  The first read of each
+ * pair is held until we get to its mate's position.  It's stored against
+ * a hash of the read name and the position of the mate, so the mate can
+ * find it without knowing anything but its own name and position.  A heap
+ * ordered by mate position tells us when we've gone past a mate which
+ * never turned up.
+ *
+ * Memory for this is fixed by the mate_buffer setting.  Once more reads
+ * than that are waiting, the half whose mates are furthest away are
+ * written to a temporary file in position order, and read back in when
+ * we reach them, so a file with millions of distant mates only costs
+ * disk space.  Each spill is a sorted run, and once there are more than
+ * a few runs they're merged into one, so we never have more than a few
+ * runs to read back from.
+ */
+public class PairedEndConsistency extends AbstractQCModule {
+
+	// Each spilled read is its mate's position, its key and its value
+	private static final int SPILL_ENTRY_BYTES = 24;
+	private static final int SPILL_READ_ENTRIES = 1024;
+
+	// Spill runs are merged into one once there are more than this
+	private static final int MAX_SPILL_RUNS = 16;
+
+	private PackedRecord record = new PackedRecord();
+
+	private long pairedReads = 0;
+	private long properPairs = 0;
+	private long mateUnmapped = 0;
+	private long differentChromosomes = 0;
+	private long inward = 0;
+	private long outward = 0;
+	private long tandem = 0;
+
+	// Checking mates against each other
+	private boolean checkingMates = true;
+	private long checkedReads = 0;
+	private long mismatchedReads = 0;
+	private long lastPosition = -1;
+
+	// Reads waiting for their mates, from key to value, and a heap of
+	// their mates' positions and keys with the nearest first.  Keys which
+	// have been found stay in the heap until we go past them.
+	private OffHeapLongMap waiting;
+	private long [] heapPositions;
+	private long [] heapKeys;
+	private int heapSize = 0;
+
+	// Reads written out to the spill file, in runs sorted by position
+	private File spillFile = null;
+	private RandomAccessFile spill = null;
+	private Vector<SpillRun> spillRuns = new Vector<SpillRun>();
+	private long spilledReads = 0;
+	private long nextSpilledPosition = Long.MAX_VALUE;
+
+	private boolean calculated = false;
+	private String [] measures = new String[0];
+	private long [] values = new long[0];
+	private long mappedPairedReads = 0;
+
+	public PairedEndConsistency () {
+		reset();
+	}
+
+	public void processSequence(SAMRecord read) {
+
+		if (read.isSecondaryOrSupplementary() || !read.getReadPairedFlag()) return;
+
+		++pairedReads;
+
+		if (read.getReadUnmappedFlag()) return;
+
+		if (read.getProperPairFlag()) ++properPairs;
+
+		if (read.getMateUnmappedFlag()) {
+			++mateUnmapped;
+			return;
+		}
+
+		int reference = read.getReferenceIndex();
+		int mateReference = read.getMateReferenceIndex();
+		int start = read.getAlignmentStart();
+		int mateStart = read.getMateAlignmentStart();
+		boolean reverse = read.getReadNegativeStrandFlag();
+		boolean mateReverse = read.getMateNegativeStrandFlag();
+
+		if (reference != mateReference) {
+			++differentChromosomes;
+		}
+		else if (reverse == mateReverse) {
+			++tandem;
+		}
+		else if (reverse ? mateStart <= start : start <= mateStart) {
+			++inward;
+		}
+		else {
+			++outward;
+		}
+
+		if (checkingMates) checkMate(read, reference, start, reverse, sortPosition(mateReference, mateStart), mateReverse);
+	}
+
+	/**
+	 * Where a read comes in a position sorted file.
+	 */
+	private static long sortPosition (int reference, int start) {
+		return (((long)reference)<<31) | start;
+	}
+
+	private void checkMate (SAMRecord read, int reference, int start, boolean reverse, long matePosition, boolean mateReverse) {
+
+		long position = sortPosition(reference, start);
+
+		if (position < lastPosition || reference < 0 || reference >= 1<<30) {
+			stopCheckingMates();
+			return;
+		}
+		lastPosition = position;
+
+		// Bring back anything we've written out which is due, and count
+		// anything we've gone past as missing its mate
+		if (position >= nextSpilledPosition) {
+			readBackSpilled(position);
+		}
+		while (heapSize > 0 && heapPositions[0] < position) {
+			if (waiting.remove(heapKeys[0])) ++mismatchedReads;
+			removeTop();
+		}
+
+		record.load(read);
+		byte [] data = record.data();
+		long nameHash = 0xcbf29ce484222325L;
+		for (int i=0;i<record.nameLength();i++) {
+			nameHash = (nameHash ^ data[i])*0x100000001b3L;
+		}
+
+		++checkedReads;
+
+		// If our mate came first it will be waiting for us
+		if (matePosition <= position) {
+			long key = key(nameHash, position);
+			long mate = waiting.get(key);
+
+			if (mate != OffHeapLongMap.NO_VALUE) {
+				waiting.remove(key);
+
+				// They said where we are, so we just need to check the
+				// strands and what we say about them.  If anything is
+				// wrong we can't tell which of the two is at fault.
+				boolean mateAgrees = (mate>>>2) == matePosition && (((mate>>1) & 1) == 1) == mateReverse && ((mate & 1) == 1) == reverse;
+				if (!mateAgrees) mismatchedReads += 2;
+				return;
+			}
+
+			// If our mate should have come before us then it wasn't there
+			if (matePosition < position) {
+				++mismatchedReads;
+				return;
+			}
+		}
+
+		// Otherwise we wait for it
+		long key = key(nameHash, matePosition);
+		waiting.put(key, (position<<2) | (reverse ? 2 : 0) | (mateReverse ? 1 : 0));
+		addToHeap(matePosition, key);
+
+		if (waiting.size() > BamQCConfig.getInstance().mate_buffer) {
+			spillFurthest(position);
+		}
+	}
+
+	private static long key (long nameHash, long position) {
+		long key = nameHash ^ (position*0x9E3779B97F4A7C15L);
+		key ^= key>>>33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key>>>33;
+		if (key == 0) key = 1;
+		return key;
+	}
+
+	/**
+	 * Once the file turns out not to be sorted we can't tell when we've
+	 * gone past a mate, so we give up on checking them.
+	 */
+	private void stopCheckingMates () {
+		checkingMates = false;
+		waiting = new OffHeapLongMap(0);
+		heapPositions = new long[0];
+		heapKeys = new long[0];
+		heapSize = 0;
+		closeSpill();
+	}
+
+	private void addToHeap (long position, long key) {
+		if (heapSize == heapPositions.length) {
+			heapPositions = Arrays.copyOf(heapPositions, Math.max(1024, heapSize*2));
+			heapKeys = Arrays.copyOf(heapKeys, heapPositions.length);
+		}
+
+		int child = heapSize++;
+		while (child > 0) {
+			int parent = (child-1)/2;
+			if (heapPositions[parent] <= position) break;
+			heapPositions[child] = heapPositions[parent];
+			heapKeys[child] = heapKeys[parent];
+			child = parent;
+		}
+		heapPositions[child] = position;
+		heapKeys[child] = key;
+	}
+
+	private void removeTop () {
+		--heapSize;
+		long position = heapPositions[heapSize];
+		long key = heapKeys[heapSize];
+
+		int parent = 0;
+		while (true) {
+			int child = (parent*2)+1;
+			if (child >= heapSize) break;
+			if (child+1 < heapSize && heapPositions[child+1] < heapPositions[child]) ++child;
+			if (position <= heapPositions[child]) break;
+			heapPositions[parent] = heapPositions[child];
+			heapKeys[parent] = heapKeys[child];
+			parent = child;
+		}
+		heapPositions[parent] = position;
+		heapKeys[parent] = key;
+	}
+
+	/**
+	 * Writes out the waiting reads whose mates are furthest away, keeping
+	 * the nearest half of the buffer in memory.
+	 */
+	private void spillFurthest (long position) {
+
+		// Taking everything off the heap gives it to us in position order,
+		// and a sorted array is a valid heap to put back.
+		long [] positions = new long[heapSize];
+		long [] keys = new long[heapSize];
+		int count = 0;
+		while (heapSize > 0) {
+			if (waiting.get(heapKeys[0]) != OffHeapLongMap.NO_VALUE) {
+				positions[count] = heapPositions[0];
+				keys[count] = heapKeys[0];
+				++count;
+			}
+			removeTop();
+		}
+
+		// Anything due at this position has to stay
+		int keep = BamQCConfig.getInstance().mate_buffer/2;
+		while (keep < count && positions[keep] <= position) ++keep;
+
+		if (keep < count) {
+			try {
+				if (spill == null) {
+					spillFile = File.createTempFile("bamqc_mates", ".tmp");
+					spillFile.deleteOnExit();
+					spill = new RandomAccessFile(spillFile, "rw");
+				}
+
+				long runStart = spill.length();
+				spill.seek(runStart);
+				byte [] buffer = new byte[SPILL_READ_ENTRIES*SPILL_ENTRY_BYTES];
+				int used = 0;
+
+				for (int i=keep;i<count;i++) {
+					used = writeLong(buffer, used, positions[i]);
+					used = writeLong(buffer, used, keys[i]);
+					used = writeLong(buffer, used, waiting.get(keys[i]));
+					waiting.remove(keys[i]);
+					if (used == buffer.length) {
+						spill.write(buffer, 0, used);
+						used = 0;
+					}
+				}
+				spill.write(buffer, 0, used);
+
+				SpillRun run = new SpillRun(runStart, spill.length());
+				spillRuns.add(run);
+				spilledReads += count-keep;
+				nextSpilledPosition = Math.min(nextSpilledPosition, positions[keep]);
+
+				if (spillRuns.size() > MAX_SPILL_RUNS) {
+					mergeSpillRuns();
+				}
+			}
+			catch (IOException e) {
+				// Without the spill file we can't keep memory bounded
+				e.printStackTrace();
+				stopCheckingMates();
+				return;
+			}
+			count = keep;
+		}
+
+		heapPositions = positions;
+		heapKeys = keys;
+		heapSize = count;
+	}
+
+	/**
+	 * Puts everything we wrote out whose mate is at or before this
+	 * position back in memory.
+	 */
+	private void readBackSpilled (long position) {
+
+		nextSpilledPosition = Long.MAX_VALUE;
+
+		try {
+			for (int r=spillRuns.size()-1;r>=0;r--) {
+				SpillRun run = spillRuns.elementAt(r);
+				while (run.hasNext() && run.nextPosition() <= position) {
+					waiting.put(run.nextKey(), run.nextValue());
+					addToHeap(run.nextPosition(), run.nextKey());
+					--spilledReads;
+					run.advance();
+				}
+				if (run.hasNext()) {
+					nextSpilledPosition = Math.min(nextSpilledPosition, run.nextPosition());
+				}
+				else {
+					spillRuns.remove(r);
+				}
+			}
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+			stopCheckingMates();
+		}
+	}
+
+	/**
+	 * Merges what's left of every spill run into a single run in a new
+	 * spill file, and lets the old file go.
+	 */
+	private void mergeSpillRuns () throws IOException {
+
+		File mergedFile = File.createTempFile("bamqc_mates", ".tmp");
+		mergedFile.deleteOnExit();
+		RandomAccessFile merged = new RandomAccessFile(mergedFile, "rw");
+
+		byte [] buffer = new byte[SPILL_READ_ENTRIES*SPILL_ENTRY_BYTES];
+		int used = 0;
+
+		// There are few enough runs that we can just look at each of them
+		// for the nearest position
+		while (true) {
+			SpillRun nearest = null;
+			for (int r=0;r<spillRuns.size();r++) {
+				SpillRun run = spillRuns.elementAt(r);
+				if (run.hasNext() && (nearest == null || run.nextPosition() < nearest.nextPosition())) {
+					nearest = run;
+				}
+			}
+			if (nearest == null) break;
+
+			used = writeLong(buffer, used, nearest.nextPosition());
+			used = writeLong(buffer, used, nearest.nextKey());
+			used = writeLong(buffer, used, nearest.nextValue());
+			nearest.advance();
+			if (used == buffer.length) {
+				merged.write(buffer, 0, used);
+				used = 0;
+			}
+		}
+		merged.write(buffer, 0, used);
+
+		spill.close();
+		spillFile.delete();
+		spill = merged;
+		spillFile = mergedFile;
+
+		spillRuns = new Vector<SpillRun>();
+		spillRuns.add(new SpillRun(0, spill.length()));
+	}
+
+	private void closeSpill () {
+		spillRuns = new Vector<SpillRun>();
+		spilledReads = 0;
+		nextSpilledPosition = Long.MAX_VALUE;
+
+		if (spill != null) {
+			try {
+				spill.close();
+			}
+			catch (IOException e) {
+				e.printStackTrace();
+			}
+			spillFile.delete();
+			spill = null;
+			spillFile = null;
+		}
+	}
+
+	private static int writeLong (byte [] buffer, int offset, long value) {
+		for (int b=0;b<8;b++) {
+			buffer[offset+b] = (byte)(value>>>(b*8));
+		}
+		return offset+8;
+	}
+
+	private static long readLong (byte [] buffer, int offset) {
+		long value = 0;
+		for (int b=7;b>=0;b--) {
+			value = (value<<8) | (buffer[offset+b] & 0xFF);
+		}
+		return value;
+	}
+
+	/**
+	 * One sorted run of reads in the spill file, read back a block at a
+	 * time.
+	 */
+	private class SpillRun {
+
+		private long nextOffset;
+		private long end;
+		private byte [] buffer = new byte[0];
+		private int bufferUsed = 0;
+		private int bufferPosition = 0;
+
+		public SpillRun (long start, long end) throws IOException {
+			nextOffset = start;
+			this.end = end;
+			fill();
+		}
+
+		private void fill () throws IOException {
+			int length = (int)Math.min(end-nextOffset, SPILL_READ_ENTRIES*SPILL_ENTRY_BYTES);
+			if (buffer.length < length) buffer = new byte[length];
+			spill.seek(nextOffset);
+			spill.readFully(buffer, 0, length);
+			nextOffset += length;
+			bufferUsed = length;
+			bufferPosition = 0;
+		}
+
+		public boolean hasNext () {
+			return bufferPosition < bufferUsed;
+		}
+
+		public long nextPosition () {
+			return readLong(buffer, bufferPosition);
+		}
+
+		public long nextKey () {
+			return readLong(buffer, bufferPosition+8);
+		}
+
+		public long nextValue () {
+			return readLong(buffer, bufferPosition+16);
+		}
+
+		public void advance () throws IOException {
+			bufferPosition += SPILL_ENTRY_BYTES;
+			if (bufferPosition == bufferUsed && nextOffset < end) fill();
+		}
+	}
+
+	private synchronized void calculateConsistency () {
+
+		if (calculated) return;
+		calculated = true;
+
+		// Anything still waiting never found its mate
+		if (checkingMates) {
+			mismatchedReads += waiting.size()+spilledReads;
+			stopCheckingMates();
+		}
+
+		mappedPairedReads = inward+outward+tandem+differentChromosomes+mateUnmapped;
+
+		Vector<String> measureList = new Vector<String>();
+		Vector<Long> valueList = new Vector<Long>();
+
+		measureList.add("Aligned reads in pairs");
+		valueList.add(mappedPairedReads);
+		measureList.add("Proper pairs");
+		valueList.add(properPairs);
+		measureList.add("Mate unaligned");
+		valueList.add(mateUnmapped);
+		measureList.add("Mate on a different chromosome");
+		valueList.add(differentChromosomes);
+		measureList.add("Inward facing (FR)");
+		valueList.add(inward);
+		measureList.add("Outward facing (RF)");
+		valueList.add(outward);
+		measureList.add("Same strand (FF or RR)");
+		valueList.add(tandem);
+
+		if (checkedReads > 0) {
+			measureList.add("Mates checked against each other");
+			valueList.add(checkedReads);
+			measureList.add("Mate missing or disagrees");
+			valueList.add(mismatchedReads);
+		}
+
+		measures = measureList.toArray(new String[0]);
+		values = new long[valueList.size()];
+		for (int i=0;i<values.length;i++) {
+			values[i] = valueList.elementAt(i);
+		}
+	}
+
+	private double percentage (long value) {
+		if (mappedPairedReads == 0) return 0;
+		return (value*100d)/mappedPairedReads;
+	}
+
+	/**
+	 * The percentage of aligned reads in pairs which aren't properly paired
+	 * or which disagree with their mate, whichever is higher.
+	 */
+	private double problemPercentage () {
+		calculateConsistency();
+		return Math.max(percentage(mappedPairedReads-properPairs), percentage(mismatchedReads));
+	}
+
+	public void processFile(SequenceFile file) {
+		if (!file.isCoordinateSorted()) {
+			stopCheckingMates();
+		}
+	}
+
+	public void processAnnotationSet(AnnotationSet annotation) {}
+
+	public JPanel getResultsPanel() {
+		calculateConsistency();
+
+		JPanel returnPanel = new JPanel();
+		returnPanel.setLayout(new BorderLayout());
+		returnPanel.add(new JLabel("Paired end consistency",JLabel.CENTER),BorderLayout.NORTH);
+		returnPanel.add(new JScrollPane(new JTable(new ResultsTable())),BorderLayout.CENTER);
+
+		return returnPanel;
+	}
+
+	public String name() {
+		return "Paired end consistency";
+	}
+
+	public String description() {
+		return "Checks that reads in pairs agree with their mates";
+	}
+
+	public void reset() {
+		pairedReads = 0;
+		properPairs = 0;
+		mateUnmapped = 0;
+		differentChromosomes = 0;
+		inward = 0;
+		outward = 0;
+		tandem = 0;
+
+		closeSpill();
+		checkingMates = true;
+		checkedReads = 0;
+		mismatchedReads = 0;
+		lastPosition = -1;
+		waiting = new OffHeapLongMap(Math.min(BamQCConfig.getInstance().mate_buffer, 100000));
+		heapPositions = new long[1024];
+		heapKeys = new long[1024];
+		heapSize = 0;
+
+		calculated = false;
+		measures = new String[0];
+		values = new long[0];
+		mappedPairedReads = 0;
+	}
+
+	public boolean raisesError() {
+		return problemPercentage() > ModuleConfig.getParam("pair", "error");
+	}
+
+	public boolean raisesWarning() {
+		return problemPercentage() > ModuleConfig.getParam("pair", "warn");
+	}
+
+	public boolean needsToSeeSequences() {
+		return true;
+	}
+
+	public boolean needsToSeeAnnotation() {
+		return false;
+	}
+
+	public boolean ignoreInReport() {
+		return ModuleConfig.getParam("pair", "ignore") > 0 || pairedReads == 0;
+	}
+
+	public void makeReport(HTMLReportArchive report) throws XMLStreamException, IOException {
+		super.writeTable(report, new ResultsTable());
+	}
+
+	@SuppressWarnings("serial")
+	private class ResultsTable extends AbstractTableModel {
+
+		// Measure - Count - Percentage of aligned reads in pairs
+		public int getColumnCount() {
+			return 3;
+		}
+
+		public int getRowCount() {
+			return measures.length;
+		}
+
+		public Object getValueAt(int rowIndex, int columnIndex) {
+			switch (columnIndex) {
+				case 0: return measures[rowIndex];
+				case 1: return values[rowIndex];
+				case 2: return percentage(values[rowIndex]);
+			}
+			return null;
+		}
+
+		public String getColumnName (int columnIndex) {
+			switch (columnIndex) {
+				case 0: return "Measure";
+				case 1: return "Count";
+				case 2: return "Percentage";
+			}
+			return null;
+		}
+
+		public Class<?> getColumnClass (int columnIndex) {
+			switch (columnIndex) {
+				case 0: return String.class;
+				case 1: return Long.class;
+				case 2: return Double.class;
+			}
+			return null;
+		}
+	}
+
+}
@@ -0,0 +1,284 @@
+/**
+ * Copyright Copyright 2014 Simon Andrews
+ *
+ *    This file is part of BamQC.
+ *
+ *    BamQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    BamQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with BamQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.babraham.BamQC.Modules;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import javax.swing.JPanel;
+import javax.swing.table.AbstractTableModel;
+import javax.xml.stream.XMLStreamException;
+
+import net.sf.samtools.SAMRecord;
+import uk.ac.babraham.BamQC.Annotation.AnnotationSet;
+import uk.ac.babraham.BamQC.Graphs.BaseGroup;
+import uk.ac.babraham.BamQC.Graphs.QualityBoxPlot;
+import uk.ac.babraham.BamQC.Report.HTMLReportArchive;
+import uk.ac.babraham.BamQC.Sequence.PackedRecord;
+import uk.ac.babraham.BamQC.Sequence.SequenceFile;
+
+/**
+ * Shows the spread of base qualities at each sequencing cycle.  Reads
+ * which mapped to the reverse strand have their qualities reversed in
+ * the BAM file, so we turn them back round to get the cycle each base
+ * was actually read in.  Like the other per cycle modules we count any
+ * hard clipped bases as cycles, so a base is at the same cycle whether
+ * or not the aligner clipped bases off before it.
+ *
+ * Rather than keeping a QualityCount for every cycle we count qualities
+ * into one flat array with QUALITY_SLOTS entries per cycle, which we
+ * grow if we see a longer read.  BAM qualities are already Phred scores
+ * so we don't need to work out an encoding offset.
+ */
+public class PerBaseQualityScores extends AbstractQCModule {
+
+	// Qualities above this are counted as this
+	private static final int QUALITY_SLOTS = 64;
+
+	// The percentiles drawn on the box plot
+	private static final int [] PERCENTILES = new int [] {10, 25, 50, 75, 90};
+
+	private PackedRecord record = new PackedRecord();
+
+	private long [] counts = new long[150*QUALITY_SLOTS];
+	private int maxLength = 0;
+
+	private boolean calculated = false;
+	private double [] means = null;
+	private double [] medians = null;
+	private double [] lowerQuartile = null;
+	private double [] upperQuartile = null;
+	private double [] lowest = null;
+	private double [] highest = null;
+	private String [] xLabels;
+
+	public void processSequence(SAMRecord read) {
+
+		// Secondary alignments often don't keep their qualities, and would
+		// count the same bases twice if they did.
+		if (read.isSecondaryOrSupplementary()) return;
+
+		record.load(read);
+
+		int length = record.readLength();
+		if (length == 0 || record.quality(0) == PackedRecord.MISSING_QUALITY) return;
+
+		int leadingClip = record.leadingHardClip();
+		int fullLength = leadingClip+length+record.trailingHardClip();
+
+		if (fullLength*QUALITY_SLOTS > counts.length) {
+			counts = Arrays.copyOf(counts, Math.max(counts.length*2, fullLength*QUALITY_SLOTS));
+		}
+		if (fullLength > maxLength) maxLength = fullLength;
+
+		boolean reverse = !read.getReadUnmappedFlag() && read.getReadNegativeStrandFlag();
+
+		for (int i=0;i<length;i++) {
+			int quality = record.quality(i);
+			if (quality >= QUALITY_SLOTS) quality = QUALITY_SLOTS-1;
+
+			int cycle = leadingClip+i;
+			if (reverse) cycle = fullLength-1-cycle;
+			++counts[(cycle*QUALITY_SLOTS)+quality];
+		}
+	}
+
+	private synchronized void calculatePercentages () {
+
+		if (calculated) return;
+		calculated = true;
+
+		BaseGroup [] groups = BaseGroup.makeBaseGroups(maxLength);
+
+		means = new double[groups.length];
+		medians = new double[groups.length];
+		lowest = new double[groups.length];
+		highest = new double[groups.length];
+		lowerQuartile = new double[groups.length];
+		upperQuartile = new double[groups.length];
+		xLabels = new String[groups.length];
+
+		long [] groupCounts = new long[QUALITY_SLOTS];
+		double [] percentiles = new double[PERCENTILES.length];
+
+		for (int g=0;g<groups.length;g++) {
+			xLabels[g] = groups[g].toString();
+
+			// Base groups count from 1
+			Arrays.fill(groupCounts, 0);
+			for (int cycle=groups[g].lowerCount()-1;cycle<groups[g].upperCount();cycle++) {
+				for (int q=0;q<QUALITY_SLOTS;q++) {
+					groupCounts[q] += counts[(cycle*QUALITY_SLOTS)+q];
+				}
+			}
+
+			means[g] = findPercentiles(groupCounts, percentiles);
+			lowest[g] = percentiles[0];
+			lowerQuartile[g] = percentiles[1];
+			medians[g] = percentiles[2];
+			upperQuartile[g] = percentiles[3];
+			highest[g] = percentiles[4];
+		}
+	}
+
+	/**
+	 * Finds the 10th, 25th, 50th, 75th and 90th percentiles, and the mean,
+	 * of a histogram of qualities in a single pass.  The percentiles use
+	 * the same rule as QualityCount so the results match it.
+	 *
+	 * @param histogram The number of bases with each quality
+	 * @param percentiles Filled in with the percentiles
+	 * @return The mean quality
+	 */
+	private static double findPercentiles (long [] histogram, double [] percentiles) {
+
+		long total = 0;
+		double sum = 0;
+		for (int q=0;q<histogram.length;q++) {
+			total += histogram[q];
+			sum += ((double)q)*histogram[q];
+		}
+
+		if (total == 0) {
+			Arrays.fill(percentiles, 0);
+			return 0;
+		}
+
+		long count = 0;
+		int p = 0;
+		for (int q=0;q<histogram.length && p<PERCENTILES.length;q++) {
+			count += histogram[q];
+			while (p < PERCENTILES.length && count >= (total*PERCENTILES[p])/100) {
+				percentiles[p++] = q;
+			}
+		}
+
+		return sum/total;
+	}
+
+	public void processFile(SequenceFile file) {}
+
+	public void processAnnotationSet(AnnotationSet annotation) {}
+
+	private QualityBoxPlot makeGraph () {
+		calculatePercentages();
+
+		double maxY = 40;
+		for (int g=0;g<highest.length;g++) {
+			if (highest[g] > maxY) maxY = highest[g];
+		}
+
+		return new QualityBoxPlot(means, medians, lowest, highest, lowerQuartile, upperQuartile, 0, maxY, 2d, xLabels, "Quality scores across all bases");
+	}
+
+	public JPanel getResultsPanel() {
+		return makeGraph();
+	}
+
+	public String name() {
+		return "Per Base Sequence Quality";
+	}
+
+	public String description() {
+		return "Shows the Quality scores of all bases at a given position in a sequencing run";
+	}
+
+	public void reset() {
+		counts = new long[150*QUALITY_SLOTS];
+		maxLength = 0;
+		calculated = false;
+	}
+
+	public boolean raisesError() {
+		calculatePercentages();
+
+		for (int g=0;g<lowerQuartile.length;g++) {
+			if (lowerQuartile[g] < ModuleConfig.getParam("quality_base_lower", "error") || medians[g] < ModuleConfig.getParam("quality_base_median", "error")) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public boolean raisesWarning() {
+		calculatePercentages();
+
+		for (int g=0;g<lowerQuartile.length;g++) {
+			if (lowerQuartile[g] < ModuleConfig.getParam("quality_base_lower", "warn") || medians[g] < ModuleConfig.getParam("quality_base_median", "warn")) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public boolean needsToSeeSequences() {
+		return true;
+	}
+
+	public boolean needsToSeeAnnotation() {
+		return false;
+	}
+
+	public boolean ignoreInReport() {
+		return ModuleConfig.getParam("quality_base", "ignore") > 0 || maxLength == 0;
+	}
+
+	public void makeReport(HTMLReportArchive report) throws XMLStreamException, IOException {
+		writeGraph(report, makeGraph(), "Per base quality graph");
+		super.writeTable(report, new ResultsTable());
+	}
+
+	@SuppressWarnings("serial")
+	private class ResultsTable extends AbstractTableModel {
+
+		private String [] headers = new String [] {"Base", "Mean", "Median", "Lower Quartile", "Upper Quartile", "10th Percentile", "90th Percentile"};
+
+		public int getColumnCount() {
+			return headers.length;
+		}
+
+		public int getRowCount() {
+			return means.length;
+		}
+
+		public Object getValueAt(int rowIndex, int columnIndex) {
+			switch (columnIndex) {
+				case 0: return xLabels[rowIndex];
+				case 1: return means[rowIndex];
+				case 2: return medians[rowIndex];
+				case 3: return lowerQuartile[rowIndex];
+				case 4: return upperQuartile[rowIndex];
+				case 5: return lowest[rowIndex];
+				case 6: return highest[rowIndex];
+			}
+			return null;
+		}
+
+		public String getColumnName (int columnIndex) {
+			return headers[columnIndex];
+		}
+
+		public Class<?> getColumnClass (int columnIndex) {
+			if (columnIndex == 0) return String.class;
+			return Double.class;
+		}
+	}
+
+}
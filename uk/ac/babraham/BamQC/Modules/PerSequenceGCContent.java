@@ -0,0 +1,317 @@
+/**
+ * Copyright Copyright 2014 Simon Andrews
+ *
+ *    This file is part of BamQC.
+ *
+ *    BamQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    BamQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with BamQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.babraham.BamQC.Modules;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import javax.swing.JPanel;
+import javax.swing.table.AbstractTableModel;
+import javax.xml.stream.XMLStreamException;
+
+import net.sf.samtools.SAMRecord;
+import uk.ac.babraham.BamQC.Annotation.AnnotationSet;
+import uk.ac.babraham.BamQC.Graphs.LineGraph;
+import uk.ac.babraham.BamQC.Report.HTMLReportArchive;
+import uk.ac.babraham.BamQC.Sequence.PackedRecord;
+import uk.ac.babraham.BamQC.Sequence.SequenceFile;
+import uk.ac.babraham.BamQC.Statistics.NormalDistribution;
+
+/**
+ * Shows the distribution of GC content over all reads and compares it to
+ * a normal distribution.  A library from a single genome should give a
+ * roughly normal curve, so a second peak or a very broad distribution
+ * usually means contamination or a biased library.
+ *
+ * We count straight from the packed bases, using a table which gives the
+ * number of G/C bases and the number of called bases for each byte, so
+ * each read costs one table lookup for every two bases.  Counts are kept
+ * by read length and number of GC bases, and only turned into
+ * percentages at the end.  A read with a given GC count is spread over
+ * all of the percentage bins it could fall in, otherwise some read
+ * lengths can never hit some percentages and the distribution gets
+ * spikes in it.
+ *
+ * Reads with more than 1000 called bases can land in any bin, so they're
+ * added straight to the bin for their percentage instead.  That way long
+ * read files don't need a set of counts for every read length.
+ */
+public class PerSequenceGCContent extends AbstractQCModule {
+
+	// For each byte of packed bases, the number of G or C bases in the
+	// low 32 bits and the number of A, C, G or T bases in the high 32 bits,
+	// so we can add up the values for a whole read and split them after.
+	// Each half holds any read length an int can.
+	private static final long [] BASE_COUNTS = new long[256];
+	private static final int CALLED_SHIFT = 32;
+	private static final long GC_MASK = (1L<<CALLED_SHIFT)-1;
+
+	static {
+		String bases = "ACGT";
+		for (int b=0;b<256;b++) {
+			int gc = 0;
+			int called = 0;
+			int [] codes = new int [] {b>>4, b & 0xF};
+			for (int c=0;c<codes.length;c++) {
+				char base = PackedRecord.BASE_CODES.charAt(codes[c]);
+				if (base == 'G' || base == 'C') ++gc;
+				if (bases.indexOf(base) >= 0) ++called;
+			}
+			BASE_COUNTS[b] = gc | (((long)called)<<CALLED_SHIFT);
+		}
+	}
+
+	// Reads with more called bases than this are counted by percentage
+	private static final int MAX_EXACT_LENGTH = 1000;
+
+	private PackedRecord record = new PackedRecord();
+
+	// Indexed by the number of called bases, then the number of GC bases
+	private long [][] gcCounts = new long[151][];
+
+	// Reads too long for gcCounts, by rounded GC percentage
+	private long [] longReadCounts = new long[101];
+
+	private boolean calculated = false;
+	private double [] gcDistribution = new double[101];
+	private double [] theoreticalDistribution = new double[101];
+	private double totalCount = 0;
+	private double deviationPercent = 0;
+
+	public void processSequence(SAMRecord read) {
+
+		if (read.isSecondaryOrSupplementary()) return;
+
+		record.load(read);
+
+		byte [] data = record.data();
+		int start = record.basesOffset();
+		int end = start+((record.readLength()+1)/2);
+
+		// An odd length read has an empty code in the last half byte,
+		// which isn't counted as either.
+		long counts = 0;
+		for (int i=start;i<end;i++) {
+			counts += BASE_COUNTS[data[i] & 0xFF];
+		}
+
+		int called = (int)(counts>>>CALLED_SHIFT);
+		if (called == 0) return;
+
+		if (called > MAX_EXACT_LENGTH) {
+			++longReadCounts[(int)Math.round(((counts & GC_MASK)*100d)/called)];
+			return;
+		}
+
+		if (called >= gcCounts.length) {
+			gcCounts = Arrays.copyOf(gcCounts, Math.min(Math.max(called+1, gcCounts.length*2), MAX_EXACT_LENGTH+1));
+		}
+		if (gcCounts[called] == null) {
+			gcCounts[called] = new long[called+1];
+		}
+
+		++gcCounts[called][(int)(counts & GC_MASK)];
+	}
+
+	private synchronized void calculateDistribution () {
+
+		if (calculated) return;
+		calculated = true;
+
+		gcDistribution = new double[101];
+		theoreticalDistribution = new double[101];
+		totalCount = 0;
+
+		for (int length=1;length<gcCounts.length;length++) {
+			if (gcCounts[length] == null) continue;
+
+			for (int gc=0;gc<=length;gc++) {
+				long count = gcCounts[length][gc];
+				if (count == 0) continue;
+				totalCount += count;
+
+				// The range of percentages which round to this count
+				double lower = Math.max(0, ((gc-0.5)*100)/length);
+				double upper = Math.min(100, ((gc+0.5)*100)/length);
+
+				for (int bin=(int)Math.round(lower);bin<=Math.round(upper) && bin<=100;bin++) {
+					double overlap = Math.min(upper, bin+0.5)-Math.max(lower, bin-0.5);
+					if (overlap > 0) {
+						gcDistribution[bin] += (count*overlap)/(upper-lower);
+					}
+				}
+			}
+		}
+
+		for (int bin=0;bin<longReadCounts.length;bin++) {
+			gcDistribution[bin] += longReadCounts[bin];
+			totalCount += longReadCounts[bin];
+		}
+
+		if (totalCount == 0) return;
+
+		// We centre the normal curve on the mode rather than the mean, so
+		// a contaminating peak doesn't pull it away from the main one.  If
+		// there's a flat top we take the middle of the values close to the
+		// highest.
+		double maxCount = 0;
+		int firstMode = 0;
+		for (int bin=0;bin<gcDistribution.length;bin++) {
+			if (gcDistribution[bin] > maxCount) {
+				maxCount = gcDistribution[bin];
+				firstMode = bin;
+			}
+		}
+
+		double modeTotal = 0;
+		int modeBins = 0;
+		for (int bin=firstMode;bin<gcDistribution.length;bin++) {
+			if (gcDistribution[bin] < maxCount*0.95) break;
+			modeTotal += bin;
+			++modeBins;
+		}
+		for (int bin=firstMode-1;bin>=0;bin--) {
+			if (gcDistribution[bin] < maxCount*0.95) break;
+			modeTotal += bin;
+			++modeBins;
+		}
+		double mode = modeTotal/modeBins;
+
+		double stdev = 0;
+		for (int bin=0;bin<gcDistribution.length;bin++) {
+			stdev += Math.pow(bin-mode, 2)*gcDistribution[bin];
+		}
+		stdev = Math.sqrt(stdev/Math.max(totalCount-1, 1));
+
+		// A very narrow curve would be all in one bin anyway
+		if (stdev < 0.5) stdev = 0.5;
+
+		NormalDistribution normal = new NormalDistribution(mode, stdev);
+
+		double deviation = 0;
+		for (int bin=0;bin<theoreticalDistribution.length;bin++) {
+			theoreticalDistribution[bin] = normal.getZScoreForValue(bin)*totalCount;
+			deviation += Math.abs(theoreticalDistribution[bin]-gcDistribution[bin]);
+		}
+
+		deviationPercent = (deviation*100)/totalCount;
+	}
+
+	public void processFile(SequenceFile file) {}
+
+	public void processAnnotationSet(AnnotationSet annotation) {}
+
+	public JPanel getResultsPanel() {
+		calculateDistribution();
+
+		double maxY = 0;
+		String [] labels = new String[gcDistribution.length];
+		for (int bin=0;bin<gcDistribution.length;bin++) {
+			labels[bin] = ""+bin;
+			if (gcDistribution[bin] > maxY) maxY = gcDistribution[bin];
+			if (theoreticalDistribution[bin] > maxY) maxY = theoreticalDistribution[bin];
+		}
+
+		return new LineGraph(new double [][] {gcDistribution, theoreticalDistribution}, 0d, maxY, "Mean GC content (%)", new String [] {"GC count per read", "Theoretical Distribution"}, labels, "GC distribution over all sequences");
+	}
+
+	public String name() {
+		return "Per Sequence GC Content";
+	}
+
+	public String description() {
+		return "Shows the distribution of GC contents for whole sequences";
+	}
+
+	public void reset() {
+		gcCounts = new long[151][];
+		longReadCounts = new long[101];
+		calculated = false;
+		gcDistribution = new double[101];
+		theoreticalDistribution = new double[101];
+		totalCount = 0;
+		deviationPercent = 0;
+	}
+
+	public boolean raisesError() {
+		calculateDistribution();
+		return deviationPercent > ModuleConfig.getParam("gc_sequence", "error");
+	}
+
+	public boolean raisesWarning() {
+		calculateDistribution();
+		return deviationPercent > ModuleConfig.getParam("gc_sequence", "warn");
+	}
+
+	public boolean needsToSeeSequences() {
+		return true;
+	}
+
+	public boolean needsToSeeAnnotation() {
+		return false;
+	}
+
+	public boolean ignoreInReport() {
+		calculateDistribution();
+		return ModuleConfig.getParam("gc_sequence", "ignore") > 0 || totalCount == 0;
+	}
+
+	public void makeReport(HTMLReportArchive report) throws XMLStreamException, IOException {
+		writeGraph(report, getResultsPanel(), "Per sequence GC content graph");
+		super.writeTable(report, new ResultsTable());
+	}
+
+	@SuppressWarnings("serial")
+	private class ResultsTable extends AbstractTableModel {
+
+		public int getColumnCount() {
+			return 2;
+		}
+
+		public int getRowCount() {
+			return gcDistribution.length;
+		}
+
+		public Object getValueAt(int rowIndex, int columnIndex) {
+			switch (columnIndex) {
+				case 0: return rowIndex;
+				case 1: return gcDistribution[rowIndex];
+			}
+			return null;
+		}
+
+		public String getColumnName (int columnIndex) {
+			switch (columnIndex) {
+				case 0: return "GC Content";
+				case 1: return "Count";
+			}
+			return null;
+		}
+
+		public Class<?> getColumnClass (int columnIndex) {
+			switch (columnIndex) {
+				case 0: return Integer.class;
+				case 1: return Double.class;
+			}
+			return null;
+		}
+	}
+
+}
@@ -0,0 +1,310 @@
+/**
+ * Copyright Copyright 2014 Simon Andrews
+ *
+ *    This file is part of BamQC.
+ *
+ *    BamQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    BamQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with BamQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.babraham.BamQC.Modules;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import javax.swing.JPanel;
+import javax.swing.table.AbstractTableModel;
+import javax.xml.stream.XMLStreamException;
+
+import net.sf.samtools.SAMRecord;
+import uk.ac.babraham.BamQC.Annotation.AnnotationSet;
+import uk.ac.babraham.BamQC.Graphs.BaseGroup;
+import uk.ac.babraham.BamQC.Graphs.TileGraph;
+import uk.ac.babraham.BamQC.Report.HTMLReportArchive;
+import uk.ac.babraham.BamQC.Sequence.PackedRecord;
+import uk.ac.babraham.BamQC.Sequence.SequenceFile;
+import uk.ac.babraham.BamQC.Utilities.IlluminaReadName;
+import uk.ac.babraham.BamQC.Utilities.TileIndex;
+
+/**
+ * Shows how the mean quality of each flowcell tile compares to the mean
+ * over all tiles at each position in the read.  Bubbles, dirt on the
+ * flowcell or problems at the edge of a lane show up as tiles which are
+ * worse than the rest.
+ *
+ * The lane and tile come from the Illumina read name, which is read
+ * straight from the bytes of the BAM record.  Each lane and tile is given
+ * a row number by a TileIndex, and rows hold the
+ * total quality at each cycle.  The number of reads reaching each cycle
+ * is kept as a difference array, so each read adds one to the cycle it
+ * starts at and takes one off the cycle after it ends.
+ */
+public class PerTileQualityScores extends AbstractQCModule {
+
+	private PackedRecord record = new PackedRecord();
+	private IlluminaReadName readName = new IlluminaReadName();
+
+	private TileIndex tiles = new TileIndex();
+
+	// Per row
+	private long [][] qualitySums = new long[64][];
+	private long [][] coverageChanges = new long[64][];
+
+	private int maxLength = 0;
+
+	private boolean calculated = false;
+	private String [] groupLabels = new String[0];
+	private String [] tileLabels = new String[0];
+
+	// The difference between each tile and the average, in key order
+	private double [][] tileDeviations = new double[0][0];
+	private double maxLoss = 0;
+
+	public PerTileQualityScores () {
+		reset();
+	}
+
+	public void processSequence(SAMRecord read) {
+
+		if (read.isSecondaryOrSupplementary()) return;
+
+		record.load(read);
+
+		int readLength = record.readLength();
+		if (readLength == 0 || record.quality(0) == PackedRecord.MISSING_QUALITY) return;
+
+		if (!readName.parse(record.data(), 0, record.nameLength())) return;
+		int key = readName.laneTileKey();
+		if (key < 0) return;
+
+		int row = row(key);
+
+		int leadingClip = record.leadingHardClip();
+		int trailingClip = record.trailingHardClip();
+		int fullLength = leadingClip+readLength+trailingClip;
+
+		boolean reverse = !read.getReadUnmappedFlag() && read.getReadNegativeStrandFlag();
+		int offset = reverse ? trailingClip : leadingClip;
+
+		if (fullLength > maxLength) maxLength = fullLength;
+		if (fullLength > qualitySums[row].length) {
+			qualitySums[row] = Arrays.copyOf(qualitySums[row], Math.max(fullLength, qualitySums[row].length*2));
+			coverageChanges[row] = Arrays.copyOf(coverageChanges[row], qualitySums[row].length+1);
+		}
+
+		long [] sums = qualitySums[row];
+		if (reverse) {
+			for (int i=0;i<readLength;i++) {
+				sums[offset+i] += record.quality(readLength-1-i);
+			}
+		}
+		else {
+			for (int i=0;i<readLength;i++) {
+				sums[offset+i] += record.quality(i);
+			}
+		}
+
+		++coverageChanges[row][offset];
+		--coverageChanges[row][offset+readLength];
+	}
+
+	/**
+	 * Finds the row for a lane and tile, adding one if it's new.
+	 */
+	private int row (int key) {
+
+		int row = tiles.find(key);
+		if (row >= 0) return row;
+
+		row = tiles.add(key);
+		if (row == qualitySums.length) {
+			qualitySums = Arrays.copyOf(qualitySums, row*2);
+			coverageChanges = Arrays.copyOf(coverageChanges, row*2);
+		}
+		qualitySums[row] = new long[Math.max(maxLength, 150)];
+		coverageChanges[row] = new long[qualitySums[row].length+1];
+
+		return row;
+	}
+
+	private synchronized void calculateDeviations () {
+
+		if (calculated) return;
+		calculated = true;
+
+		BaseGroup [] groups = BaseGroup.makeBaseGroups(maxLength);
+		groupLabels = new String[groups.length];
+		for (int g=0;g<groups.length;g++) {
+			groupLabels[g] = groups[g].toString();
+		}
+
+		// Tiles are shown in lane then tile order, which is key order
+		int tileCount = tiles.size();
+		int [] keys = new int[tileCount];
+		for (int t=0;t<tileCount;t++) {
+			keys[t] = tiles.key(t);
+		}
+		Arrays.sort(keys);
+
+		boolean severalLanes = tileCount > 0 && IlluminaReadName.laneFromKey(keys[0]) != IlluminaReadName.laneFromKey(keys[tileCount-1]);
+
+		tileLabels = new String[tileCount];
+		double [][] tileMeans = new double[tileCount][groups.length];
+
+		for (int t=0;t<tileCount;t++) {
+			int lane = IlluminaReadName.laneFromKey(keys[t]);
+			int tile = IlluminaReadName.tileFromKey(keys[t]);
+			tileLabels[t] = severalLanes && lane >= 0 ? lane+":"+tile : ""+tile;
+
+			int row = tiles.find(keys[t]);
+			long [] sums = qualitySums[row];
+			long [] changes = coverageChanges[row];
+
+			long covering = 0;
+			int cycle = 0;
+			for (int g=0;g<groups.length;g++) {
+				long quality = 0;
+				long bases = 0;
+				for (;cycle<groups[g].upperCount();cycle++) {
+					if (cycle >= sums.length) break;
+					covering += changes[cycle];
+					quality += sums[cycle];
+					bases += covering;
+				}
+				tileMeans[t][g] = bases == 0 ? Double.NaN : quality/(double)bases;
+			}
+		}
+
+		// The average is the mean of the tiles, so a few large tiles
+		// don't hide problems with the others
+		tileDeviations = new double[tileCount][groups.length];
+		maxLoss = 0;
+
+		for (int g=0;g<groups.length;g++) {
+			double total = 0;
+			int tilesWithData = 0;
+			for (int t=0;t<tileCount;t++) {
+				if (Double.isNaN(tileMeans[t][g])) continue;
+				total += tileMeans[t][g];
+				++tilesWithData;
+			}
+			if (tilesWithData == 0) continue;
+			double average = total/tilesWithData;
+
+			for (int t=0;t<tileCount;t++) {
+				if (Double.isNaN(tileMeans[t][g])) continue;
+				tileDeviations[t][g] = tileMeans[t][g]-average;
+				if (average-tileMeans[t][g] > maxLoss) maxLoss = average-tileMeans[t][g];
+			}
+		}
+	}
+
+	public void processFile(SequenceFile file) {}
+
+	public void processAnnotationSet(AnnotationSet annotation) {}
+
+	public JPanel getResultsPanel() {
+		calculateDeviations();
+		return new TileGraph(groupLabels, tileLabels, tileDeviations);
+	}
+
+	public String name() {
+		return "Per tile sequence quality";
+	}
+
+	public String description() {
+		return "Shows the difference from the mean quality for each tile at each position";
+	}
+
+	public void reset() {
+		tiles.clear();
+		qualitySums = new long[64][];
+		coverageChanges = new long[64][];
+		maxLength = 0;
+		calculated = false;
+		groupLabels = new String[0];
+		tileLabels = new String[0];
+		tileDeviations = new double[0][0];
+		maxLoss = 0;
+	}
+
+	public boolean raisesError() {
+		calculateDeviations();
+		return maxLoss > ModuleConfig.getParam("tile", "error");
+	}
+
+	public boolean raisesWarning() {
+		calculateDeviations();
+		return maxLoss > ModuleConfig.getParam("tile", "warn");
+	}
+
+	public boolean needsToSeeSequences() {
+		return true;
+	}
+
+	public boolean needsToSeeAnnotation() {
+		return false;
+	}
+
+	public boolean ignoreInReport() {
+		return ModuleConfig.getParam("tile", "ignore") > 0 || tiles.size() == 0;
+	}
+
+	public void makeReport(HTMLReportArchive report) throws XMLStreamException, IOException {
+		writeGraph(report, getResultsPanel(), "Per tile quality graph");
+		super.writeTable(report, new ResultsTable());
+	}
+
+	@SuppressWarnings("serial")
+	private class ResultsTable extends AbstractTableModel {
+
+		// Tile - Base - Difference from the mean
+		public int getColumnCount() {
+			return 3;
+		}
+
+		public int getRowCount() {
+			return tileLabels.length*groupLabels.length;
+		}
+
+		public Object getValueAt(int rowIndex, int columnIndex) {
+			int tile = rowIndex/groupLabels.length;
+			int group = rowIndex % groupLabels.length;
+			switch (columnIndex) {
+				case 0: return tileLabels[tile];
+				case 1: return groupLabels[group];
+				case 2: return tileDeviations[tile][group];
+			}
+			return null;
+		}
+
+		public String getColumnName (int columnIndex) {
+			switch (columnIndex) {
+				case 0: return "Tile";
+				case 1: return "Base";
+				case 2: return "Mean";
+			}
+			return null;
+		}
+
+		public Class<?> getColumnClass (int columnIndex) {
+			switch (columnIndex) {
+				case 0: return String.class;
+				case 1: return String.class;
+				case 2: return Double.class;
+			}
+			return null;
+		}
+	}
+
+}
@@ -0,0 +1,472 @@
+/**
+ * Copyright Copyright 2014 Simon Andrews
+ *
+ *    This file is part of BamQC.
+ *
+ *    BamQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    BamQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with BamQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.babraham.BamQC.Modules;
+
+import java.io.IOException;
+
+import javax.swing.JPanel;
+import javax.swing.table.AbstractTableModel;
+import javax.xml.stream.XMLStreamException;
+
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.SAMSequenceDictionary;
+import uk.ac.babraham.BamQC.Annotation.AnnotationSet;
+import uk.ac.babraham.BamQC.Annotation.Chromosome;
+import uk.ac.babraham.BamQC.Annotation.ChromosomeFactory;
+import uk.ac.babraham.BamQC.Annotation.ChromosomeFeatures;
+import uk.ac.babraham.BamQC.Annotation.FeatureClass;
+import uk.ac.babraham.BamQC.Graphs.LineGraph;
+import uk.ac.babraham.BamQC.Report.HTMLReportArchive;
+import uk.ac.babraham.BamQC.Sequence.PackedRecord;
+import uk.ac.babraham.BamQC.Sequence.SequenceFile;
+import uk.ac.babraham.BamQC.Utilities.OffHeapLongMap;
+
+/**
+ * Finds the splice junctions in an RNA-seq library from the skipped
+ * regions in each read's CIGAR, and says how many of them are in the
+ * annotation.  Like RSeQC's junction saturation test, it also shows how
+ * many junctions we'd have found with a smaller sample of the reads.
+ * If the curve is still rising at 100% then more sequencing would find
+ * more junctions.
+ *
+ * Each junction is packed into a long as its strand, reference, donor
+ * and intron length, with field sizes chosen from the BAM header, and
+ * counted in an OffHeapLongMap.  Rather than resampling the reads we give
+ * each one a sample level from a hash of its name, so both reads of a
+ * pair are kept or dropped together, and each junction keeps the lowest
+ * level it was seen at.  A junction is found in every sample at or above
+ * that level.
+ *
+ * If there isn't enough direct memory for the map to grow we stop adding
+ * new junctions, count their events as not counted, and say in the graph
+ * title that the junctions are incomplete.
+ */
+public class SpliceJunctions extends AbstractQCModule {
+
+	private static final int SAMPLE_LEVELS = 20;
+	private static final int LEVEL_BITS = 5;
+
+	private static final String [] CLASS_NAMES = new String [] {"Annotated", "Partly novel", "Novel"};
+	private static final int ANNOTATED = 0;
+	private static final int PARTLY_NOVEL = 1;
+	private static final int NOVEL = 2;
+
+	// Keys are mixed so they can go straight into the map, and unmixed
+	// to read them back.  This is the inverse of MIX_MULTIPLIER modulo 2^64.
+	private static final long MIX_MULTIPLIER = 0xff51afd7ed558ccdL;
+	private static final long UNMIX_MULTIPLIER;
+
+	static {
+		long inverse = MIX_MULTIPLIER;
+		for (int i=0;i<5;i++) {
+			inverse *= 2-(MIX_MULTIPLIER*inverse);
+		}
+		UNMIX_MULTIPLIER = inverse;
+	}
+
+	private PackedRecord record = new PackedRecord();
+
+	// Bit widths for the reference, donor position and intron length
+	private int referenceBits = 12;
+	private int positionBits = 30;
+	private int lengthBits = 20;
+
+	// From junction key to (reads << LEVEL_BITS) | lowest sample level
+	private OffHeapLongMap junctions = new OffHeapLongMap(100000);
+
+	private long splicedReads = 0;
+	private long spliceEvents = 0;
+	private long untrackedEvents = 0;
+	private boolean junctionsIncomplete = false;
+
+	// Filled in once we've seen the annotation
+	private boolean calculated = false;
+	private boolean haveAnnotation = false;
+	private long [] junctionCounts = new long[CLASS_NAMES.length];
+	private long [] eventCounts = new long[CLASS_NAMES.length];
+
+	// Junctions found at each sample level in each class
+	private long [][] saturation = new long[CLASS_NAMES.length][SAMPLE_LEVELS];
+
+	public void processSequence(SAMRecord read) {
+
+		if (read.getReadUnmappedFlag() || read.isSecondaryOrSupplementary()) return;
+
+		record.load(read);
+
+		int cigarCount = record.cigarCount();
+		if (cigarCount < 3) return;
+
+		boolean spliced = false;
+		for (int c=0;c<cigarCount;c++) {
+			if (record.cigarOperator(c) == PackedRecord.CIGAR_SKIPPED) {
+				spliced = true;
+				break;
+			}
+		}
+		if (!spliced) return;
+
+		++splicedReads;
+
+		long reference = read.getReferenceIndex();
+
+		// The strand comes from the XS tag the aligner adds, if it did
+		long strand = 0;
+		int xs = record.characterTag('X', 'S');
+		if (xs == '+') strand = 1;
+		else if (xs == '-') strand = 2;
+
+		// Pick a sample level from the read name
+		byte [] data = record.data();
+		long nameHash = 0xcbf29ce484222325L;
+		for (int i=0;i<record.nameLength();i++) {
+			nameHash = (nameHash ^ data[i])*0x100000001b3L;
+		}
+		nameHash = mix(nameHash);
+		int level = (int)(((nameHash>>>32)*SAMPLE_LEVELS)>>>32);
+
+		int position = read.getAlignmentStart();
+
+		for (int c=0;c<cigarCount;c++) {
+			int operator = record.cigarOperator(c);
+			int length = record.cigarLength(c);
+
+			if (operator == PackedRecord.CIGAR_SKIPPED) {
+				++spliceEvents;
+
+				// The donor is the last base before the intron
+				long donor = position-1;
+				if (reference >= 1L<<referenceBits || donor >= 1L<<positionBits || length >= 1L<<lengthBits) {
+					++untrackedEvents;
+				}
+				else {
+					long key = mix((((((strand<<referenceBits) | reference)<<positionBits) | donor)<<lengthBits) | length);
+					long value = junctions.get(key);
+					if (value == OffHeapLongMap.NO_VALUE) {
+						if (junctions.isFull() || !junctions.put(key, (1L<<LEVEL_BITS) | level)) {
+							++untrackedEvents;
+							junctionsIncomplete = true;
+						}
+					}
+					else {
+						long lowestLevel = Math.min(value & ((1<<LEVEL_BITS)-1), level);
+						junctions.put(key, (((value>>>LEVEL_BITS)+1)<<LEVEL_BITS) | lowestLevel);
+					}
+				}
+			}
+
+			if (operator == PackedRecord.CIGAR_MATCH || operator == PackedRecord.CIGAR_DELETION || operator == PackedRecord.CIGAR_SKIPPED || operator == PackedRecord.CIGAR_SEQUENCE_MATCH || operator == PackedRecord.CIGAR_SEQUENCE_MISMATCH) {
+				position += length;
+			}
+		}
+	}
+
+	private static long mix (long key) {
+		key ^= key>>>32;
+		key *= MIX_MULTIPLIER;
+		key ^= key>>>32;
+		return key;
+	}
+
+	private static long unmix (long key) {
+		key ^= key>>>32;
+		key *= UNMIX_MULTIPLIER;
+		key ^= key>>>32;
+		return key;
+	}
+
+	/**
+	 * The key for a splice site, which is the same for both strands.
+	 */
+	private long siteKey (long reference, long position, boolean donor) {
+		return mix((((reference<<positionBits) | position)<<1) | (donor ? 1 : 0));
+	}
+
+	/**
+	 * The key for an intron in the annotation, which is the same for
+	 * both strands.  Neither this nor siteKey can be 0 since the position
+	 * is never 0.
+	 */
+	private long intronKey (long reference, long donor, long length) {
+		return mix((((reference<<positionBits) | donor)<<lengthBits) | length);
+	}
+
+	/**
+	 * Adds the introns and splice sites of every annotated transcript.
+	 *
+	 * @return false if there weren't any, or there wasn't enough memory
+	 * for all of them
+	 */
+	private boolean addAnnotatedIntrons (AnnotationSet annotation, OffHeapLongMap introns, OffHeapLongMap sites) {
+
+		FeatureClass transcripts = annotation == null ? null : annotation.getFeatureClassForType(AnnotationSet.TRANSCRIPT_TYPE);
+		if (transcripts == null) return false;
+
+		ChromosomeFactory factory = annotation.chromosomeFactory();
+		int references = (int)Math.min(factory.referenceCount(), 1L<<referenceBits);
+		boolean found = false;
+
+		for (int r=0;r<references;r++) {
+			Chromosome chromosome = factory.getChromosome(r);
+			if (chromosome == null) continue;
+			ChromosomeFeatures features = transcripts.getFeatures(chromosome);
+			if (features == null) continue;
+
+			for (int f=0;f<features.size();f++) {
+				for (int b=1;b<features.blockCount(f);b++) {
+					long donor = features.blockEnd(f, b-1);
+					long length = features.blockStart(f, b)-(donor+1);
+					if (length <= 0 || donor >= 1L<<positionBits || length >= 1L<<lengthBits) continue;
+
+					// Classifying against part of the annotation would call
+					// annotated junctions novel, so we don't classify at all
+					if (!introns.put(intronKey(r, donor, length), 1) || !sites.put(siteKey(r, donor, true), 1) || !sites.put(siteKey(r, donor+length+1, false), 1)) {
+						System.err.println("Not enough memory for the annotated introns, so splice junctions won't be classified");
+						return false;
+					}
+					found = true;
+				}
+			}
+		}
+
+		return found;
+	}
+
+	private synchronized void classifyJunctions (AnnotationSet annotation) {
+
+		calculated = true;
+		junctionCounts = new long[CLASS_NAMES.length];
+		eventCounts = new long[CLASS_NAMES.length];
+		saturation = new long[CLASS_NAMES.length][SAMPLE_LEVELS];
+
+		// Put every intron and splice site in the annotation into maps
+		OffHeapLongMap annotatedIntrons = new OffHeapLongMap(1024);
+		OffHeapLongMap annotatedSites = new OffHeapLongMap(1024);
+		haveAnnotation = addAnnotatedIntrons(annotation, annotatedIntrons, annotatedSites);
+
+		long referenceMask = (1L<<referenceBits)-1;
+		long positionMask = (1L<<positionBits)-1;
+		long lengthMask = (1L<<lengthBits)-1;
+
+		for (long slot=0;slot<junctions.capacity();slot++) {
+			if (!junctions.isUsed(slot)) continue;
+
+			long junction = unmix(junctions.keyAt(slot));
+			long value = junctions.valueAt(slot);
+
+			long length = junction & lengthMask;
+			long donor = (junction>>>lengthBits) & positionMask;
+			long reference = (junction>>>(lengthBits+positionBits)) & referenceMask;
+
+			int junctionClass = NOVEL;
+			if (annotatedIntrons.get(intronKey(reference, donor, length)) != OffHeapLongMap.NO_VALUE) {
+				junctionClass = ANNOTATED;
+			}
+			else if (annotatedSites.get(siteKey(reference, donor, true)) != OffHeapLongMap.NO_VALUE || annotatedSites.get(siteKey(reference, donor+length+1, false)) != OffHeapLongMap.NO_VALUE) {
+				junctionClass = PARTLY_NOVEL;
+			}
+
+			++junctionCounts[junctionClass];
+			eventCounts[junctionClass] += value>>>LEVEL_BITS;
+			for (int level=(int)(value & ((1<<LEVEL_BITS)-1));level<SAMPLE_LEVELS;level++) {
+				++saturation[junctionClass][level];
+			}
+		}
+	}
+
+	private long totalJunctions () {
+		long total = 0;
+		for (int c=0;c<CLASS_NAMES.length;c++) {
+			total += junctionCounts[c];
+		}
+		return total;
+	}
+
+	public void processFile(SequenceFile file) {
+
+		// Make the fields of the key just big enough for this genome, so
+		// there's as much room as possible for long introns
+		SAMSequenceDictionary dictionary = file.getSequenceDictionary();
+		if (dictionary == null || dictionary.isEmpty() || junctions.size() > 0) return;
+
+		long longest = 0;
+		for (int s=0;s<dictionary.size();s++) {
+			longest = Math.max(longest, dictionary.getSequence(s).getSequenceLength());
+		}
+
+		referenceBits = 64-Long.numberOfLeadingZeros(dictionary.size());
+		positionBits = Math.max(64-Long.numberOfLeadingZeros(longest), 1);
+
+		// Two bits are left for the strand
+		lengthBits = Math.min(62-(referenceBits+positionBits), positionBits);
+	}
+
+	public void processAnnotationSet(AnnotationSet annotation) {
+		classifyJunctions(annotation);
+	}
+
+	public JPanel getResultsPanel() {
+		if (!calculated) classifyJunctions(null);
+
+		String [] labels = new String[SAMPLE_LEVELS];
+		for (int level=0;level<SAMPLE_LEVELS;level++) {
+			labels[level] = ""+(((level+1)*100)/SAMPLE_LEVELS);
+		}
+
+		double [][] data;
+		String [] seriesNames;
+		if (haveAnnotation) {
+			data = new double[CLASS_NAMES.length+1][SAMPLE_LEVELS];
+			seriesNames = new String[CLASS_NAMES.length+1];
+			for (int c=0;c<CLASS_NAMES.length;c++) {
+				seriesNames[c+1] = CLASS_NAMES[c];
+				for (int level=0;level<SAMPLE_LEVELS;level++) {
+					data[c+1][level] = saturation[c][level];
+				}
+			}
+		}
+		else {
+			data = new double[1][SAMPLE_LEVELS];
+			seriesNames = new String[1];
+		}
+
+		seriesNames[0] = "All junctions";
+		for (int level=0;level<SAMPLE_LEVELS;level++) {
+			for (int c=0;c<CLASS_NAMES.length;c++) {
+				data[0][level] += saturation[c][level];
+			}
+		}
+
+		String title = "Splice junction saturation";
+		if (junctionsIncomplete) title += " - incomplete, ran out of memory for new junctions";
+
+		return new LineGraph(data, 0d, Math.max(1, totalJunctions()), "Percentage of reads used (%)", seriesNames, labels, title);
+	}
+
+	public String name() {
+		return "Splice junctions";
+	}
+
+	public String description() {
+		return "Counts splice junctions and how many are in the annotation";
+	}
+
+	public void reset() {
+		junctions = new OffHeapLongMap(100000);
+		splicedReads = 0;
+		spliceEvents = 0;
+		untrackedEvents = 0;
+		junctionsIncomplete = false;
+		calculated = false;
+		haveAnnotation = false;
+		junctionCounts = new long[CLASS_NAMES.length];
+		eventCounts = new long[CLASS_NAMES.length];
+		saturation = new long[CLASS_NAMES.length][SAMPLE_LEVELS];
+	}
+
+	public boolean raisesError() {
+		return false;
+	}
+
+	public boolean raisesWarning() {
+		return false;
+	}
+
+	public boolean needsToSeeSequences() {
+		return true;
+	}
+
+	public boolean needsToSeeAnnotation() {
+		return true;
+	}
+
+	public boolean ignoreInReport() {
+		return ModuleConfig.getParam("junction", "ignore") > 0 || splicedReads == 0;
+	}
+
+	public void makeReport(HTMLReportArchive report) throws XMLStreamException, IOException {
+		writeGraph(report, getResultsPanel(), "Splice junction saturation graph");
+		super.writeTable(report, new ResultsTable());
+	}
+
+	@SuppressWarnings("serial")
+	private class ResultsTable extends AbstractTableModel {
+
+		private String [] measures;
+		private long [] values;
+
+		public ResultsTable () {
+			int rows = haveAnnotation ? 4+(CLASS_NAMES.length*2) : 4;
+			measures = new String[rows];
+			values = new long[rows];
+
+			measures[0] = "Spliced reads";
+			values[0] = splicedReads;
+			measures[1] = "Splice events";
+			values[1] = spliceEvents;
+			measures[2] = "Splice events not counted";
+			values[2] = untrackedEvents;
+			measures[3] = "Junctions";
+			values[3] = totalJunctions();
+
+			if (haveAnnotation) {
+				for (int c=0;c<CLASS_NAMES.length;c++) {
+					measures[4+c] = CLASS_NAMES[c]+" junctions";
+					values[4+c] = junctionCounts[c];
+					measures[4+CLASS_NAMES.length+c] = CLASS_NAMES[c]+" splice events";
+					values[4+CLASS_NAMES.length+c] = eventCounts[c];
+				}
+			}
+		}
+
+		public int getColumnCount() {
+			return 2;
+		}
+
+		public int getRowCount() {
+			return measures.length;
+		}
+
+		public Object getValueAt(int rowIndex, int columnIndex) {
+			switch (columnIndex) {
+				case 0: return measures[rowIndex];
+				case 1: return values[rowIndex];
+			}
+			return null;
+		}
+
+		public String getColumnName (int columnIndex) {
+			switch (columnIndex) {
+				case 0: return "Measure";
+				case 1: return "Count";
+			}
+			return null;
+		}
+
+		public Class<?> getColumnClass (int columnIndex) {
+			switch (columnIndex) {
+				case 0: return String.class;
+				case 1: return Long.class;
+			}
+			return null;
+		}
+	}
+
+}
@@ -0,0 +1,158 @@
+/**
+ * Copyright Copyright 2014 Simon Andrews
+ *
+ *    This file is part of BamQC.
+ *
+ *    BamQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    BamQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with BamQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.babraham.BamQC.Modules;
+
+import java.io.IOException;
+
+import javax.swing.JPanel;
+import javax.swing.table.AbstractTableModel;
+import javax.xml.stream.XMLStreamException;
+
+import net.sf.samtools.SAMRecord;
+import uk.ac.babraham.BamQC.Annotation.AnnotationSet;
+import uk.ac.babraham.BamQC.Graphs.HorizontalBarGraph;
+import uk.ac.babraham.BamQC.Report.HTMLReportArchive;
+import uk.ac.babraham.BamQC.Sequence.SequenceFile;
+
+/**
+ * Says how many reads came from the exons of transcripts, how many from
+ * their introns and how many from outside them altogether.  An RNA-seq
+ * library with lots of intronic or intergenic reads may have genomic DNA
+ * contamination or a lot of unprocessed transcripts.
+ */
+public class TranscriptLocation extends AbstractQCModule {
+
+	private static final String [] LOCATION_NAMES = new String [] {"Exonic", "Splice spanning", "Intronic", "Intergenic"};
+
+	private boolean hasTranscripts = false;
+	private long [] readCounts = new long[LOCATION_NAMES.length];
+	private long totalReads = 0;
+
+	public void processSequence(SAMRecord read) {}
+
+	public void processFile(SequenceFile file) {}
+
+	public void processAnnotationSet(AnnotationSet annotation) {
+
+		hasTranscripts = annotation.hasTranscripts();
+
+		readCounts[0] = annotation.exonicReadCount();
+		readCounts[1] = annotation.spliceSpanningReadCount();
+		readCounts[2] = annotation.intronicReadCount();
+		readCounts[3] = annotation.intergenicReadCount();
+
+		totalReads = 0;
+		for (int i=0;i<readCounts.length;i++) {
+			totalReads += readCounts[i];
+		}
+	}
+
+	private float percentage (int location) {
+		if (totalReads == 0) return 0;
+		return (readCounts[location]*100f)/totalReads;
+	}
+
+	public JPanel getResultsPanel() {
+		float [] percentages = new float[LOCATION_NAMES.length];
+		for (int i=0;i<percentages.length;i++) {
+			percentages[i] = percentage(i);
+		}
+		return new HorizontalBarGraph(LOCATION_NAMES, percentages, "Percentage of reads in each part of transcripts", 100);
+	}
+
+	public String name() {
+		return "Read Location in Transcripts";
+	}
+
+	public String description() {
+		return "Tells whether reads come from the exons or introns of transcripts, or lie between them";
+	}
+
+	public void reset() {
+		hasTranscripts = false;
+		readCounts = new long[LOCATION_NAMES.length];
+		totalReads = 0;
+	}
+
+	public boolean raisesError() {
+		return false;
+	}
+
+	public boolean raisesWarning() {
+		return false;
+	}
+
+	public boolean needsToSeeSequences() {
+		return false;
+	}
+
+	public boolean needsToSeeAnnotation() {
+		return true;
+	}
+
+	public boolean ignoreInReport() {
+		return !hasTranscripts;
+	}
+
+	public void makeReport(HTMLReportArchive report) throws XMLStreamException, IOException {
+		super.writeTable(report, new ResultsTable());
+	}
+
+	@SuppressWarnings("serial")
+	private class ResultsTable extends AbstractTableModel {
+
+		// Location - Reads - Percentage
+		public int getColumnCount() {
+			return 3;
+		}
+
+		public int getRowCount() {
+			return LOCATION_NAMES.length;
+		}
+
+		public Object getValueAt(int rowIndex, int columnIndex) {
+			switch (columnIndex) {
+				case 0: return LOCATION_NAMES[rowIndex];
+				case 1: return readCounts[rowIndex];
+				case 2: return percentage(rowIndex);
+			}
+			return null;
+		}
+
+		public String getColumnName (int columnIndex) {
+			switch (columnIndex) {
+				case 0: return "Location";
+				case 1: return "Reads";
+				case 2: return "Percentage";
+			}
+			return null;
+		}
+
+		public Class<?> getColumnClass (int columnIndex) {
+			switch (columnIndex) {
+				case 0: return String.class;
+				case 1: return Long.class;
+				case 2: return Float.class;
+			}
+			return null;
+		}
+	}
+
+}
@@ -66,7 +66,10 @@ public class BAMFile implements SequenceFile {
 
 		fis = new FileInputStream(file);
 		
-		br = new SAMFileReader(fis);
+		// We don't ask for eager decoding, so each record keeps its raw data
+		// and only decodes the fields which are asked for.  Modules which
+		// read that data directly through PackedRecord never decode it.
+		br = new SAMFileReader(fis, false);
 		
 		header = br.getFileHeader();
 				
@@ -100,6 +103,14 @@ public class BAMFile implements SequenceFile {
 		
 	}
 
+	public SAMSequenceDictionary getSequenceDictionary () {
+		return header.getSequenceDictionary();
+	}
+
+	public boolean isCoordinateSorted () {
+		return header.getSortOrder() == SAMFileHeader.SortOrder.coordinate;
+	}
+
 	public int getPercentComplete() {
 		if (!hasNext()) return 100;
 		
@@ -0,0 +1,375 @@
+/**
+ * Copyright Copyright 2014 Simon Andrews
+ *
+ *    This file is part of BamQC.
+ *
+ *    BamQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    BamQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with BamQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.babraham.BamQC.Sequence;
+
+import java.util.Iterator;
+import java.util.List;
+
+import net.sf.samtools.BAMRecord;
+import net.sf.samtools.CigarElement;
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.SAMRecord.SAMTagAndValue;
+
+/**
+ * Gives access to the name, CIGAR, bases, qualities and tags of a record in the
+ * packed form they have in a BAM file.  Records read from a BAM file keep
+ * this data until something asks for one of the decoded fields, so by
+ * reading it directly we avoid making the Cigar, base and quality arrays
+ * and the full set of tag objects for every read.
+ *
+ * Records which didn't come from a BAM file are packed into a buffer
+ * which is reused, so the same code can read both.  One of these should
+ * be kept by each module which needs it and loaded with each read in turn.
+ */
+public class PackedRecord {
+
+	// The bases which each of the 4 bit codes stands for
+	public static final String BASE_CODES = "=ACMGRSVTWYHKDBN";
+
+	// CIGAR operators, numbered as they are in a BAM file
+	public static final int CIGAR_MATCH = 0;
+	public static final int CIGAR_INSERTION = 1;
+	public static final int CIGAR_DELETION = 2;
+	public static final int CIGAR_SKIPPED = 3;
+	public static final int CIGAR_SOFT_CLIP = 4;
+	public static final int CIGAR_HARD_CLIP = 5;
+	public static final int CIGAR_PADDING = 6;
+	public static final int CIGAR_SEQUENCE_MATCH = 7;
+	public static final int CIGAR_SEQUENCE_MISMATCH = 8;
+
+	// Quality given to every base of a read with no qualities
+	public static final int MISSING_QUALITY = 0xFF;
+
+	private static final byte [] BASE_TO_CODE = new byte[256];
+	static {
+		for (int b=0;b<256;b++) {
+			BASE_TO_CODE[b] = 15;
+		}
+		for (int c=0;c<BASE_CODES.length();c++) {
+			BASE_TO_CODE[BASE_CODES.charAt(c)] = (byte)c;
+			BASE_TO_CODE[Character.toLowerCase(BASE_CODES.charAt(c))] = (byte)c;
+		}
+	}
+
+	private byte [] data;
+	private byte [] packBuffer = new byte[1024];
+
+	private int cigarOffset;
+	private int cigarCount;
+	private int readLength;
+	private int basesOffset;
+	private int qualityOffset;
+	private int tagOffset;
+	private int tagEnd;
+
+	/**
+	 * Points this object at a new record.
+	 *
+	 * @param record The record to read
+	 */
+	public void load (SAMRecord record) {
+
+		if (record instanceof BAMRecord) {
+			BAMRecord bamRecord = (BAMRecord)record;
+
+			// This is null if the record has been changed since it was read
+			byte [] raw = bamRecord.getVariableBinaryRepresentation();
+
+			if (raw != null) {
+				data = raw;
+				cigarOffset = bamRecord.getReadNameLength()+1;
+				cigarCount = bamRecord.getCigarLength();
+				readLength = bamRecord.getReadLength();
+				setOffsets(raw.length);
+				return;
+			}
+		}
+
+		pack(record);
+	}
+
+	private void setOffsets (int end) {
+		basesOffset = cigarOffset+(cigarCount*4);
+		qualityOffset = basesOffset+((readLength+1)/2);
+		tagOffset = qualityOffset+readLength;
+		tagEnd = end;
+	}
+
+	/**
+	 * Packs a record the way it would be stored in a BAM file.  We only
+	 * keep tags which hold text or integers.
+	 */
+	private void pack (SAMRecord record) {
+
+		List<CigarElement> cigar = record.getCigar().getCigarElements();
+		byte [] bases = record.getReadBases();
+		byte [] qualities = record.getBaseQualities();
+		List<SAMTagAndValue> tags = record.getAttributes();
+		String name = record.getReadName() == null ? "" : record.getReadName();
+
+		cigarOffset = name.length()+1;
+		cigarCount = cigar.size();
+		readLength = bases.length;
+		setOffsets(0);
+
+		int size = tagOffset;
+		Iterator<SAMTagAndValue> it = tags.iterator();
+		while (it.hasNext()) {
+			Object value = it.next().value;
+			if (value instanceof String) size += 4+((String)value).length();
+			else size += 7;
+		}
+
+		if (packBuffer.length < size) packBuffer = new byte[Math.max(size, packBuffer.length*2)];
+		data = packBuffer;
+
+		for (int i=0;i<name.length();i++) {
+			data[i] = (byte)name.charAt(i);
+		}
+		data[name.length()] = 0;
+
+		for (int c=0;c<cigarCount;c++) {
+			CigarElement element = cigar.get(c);
+			writeInt(cigarOffset+(c*4), (element.getLength()<<4) | element.getOperator().ordinal());
+		}
+
+		for (int b=0;b<readLength;b+=2) {
+			int packed = BASE_TO_CODE[bases[b] & 0xFF]<<4;
+			if (b+1 < readLength) packed |= BASE_TO_CODE[bases[b+1] & 0xFF];
+			data[basesOffset+(b/2)] = (byte)packed;
+		}
+
+		for (int q=0;q<readLength;q++) {
+			data[qualityOffset+q] = q < qualities.length ? qualities[q] : (byte)MISSING_QUALITY;
+		}
+
+		int position = tagOffset;
+		it = tags.iterator();
+		while (it.hasNext()) {
+			SAMTagAndValue tag = it.next();
+			Object value = tag.value;
+
+			if (value instanceof String) {
+				String text = (String)value;
+				position = writeTagName(position, tag.tag, 'Z');
+				for (int i=0;i<text.length();i++) {
+					data[position++] = (byte)text.charAt(i);
+				}
+				data[position++] = 0;
+			}
+			else if (value instanceof Character) {
+				position = writeTagName(position, tag.tag, 'A');
+				data[position++] = (byte)((Character)value).charValue();
+			}
+			else if (value instanceof Number && !(value instanceof Float)) {
+				long number = ((Number)value).longValue();
+				if (number < Integer.MIN_VALUE || number > Integer.MAX_VALUE) continue;
+				position = writeTagName(position, tag.tag, 'i');
+				writeInt(position, (int)number);
+				position += 4;
+			}
+		}
+
+		tagEnd = position;
+	}
+
+	private int writeTagName (int position, String tag, char type) {
+		data[position] = (byte)tag.charAt(0);
+		data[position+1] = (byte)tag.charAt(1);
+		data[position+2] = (byte)type;
+		return position+3;
+	}
+
+	private void writeInt (int position, int value) {
+		data[position] = (byte)value;
+		data[position+1] = (byte)(value>>8);
+		data[position+2] = (byte)(value>>16);
+		data[position+3] = (byte)(value>>24);
+	}
+
+	private int readInt (int position) {
+		return (data[position] & 0xFF) | ((data[position+1] & 0xFF)<<8) | ((data[position+2] & 0xFF)<<16) | ((data[position+3] & 0xFF)<<24);
+	}
+
+	/**
+	 * The array holding the packed record.  This is only valid until the
+	 * next record is loaded.
+	 */
+	public byte [] data () {
+		return data;
+	}
+
+	/**
+	 * The length of the read name, which starts at the beginning of data().
+	 */
+	public int nameLength () {
+		return cigarOffset-1;
+	}
+
+	public int readLength () {
+		return readLength;
+	}
+
+	public int cigarCount () {
+		return cigarCount;
+	}
+
+	public int cigarOperator (int index) {
+		return readInt(cigarOffset+(index*4)) & 0xF;
+	}
+
+	public int cigarLength (int index) {
+		return readInt(cigarOffset+(index*4))>>>4;
+	}
+
+	/**
+	 * The number of bases hard clipped off the start of the stored read.
+	 * The per cycle modules count cycles from the start of the read as
+	 * it was sequenced, so these bases still count as cycles.
+	 */
+	public int leadingHardClip () {
+		if (cigarCount > 0 && cigarOperator(0) == CIGAR_HARD_CLIP) return cigarLength(0);
+		return 0;
+	}
+
+	/**
+	 * The number of bases hard clipped off the end of the stored read.
+	 */
+	public int trailingHardClip () {
+		if (cigarCount > 1 && cigarOperator(cigarCount-1) == CIGAR_HARD_CLIP) return cigarLength(cigarCount-1);
+		return 0;
+	}
+
+	/**
+	 * The position in data() of the first base.  Bases are stored two to a
+	 * byte as 4 bit codes, with the first base in the high bits.
+	 */
+	public int basesOffset () {
+		return basesOffset;
+	}
+
+	/**
+	 * The 4 bit code for a base, which is its position in BASE_CODES.
+	 */
+	public int baseCode (int index) {
+		int packed = data[basesOffset+(index>>1)];
+		if ((index & 1) == 0) return (packed>>4) & 0xF;
+		return packed & 0xF;
+	}
+
+	/**
+	 * The Phred quality of a base, or MISSING_QUALITY if the read didn't
+	 * have any.
+	 */
+	public int quality (int index) {
+		return data[qualityOffset+index] & 0xFF;
+	}
+
+	/**
+	 * Finds a text tag.  The value runs from the returned position in
+	 * data() up to the next zero byte.
+	 *
+	 * @return The position of the start of the value, or -1 if the tag isn't there
+	 */
+	public int stringTag (char first, char second) {
+		int position = findTag(first, second);
+		if (position < 0 || data[position-1] != 'Z') return -1;
+		return position;
+	}
+
+	/**
+	 * Finds a single character tag, such as the XS strand tag.
+	 *
+	 * @return The character, or -1 if the tag isn't there
+	 */
+	public int characterTag (char first, char second) {
+		int position = findTag(first, second);
+		if (position < 0 || data[position-1] != 'A') return -1;
+		return data[position] & 0xFF;
+	}
+
+	/**
+	 * Finds an integer tag.
+	 *
+	 * @param missing The value to return if the tag isn't there
+	 */
+	public long integerTag (char first, char second, long missing) {
+		int position = findTag(first, second);
+		if (position < 0) return missing;
+
+		switch (data[position-1]) {
+			case 'c': return data[position];
+			case 'C': return data[position] & 0xFF;
+			case 's': return (short)((data[position] & 0xFF) | ((data[position+1] & 0xFF)<<8));
+			case 'S': return (data[position] & 0xFF) | ((data[position+1] & 0xFF)<<8);
+			case 'i': return readInt(position);
+			case 'I': return readInt(position) & 0xFFFFFFFFL;
+		}
+		return missing;
+	}
+
+	/**
+	 * Steps through the tags until we find the one we want.
+	 *
+	 * @return The position of the value, just after the type, or -1
+	 */
+	private int findTag (char first, char second) {
+
+		int position = tagOffset;
+
+		while (position+3 <= tagEnd) {
+			if (data[position] == first && data[position+1] == second) return position+3;
+
+			int type = data[position+2];
+			position += 3;
+
+			switch (type) {
+				case 'A': case 'c': case 'C':
+					position += 1;
+					break;
+				case 's': case 'S':
+					position += 2;
+					break;
+				case 'i': case 'I': case 'f':
+					position += 4;
+					break;
+				case 'Z': case 'H':
+					while (position < tagEnd && data[position] != 0) ++position;
+					++position;
+					break;
+				case 'B':
+					int elementSize;
+					switch (data[position]) {
+						case 'c': case 'C': elementSize = 1; break;
+						case 's': case 'S': elementSize = 2; break;
+						default: elementSize = 4;
+					}
+					position += 5+(elementSize*readInt(position+1));
+					break;
+				default:
+					// We can't tell how long this is so we can't go any further
+					return -1;
+			}
+		}
+
+		return -1;
+	}
+
+}
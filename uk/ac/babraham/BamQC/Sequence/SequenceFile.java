@@ -25,6 +25,7 @@ import uk.ac.babraham.BamQC.Annotation.AnnotationSet;
 import uk.ac.babraham.BamQC.Annotation.Chromosome;
 
 import net.sf.samtools.SAMRecord;
+import net.sf.samtools.SAMSequenceDictionary;
 
 public interface SequenceFile {
 
@@ -36,6 +37,8 @@ public interface SequenceFile {
 	public File getFile();
 	public boolean canListChromosomes();
 	public Chromosome [] listChromosomes();
+	public SAMSequenceDictionary getSequenceDictionary();
+	public boolean isCoordinateSorted();
 	public AnnotationSet annotationSet();
 	
 }
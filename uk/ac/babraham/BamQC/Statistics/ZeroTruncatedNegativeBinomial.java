@@ -0,0 +1,186 @@
+/**
+ * Copyright Copyright 2014 Simon Andrews
+ *
+ *    This file is part of BamQC.
+ *
+ *    BamQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    BamQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with BamQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.babraham.BamQC.Statistics;
+
+import org.apache.commons.math3.analysis.UnivariateFunction;
+import org.apache.commons.math3.analysis.solvers.BrentSolver;
+import org.apache.commons.math3.special.Gamma;
+
+/**
+ * A negative binomial distribution fitted to counts where we can't see
+ * the zeros.  This is the situation we're in with duplicate counts: we
+ * know how many fragments we saw once, twice and so on, but not how many
+ * were in the library and never got sequenced.  Once we have the fit we
+ * can say how many of those we'd expect to pick up with more sequencing.
+ *
+ * The distribution is described by its mean and its size (dispersion)
+ * parameter.  For a given size the mean is fixed by needing the mean of
+ * the truncated distribution to match the data, so we only need to
+ * search over the size to find the best likelihood.
+ */
+public class ZeroTruncatedNegativeBinomial {
+
+	// The range of log(size) we search.  Beyond the top end the
+	// distribution is to all intents a Poisson.
+	private static final double MIN_LOG_SIZE = -7;
+	private static final double MAX_LOG_SIZE = 9;
+
+	private double mean;
+	private double size;
+
+	public ZeroTruncatedNegativeBinomial (double mean, double size) {
+		this.mean = mean;
+		this.size = size;
+	}
+
+	/**
+	 * Fits the distribution to a histogram of counts.
+	 *
+	 * @param values The counts seen, all at least 1
+	 * @param frequencies How many times each count was seen
+	 * @param binCount The number of entries to use from the arrays
+	 * @return The fitted distribution, or null if there's no sign of saturation to fit
+	 */
+	public static ZeroTruncatedNegativeBinomial fit (int [] values, long [] frequencies, int binCount) {
+
+		double total = 0;
+		double sum = 0;
+		for (int b=0;b<binCount;b++) {
+			total += frequencies[b];
+			sum += ((double)values[b])*frequencies[b];
+		}
+
+		// If everything was seen once then the library looks infinite and
+		// there's nothing we can fit.
+		if (total == 0 || sum/total <= 1.000001) return null;
+
+		double observedMean = sum/total;
+
+		// A coarse search first, since the likelihood isn't guaranteed to
+		// have a single peak, then a golden section search around the best
+		// point we found.
+		int steps = 32;
+		double stepSize = (MAX_LOG_SIZE-MIN_LOG_SIZE)/steps;
+		double bestLogSize = MIN_LOG_SIZE;
+		double bestLikelihood = Double.NEGATIVE_INFINITY;
+
+		for (int s=0;s<=steps;s++) {
+			double logSize = MIN_LOG_SIZE+(s*stepSize);
+			double likelihood = logLikelihood(Math.exp(logSize), observedMean, values, frequencies, binCount, total);
+			if (likelihood > bestLikelihood) {
+				bestLikelihood = likelihood;
+				bestLogSize = logSize;
+			}
+		}
+
+		double golden = (Math.sqrt(5)-1)/2;
+		double lower = Math.max(MIN_LOG_SIZE, bestLogSize-stepSize);
+		double upper = Math.min(MAX_LOG_SIZE, bestLogSize+stepSize);
+		double left = upper-(golden*(upper-lower));
+		double right = lower+(golden*(upper-lower));
+		double leftLikelihood = logLikelihood(Math.exp(left), observedMean, values, frequencies, binCount, total);
+		double rightLikelihood = logLikelihood(Math.exp(right), observedMean, values, frequencies, binCount, total);
+
+		while (upper-lower > 1e-4) {
+			if (leftLikelihood > rightLikelihood) {
+				upper = right;
+				right = left;
+				rightLikelihood = leftLikelihood;
+				left = upper-(golden*(upper-lower));
+				leftLikelihood = logLikelihood(Math.exp(left), observedMean, values, frequencies, binCount, total);
+			}
+			else {
+				lower = left;
+				left = right;
+				leftLikelihood = rightLikelihood;
+				right = lower+(golden*(upper-lower));
+				rightLikelihood = logLikelihood(Math.exp(right), observedMean, values, frequencies, binCount, total);
+			}
+		}
+
+		double size = Math.exp((lower+upper)/2);
+		return new ZeroTruncatedNegativeBinomial(meanForSize(size, observedMean), size);
+	}
+
+	/**
+	 * Finds the mean which gives the truncated distribution the
+	 * observed mean for a given size.
+	 */
+	private static double meanForSize (final double size, final double observedMean) {
+
+		UnivariateFunction meanDifference = new UnivariateFunction() {
+			public double value(double mean) {
+				return (mean/nonZeroProbability(mean, size))-observedMean;
+			}
+		};
+
+		// The truncated mean is always above the untruncated one, so the
+		// answer must lie below the observed mean.
+		return new BrentSolver(1e-10, 1e-12).solve(1000, meanDifference, 1e-12, observedMean);
+	}
+
+	private static double logLikelihood (double size, double observedMean, int [] values, long [] frequencies, int binCount, double total) {
+
+		double mean = meanForSize(size, observedMean);
+
+		double logSizeFraction = Math.log(size/(size+mean));
+		double logMeanFraction = Math.log(mean/(size+mean));
+		double logGammaSize = Gamma.logGamma(size);
+
+		// We leave out log(value!) since it doesn't depend on the parameters
+		double likelihood = 0;
+		for (int b=0;b<binCount;b++) {
+			likelihood += frequencies[b]*(Gamma.logGamma(values[b]+size)-logGammaSize+(size*logSizeFraction)+(values[b]*logMeanFraction));
+		}
+
+		likelihood -= total*Math.log(nonZeroProbability(mean, size));
+
+		return likelihood;
+	}
+
+	/**
+	 * The probability of a count above zero from an untruncated negative
+	 * binomial, calculated so it stays accurate for small means.
+	 */
+	private static double nonZeroProbability (double mean, double size) {
+		return -Math.expm1(-size*Math.log1p(mean/size));
+	}
+
+	public double mean () {
+		return mean;
+	}
+
+	public double size () {
+		return size;
+	}
+
+	/**
+	 * The probability that an item gets a count above zero if we scale
+	 * up the sampling.  For a library this is the fraction of fragments
+	 * we'd expect to see at a multiple of the current sequencing depth.
+	 *
+	 * @param depth The multiple of the depth the distribution was fitted at
+	 * @return The probability of seeing an item at least once
+	 */
+	public double fractionSeen (double depth) {
+		return nonZeroProbability(mean*depth, size);
+	}
+
+}
@@ -0,0 +1,156 @@
+/**
+ * Copyright Copyright 2014 Simon Andrews
+ *
+ *    This file is part of BamQC.
+ *
+ *    BamQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    BamQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with BamQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.babraham.BamQC.Utilities;
+
+import java.util.Arrays;
+
+/**
+ * Finds every occurrence of a set of DNA sequences in one pass along a
+ * read (the Aho-Corasick algorithm).  The patterns are built into a state
+ * machine with a transition for every state and base, so following a
+ * read is one array lookup per base, however many patterns there are.
+ *
+ * Bases are given as 0-3 for A, C, G and T.  Anything else can't be part
+ * of a match, so callers should go back to the start state for it.
+ */
+public class AhoCorasick {
+
+	public static final int START = 0;
+
+	// The most patterns we can report in the bits of a long
+	public static final int MAX_PATTERNS = 64;
+
+	private static final String BASES = "ACGT";
+
+	// Indexed by (state * 4) + base
+	private int [] transitions;
+
+	// A bit for each pattern which ends at this state
+	private long [] matches;
+
+	private int [] patternLengths;
+
+	/**
+	 * Builds the state machine.
+	 *
+	 * @param patterns The sequences to find, made of A, C, G and T
+	 */
+	public AhoCorasick (String [] patterns) {
+
+		if (patterns.length > MAX_PATTERNS) {
+			throw new IllegalArgumentException("Can't search for more than "+MAX_PATTERNS+" sequences at once");
+		}
+
+		patternLengths = new int[patterns.length];
+
+		int maxStates = 1;
+		for (int p=0;p<patterns.length;p++) {
+			maxStates += patterns[p].length();
+		}
+
+		transitions = new int[maxStates*4];
+		Arrays.fill(transitions, -1);
+		matches = new long[maxStates];
+		int stateCount = 1;
+
+		// First the tree of all of the patterns
+		for (int p=0;p<patterns.length;p++) {
+			String pattern = patterns[p].toUpperCase();
+			patternLengths[p] = pattern.length();
+
+			int state = START;
+			for (int i=0;i<pattern.length();i++) {
+				int base = BASES.indexOf(pattern.charAt(i));
+				if (base < 0) {
+					throw new IllegalArgumentException("Sequence "+patterns[p]+" contained something other than A, C, G or T");
+				}
+				if (transitions[(state*4)+base] < 0) {
+					transitions[(state*4)+base] = stateCount++;
+				}
+				state = transitions[(state*4)+base];
+			}
+			matches[state] |= 1L<<p;
+		}
+
+		// Then fill in the missing transitions breadth first, so each state
+		// falls back to the longest suffix of itself which is in the tree,
+		// and picks up the matches of that suffix.
+		int [] fallbacks = new int[stateCount];
+		int [] queue = new int[stateCount];
+		int queueStart = 0;
+		int queueEnd = 0;
+
+		for (int base=0;base<4;base++) {
+			int next = transitions[(START*4)+base];
+			if (next < 0) {
+				transitions[(START*4)+base] = START;
+			}
+			else {
+				fallbacks[next] = START;
+				queue[queueEnd++] = next;
+			}
+		}
+
+		while (queueStart < queueEnd) {
+			int state = queue[queueStart++];
+			matches[state] |= matches[fallbacks[state]];
+
+			for (int base=0;base<4;base++) {
+				int next = transitions[(state*4)+base];
+				int fallbackNext = transitions[(fallbacks[state]*4)+base];
+				if (next < 0) {
+					transitions[(state*4)+base] = fallbackNext;
+				}
+				else {
+					fallbacks[next] = fallbackNext;
+					queue[queueEnd++] = next;
+				}
+			}
+		}
+
+		transitions = Arrays.copyOf(transitions, stateCount*4);
+		matches = Arrays.copyOf(matches, stateCount);
+	}
+
+	/**
+	 * Moves on by one base.
+	 *
+	 * @param state The current state
+	 * @param base The base, from 0-3
+	 * @return The new state
+	 */
+	public int next (int state, int base) {
+		return transitions[(state*4)+base];
+	}
+
+	/**
+	 * The patterns which end at the last base we moved on by.
+	 *
+	 * @return A bit for each pattern, in the order they were given
+	 */
+	public long matches (int state) {
+		return matches[state];
+	}
+
+	public int patternLength (int pattern) {
+		return patternLengths[pattern];
+	}
+
+}
@@ -0,0 +1,174 @@
+/**
+ * Copyright Copyright 2014 Simon Andrews
+ *
+ *    This file is part of BamQC.
+ *
+ *    BamQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    BamQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with BamQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.babraham.BamQC.Utilities;
+
+/**
+ * Pulls the flowcell position out of Illumina read names.  Both the
+ * old style names (HWUSI-EAS100R:6:73:941:1973#0/1) and the newer ones
+ * (EAS139:136:FC706VJ:2:2104:15343:197393) end with lane, tile, x and y
+ * as their last four colon separated fields, so we read those from the
+ * end of the name.
+ *
+ * This gets called for every read so it works directly on the characters
+ * of the name rather than splitting it, and one parser is reused for
+ * every read.  The name can also be read straight from the bytes of a
+ * BAM record, so no String needs to be made for it.
+ */
+public class IlluminaReadName {
+
+	// Lanes and tiles are packed into one key as lane+1 above this many
+	// bits, with the tile below.
+	private static final int LANE_SHIFT = 24;
+	private static final int MAX_LANE = 126;
+
+	private int lane;
+	private int tile;
+	private int x;
+	private int y;
+
+	// The positions of the last four colons in the name
+	private int [] colons = new int[4];
+
+	// The name being parsed, which is either a String or a range of bytes
+	private String name;
+	private byte [] bytes;
+
+	/**
+	 * Parses a read name.
+	 *
+	 * @param name The read name
+	 * @return true if the name had a lane, tile and position, false if not
+	 */
+	public boolean parse (String name) {
+		this.name = name;
+		this.bytes = null;
+		return parse(0, name.length());
+	}
+
+	/**
+	 * Parses a read name held as ASCII bytes, such as the start of the
+	 * data in a PackedRecord.
+	 *
+	 * @param bytes The array holding the name
+	 * @param start The position of the first character of the name
+	 * @param end The position after the last character of the name
+	 * @return true if the name had a lane, tile and position, false if not
+	 */
+	public boolean parse (byte [] bytes, int start, int end) {
+		this.name = null;
+		this.bytes = bytes;
+		return parse(start, end);
+	}
+
+	private boolean parse (int start, int end) {
+
+		// Find the colons before the last four fields
+		int found = 0;
+		for (int i=end-1;i>=start && found < 4;i--) {
+			if (charAt(i) == ':') {
+				colons[found++] = i;
+			}
+		}
+
+		if (found < 3) return false;
+
+		// The y field can have extra text after it, such as #0/1, so
+		// that one just needs to start with a number.
+		y = parseNumber(colons[0]+1, end, false);
+		x = parseNumber(colons[1]+1, colons[0], true);
+		tile = parseNumber(colons[2]+1, colons[1], true);
+
+		if (found == 4) {
+			lane = parseNumber(colons[3]+1, colons[2], true);
+		}
+		else {
+			lane = parseNumber(start, colons[2], true);
+		}
+
+		return y >= 0 && x >= 0 && tile >= 0;
+	}
+
+	private char charAt (int index) {
+		if (bytes != null) return (char)(bytes[index] & 0xFF);
+		return name.charAt(index);
+	}
+
+	/**
+	 * Reads a number from part of the name.
+	 *
+	 * @return The number, or -1 if there wasn't a valid number there
+	 */
+	private int parseNumber (int start, int end, boolean wholeField) {
+		int value = 0;
+		int i = start;
+		for (;i<end;i++) {
+			char c = charAt(i);
+			if (c < '0' || c > '9') break;
+			if (value > 100000000) return -1;
+			value = (value*10)+(c-'0');
+		}
+
+		if (i == start) return -1;
+		if (wholeField && i != end) return -1;
+		return value;
+	}
+
+	/**
+	 * The lane, or -1 if the name didn't have one we could read.
+	 */
+	public int lane () {
+		return lane;
+	}
+
+	public int tile () {
+		return tile;
+	}
+
+	public int x () {
+		return x;
+	}
+
+	public int y () {
+		return y;
+	}
+
+	/**
+	 * Packs the lane and tile into a single int, which sorts in lane then
+	 * tile order.  A name without a lane gets the same key as lane -1.
+	 *
+	 * @return The key, or -1 if the lane or tile is too big to pack
+	 */
+	public int laneTileKey () {
+		if (lane > MAX_LANE || tile >= 1<<LANE_SHIFT) return -1;
+		return ((lane+1)<<LANE_SHIFT) | tile;
+	}
+
+	/**
+	 * The lane from a key made by laneTileKey(), or -1 if there wasn't one.
+	 */
+	public static int laneFromKey (int key) {
+		return (key>>LANE_SHIFT)-1;
+	}
+
+	public static int tileFromKey (int key) {
+		return key & ((1<<LANE_SHIFT)-1);
+	}
+
+}
@@ -0,0 +1,326 @@
+/**
+ * Copyright Copyright 2014 Simon Andrews
+ *
+ *    This file is part of BamQC.
+ *
+ *    BamQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    BamQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with BamQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.babraham.BamQC.Utilities;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * OffHeapLongMap is a hash map from long keys to long values, for
+ * modules which need to remember something about millions of reads.
+ *
+ * A HashMap of Long objects takes around 80 bytes per entry and gives
+ * the garbage collector a lot of work, so instead we keep the keys and
+ * values side by side in direct buffers outside the Java heap and use
+ * open addressing with linear probing.  Each entry takes 16 bytes, and
+ * growing the map just replaces a few large buffers.
+ *
+ * A key of 0 marks an empty slot, so it can't be stored.  Keys should
+ * already be well mixed, since the low bits are used directly to find
+ * a slot.
+ *
+ * Direct memory is limited separately from the heap, so if there isn't
+ * enough to grow the map it stays the size it is and put() starts turning
+ * new keys away once it's nearly full.  Callers which can sample should
+ * check isFull() and remove some keys instead.
+ */
+public class OffHeapLongMap {
+
+	// Each buffer holds 2^SEGMENT_BITS slots.  A single buffer can't be
+	// more than 2GB, so we split larger maps across several of them.
+	private static final int SEGMENT_BITS = 26;
+	private static final long SEGMENT_MASK = (1L<<SEGMENT_BITS)-1;
+
+	private static final double MAX_LOAD = 0.7;
+
+	// How full we let the map get if it can't grow
+	private static final double MAX_FILL = 0.9;
+
+	// The value returned by get() for keys which aren't in the map
+	public static final long NO_VALUE = Long.MIN_VALUE;
+
+	private ByteBuffer [] segments;
+	private long capacity;
+	private long mask;
+	private long size = 0;
+	private long resizeAt;
+	private long fullAt;
+	private boolean growthFailed = false;
+
+	/**
+	 * Creates a new map.
+	 *
+	 * @param expectedSize The number of entries to make space for before the map has to grow
+	 */
+	public OffHeapLongMap (long expectedSize) {
+		long capacity = 1024;
+		while (capacity*MAX_LOAD < expectedSize) {
+			capacity *= 2;
+		}
+		useSegments(allocateSegments(capacity), capacity);
+	}
+
+	/**
+	 * The most direct memory the JVM will let us allocate.  This is set
+	 * with -XX:MaxDirectMemorySize, and is otherwise the same as the
+	 * largest the heap can be.
+	 */
+	public static long maxDirectMemory () {
+		for (String argument : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+			if (!argument.startsWith("-XX:MaxDirectMemorySize=")) continue;
+
+			String size = argument.substring(argument.indexOf('=')+1).toLowerCase();
+			long multiplier = 1;
+			if (size.endsWith("k")) multiplier = 1L<<10;
+			else if (size.endsWith("m")) multiplier = 1L<<20;
+			else if (size.endsWith("g")) multiplier = 1L<<30;
+			if (multiplier > 1) size = size.substring(0, size.length()-1);
+
+			try {
+				return Long.parseLong(size)*multiplier;
+			}
+			catch (NumberFormatException nfe) {
+				break;
+			}
+		}
+		return Runtime.getRuntime().maxMemory();
+	}
+
+	/**
+	 * The most entries a map can hold without growing past a number of
+	 * bytes.  This allows for the old buffers still being there while new
+	 * ones are filled when the map grows.
+	 *
+	 * @param bytes The direct memory the map can use
+	 * @return The number of entries, or 0 if even the smallest map won't fit
+	 */
+	public static long entriesFitting (long bytes) {
+		long capacity = 1024;
+		if (capacity*24 > bytes) return 0;
+		while (capacity*48 <= bytes) {
+			capacity *= 2;
+		}
+		// Keep one below the point where the map would grow again
+		return (long)(capacity*MAX_LOAD)-1;
+	}
+
+	private static ByteBuffer [] allocateSegments (long capacity) {
+		int segmentSlots = (int)Math.min(capacity, 1L<<SEGMENT_BITS);
+		ByteBuffer [] segments = new ByteBuffer[(int)(capacity/segmentSlots)];
+		for (int s=0;s<segments.length;s++) {
+			segments[s] = ByteBuffer.allocateDirect(segmentSlots*16).order(ByteOrder.nativeOrder());
+		}
+		return segments;
+	}
+
+	private void useSegments (ByteBuffer [] segments, long capacity) {
+		this.segments = segments;
+		this.capacity = capacity;
+		mask = capacity-1;
+		resizeAt = (long)(capacity*MAX_LOAD);
+		fullAt = (long)(capacity*MAX_FILL);
+	}
+
+	/**
+	 * The key in a slot, or 0 if the slot is empty.
+	 */
+	public long keyAt (long slot) {
+		return segments[(int)(slot>>>SEGMENT_BITS)].getLong((int)(slot&SEGMENT_MASK)<<4);
+	}
+
+	/**
+	 * The value in a slot.  Only meaningful if isUsed(slot) is true.
+	 */
+	public long valueAt (long slot) {
+		return segments[(int)(slot>>>SEGMENT_BITS)].getLong(((int)(slot&SEGMENT_MASK)<<4)+8);
+	}
+
+	private void setSlot (long slot, long key, long value) {
+		ByteBuffer segment = segments[(int)(slot>>>SEGMENT_BITS)];
+		int offset = (int)(slot&SEGMENT_MASK)<<4;
+		segment.putLong(offset, key);
+		segment.putLong(offset+8, value);
+	}
+
+	/**
+	 * Whether a slot holds an entry.  Together with capacity(), keyAt()
+	 * and valueAt() this lets you go through everything in the map.
+	 */
+	public boolean isUsed (long slot) {
+		return keyAt(slot) != 0;
+	}
+
+	public long capacity () {
+		return capacity;
+	}
+
+	public long size () {
+		return size;
+	}
+
+	/**
+	 * Whether the map has filled up without being able to grow, so
+	 * anything which can should remove some keys.
+	 */
+	public boolean isFull () {
+		return growthFailed && size > resizeAt;
+	}
+
+	/**
+	 * Finds the slot which holds a key, or the empty slot where it
+	 * would go if it's not in the map.
+	 */
+	private long findSlot (long key) {
+		long slot = key & mask;
+		while (true) {
+			long slotKey = keyAt(slot);
+			if (slotKey == key || slotKey == 0) return slot;
+			slot = (slot+1) & mask;
+		}
+	}
+
+	/**
+	 * Gets the value stored for a key.
+	 *
+	 * @param key The key, which can't be 0
+	 * @return The value, or NO_VALUE if the key isn't in the map
+	 */
+	public long get (long key) {
+		long slot = findSlot(key);
+		if (keyAt(slot) == 0) return NO_VALUE;
+		return valueAt(slot);
+	}
+
+	/**
+	 * Stores a value for a key, replacing any existing value.
+	 *
+	 * @param key The key, which can't be 0
+	 * @param value The value
+	 * @return false if this was a new key and there was no room for it
+	 */
+	public boolean put (long key, long value) {
+		if (key == 0) throw new IllegalArgumentException("Can't store a key of 0");
+
+		long slot = findSlot(key);
+		if (keyAt(slot) == 0) {
+			if (size >= fullAt) return false;
+			++size;
+		}
+		setSlot(slot, key, value);
+
+		if (size > resizeAt && !growthFailed) {
+			grow();
+		}
+		return true;
+	}
+
+	/**
+	 * Removes a key, moving back any entries after it which would no
+	 * longer be found.
+	 *
+	 * @param key The key to remove
+	 * @return true if the key was in the map
+	 */
+	public boolean remove (long key) {
+		long slot = findSlot(key);
+		if (keyAt(slot) == 0) return false;
+		removeSlot(slot);
+		return true;
+	}
+
+	private void removeSlot (long gap) {
+		--size;
+
+		long slot = (gap+1) & mask;
+		while (true) {
+			long slotKey = keyAt(slot);
+			if (slotKey == 0) break;
+
+			// We can move this entry into the gap if its home slot isn't
+			// between the gap and where it is now
+			long home = slotKey & mask;
+			boolean canMove = gap <= slot ? (home <= gap || home > slot) : (home <= gap && home > slot);
+
+			if (canMove) {
+				setSlot(gap, slotKey, valueAt(slot));
+				gap = slot;
+			}
+			slot = (slot+1) & mask;
+		}
+
+		setSlot(gap, 0, 0);
+	}
+
+	/**
+	 * Removes every key which has any of the given bits set.  Since keys
+	 * are well mixed, removing all of those with one extra low bit set
+	 * halves the size of the map, which lets a caller sample a fixed
+	 * fraction of keys once the map gets too big.
+	 *
+	 * This is done in place, so it needs no more memory.
+	 *
+	 * @param removeMask The bits which mark keys to remove
+	 */
+	public void removeKeysMatching (long removeMask) {
+		long slot = 0;
+		while (slot < capacity) {
+			long key = keyAt(slot);
+
+			// Removing a key can move a later one back into its slot, so
+			// we look at the same slot again
+			if (key != 0 && (key & removeMask) != 0) {
+				removeSlot(slot);
+			}
+			else {
+				++slot;
+			}
+		}
+	}
+
+	/**
+	 * Moves everything into buffers twice the size.  The new buffers are
+	 * allocated before the old ones can be freed, so if there isn't room
+	 * for both we stay as we are.
+	 */
+	private void grow () {
+		ByteBuffer [] oldSegments = segments;
+		long oldCapacity = capacity;
+
+		try {
+			useSegments(allocateSegments(capacity*2), capacity*2);
+		}
+		catch (OutOfMemoryError oome) {
+			System.err.println("Not enough direct memory to grow past "+size+" entries, use -XX:MaxDirectMemorySize to allow more");
+			growthFailed = true;
+			return;
+		}
+
+		for (long slot=0;slot<oldCapacity;slot++) {
+			ByteBuffer segment = oldSegments[(int)(slot>>>SEGMENT_BITS)];
+			int offset = (int)(slot&SEGMENT_MASK)<<4;
+			long key = segment.getLong(offset);
+			if (key == 0) continue;
+
+			setSlot(findSlot(key), key, segment.getLong(offset+8));
+		}
+	}
+
+}
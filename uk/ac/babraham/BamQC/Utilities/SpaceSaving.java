@@ -0,0 +1,292 @@
+/**
+ * Copyright Copyright 2014 Simon Andrews
+ *
+ *    This file is part of BamQC.
+ *
+ *    BamQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    BamQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with BamQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.babraham.BamQC.Utilities;
+
+/**
+ * Finds the most common items in a stream using a fixed number of
+ * counters (the Space-Saving algorithm of Metwally, Agrawal and El
+ * Abbadi).  When a new item arrives and all of the counters are in use,
+ * it takes over the counter with the lowest count and carries that count
+ * on as its possible overcount.
+ *
+ * With C counters and N items, every item seen more than N/C times is
+ * guaranteed to have a counter, and no count is more than N/C too high.
+ *
+ * Items are non-zero longs, normally hashes.  Each counter has a fixed
+ * slot number, so callers can keep their own data about the item in a
+ * slot alongside it.  A slot keeps its number until its item is replaced
+ * or removed.  The counters are kept in a heap ordered by count so
+ * we can always find the smallest, and there's a hash index from item to
+ * slot.  Nothing is allocated once the object has been made.
+ */
+public class SpaceSaving {
+
+	private int capacity;
+	private int size = 0;
+	private long total = 0;
+
+	// Slots which have never been used start here, and removed ones are
+	// kept in freeSlots to be used again
+	private int nextUnused = 0;
+	private int [] freeSlots;
+	private int freeCount = 0;
+
+	// Per slot
+	private long [] items;
+	private long [] counts;
+	private long [] errors;
+	private int [] heapPositions;
+
+	// The slots in heap order, smallest count first
+	private int [] heap;
+
+	// Open addressing index from item to slot, with an item of 0 for empty
+	private long [] indexItems;
+	private int [] indexSlots;
+	private int indexMask;
+
+	private boolean lastWasInserted = false;
+
+	public SpaceSaving (int capacity) {
+		if (capacity < 1) throw new IllegalArgumentException("Capacity must be at least 1");
+
+		this.capacity = capacity;
+		items = new long[capacity];
+		counts = new long[capacity];
+		errors = new long[capacity];
+		heapPositions = new int[capacity];
+		heap = new int[capacity];
+		freeSlots = new int[capacity];
+
+		// Keep the index no more than half full
+		int indexSize = Integer.highestOneBit(capacity)*4;
+		indexItems = new long[indexSize];
+		indexSlots = new int[indexSize];
+		indexMask = indexSize-1;
+	}
+
+	/**
+	 * Counts one more of an item.
+	 *
+	 * @param item The item, which must not be zero
+	 * @return The slot which now holds the item
+	 */
+	public int offer (long item) {
+
+		++total;
+
+		int slot = find(item);
+
+		if (slot >= 0) {
+			lastWasInserted = false;
+			++counts[slot];
+			siftDown(heapPositions[slot]);
+			return slot;
+		}
+
+		lastWasInserted = true;
+
+		if (size < capacity) {
+			slot = freeCount > 0 ? freeSlots[--freeCount] : nextUnused++;
+			heap[size] = slot;
+			heapPositions[slot] = size;
+			++size;
+			items[slot] = item;
+			counts[slot] = 1;
+			errors[slot] = 0;
+			addToIndex(item, slot);
+			siftUp(heapPositions[slot]);
+			return slot;
+		}
+
+		// Take over the smallest counter
+		slot = heap[0];
+		removeFromIndex(items[slot]);
+		items[slot] = item;
+		errors[slot] = counts[slot];
+		++counts[slot];
+		addToIndex(item, slot);
+		siftDown(0);
+
+		return slot;
+	}
+
+	/**
+	 * Says whether the last call to offer() gave the item a new slot, so
+	 * any data the caller keeps for that slot needs replacing.
+	 */
+	public boolean wasInserted () {
+		return lastWasInserted;
+	}
+
+	/**
+	 * Stops counting an item and frees its slot.  The item's count is
+	 * still included in total().
+	 */
+	public void remove (long item) {
+		int slot = find(item);
+		if (slot < 0) return;
+
+		removeFromIndex(item);
+
+		// Put the last heap entry in its place and let it find its level
+		int position = heapPositions[slot];
+		int moved = heap[--size];
+		if (position < size) {
+			heap[position] = moved;
+			heapPositions[moved] = position;
+			siftDown(position);
+			siftUp(heapPositions[moved]);
+		}
+
+		items[slot] = 0;
+		counts[slot] = 0;
+		errors[slot] = 0;
+		freeSlots[freeCount++] = slot;
+	}
+
+	/**
+	 * Finds the slot holding an item.
+	 *
+	 * @return The slot, or -1 if the item isn't being counted
+	 */
+	public int find (long item) {
+		int position = hash(item) & indexMask;
+		while (indexItems[position] != 0) {
+			if (indexItems[position] == item) return indexSlots[position];
+			position = (position+1) & indexMask;
+		}
+		return -1;
+	}
+
+	public int capacity () {
+		return capacity;
+	}
+
+	/**
+	 * The number of slots in use.
+	 */
+	public int size () {
+		return size;
+	}
+
+	public boolean isUsed (int slot) {
+		return items[slot] != 0;
+	}
+
+	/**
+	 * The number of items which have been offered.
+	 */
+	public long total () {
+		return total;
+	}
+
+	public long item (int slot) {
+		return items[slot];
+	}
+
+	/**
+	 * The count for a slot, which may be too high by up to error(slot).
+	 */
+	public long count (int slot) {
+		return counts[slot];
+	}
+
+	public long error (int slot) {
+		return errors[slot];
+	}
+
+	private static int hash (long item) {
+		item ^= item>>>33;
+		item *= 0xff51afd7ed558ccdL;
+		item ^= item>>>33;
+		return (int)item;
+	}
+
+	private void addToIndex (long item, int slot) {
+		int position = hash(item) & indexMask;
+		while (indexItems[position] != 0) {
+			position = (position+1) & indexMask;
+		}
+		indexItems[position] = item;
+		indexSlots[position] = slot;
+	}
+
+	/**
+	 * Removes an item from the index, moving back any entries after it
+	 * which would no longer be found.
+	 */
+	private void removeFromIndex (long item) {
+		int position = hash(item) & indexMask;
+		while (indexItems[position] != item) {
+			if (indexItems[position] == 0) return;
+			position = (position+1) & indexMask;
+		}
+
+		int gap = position;
+		position = (position+1) & indexMask;
+
+		while (indexItems[position] != 0) {
+			int home = hash(indexItems[position]) & indexMask;
+
+			// We can move this entry into the gap if its home position
+			// isn't between the gap and where it is now
+			boolean canMove = gap <= position ? (home <= gap || home > position) : (home <= gap && home > position);
+
+			if (canMove) {
+				indexItems[gap] = indexItems[position];
+				indexSlots[gap] = indexSlots[position];
+				gap = position;
+			}
+			position = (position+1) & indexMask;
+		}
+
+		indexItems[gap] = 0;
+	}
+
+	private void siftUp (int position) {
+		while (position > 0) {
+			int parent = (position-1)/2;
+			if (counts[heap[parent]] <= counts[heap[position]]) return;
+			swap(position, parent);
+			position = parent;
+		}
+	}
+
+	private void siftDown (int position) {
+		while (true) {
+			int child = (position*2)+1;
+			if (child >= size) return;
+			if (child+1 < size && counts[heap[child+1]] < counts[heap[child]]) ++child;
+			if (counts[heap[position]] <= counts[heap[child]]) return;
+			swap(position, child);
+			position = child;
+		}
+	}
+
+	private void swap (int a, int b) {
+		int slot = heap[a];
+		heap[a] = heap[b];
+		heap[b] = slot;
+		heapPositions[heap[a]] = a;
+		heapPositions[heap[b]] = b;
+	}
+
+}
@@ -0,0 +1,141 @@
+/**
+ * Copyright Copyright 2014 Simon Andrews
+ *
+ *    This file is part of BamQC.
+ *
+ *    BamQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    BamQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with BamQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.babraham.BamQC.Utilities;
+
+import java.util.Arrays;
+
+/**
+ * Numbers the flowcell tiles seen in a file, from 0 in the order they
+ * turn up, so modules can keep arrays indexed by tile.  Tiles are found
+ * by the key from IlluminaReadName.laneTileKey() through a small open
+ * addressing hash table of ints.
+ */
+public class TileIndex {
+
+	// Open addressing from key to index, with a key of -1 for empty
+	private int [] tableKeys;
+	private int [] tableIndices;
+
+	// The key for each index
+	private int [] keys;
+	private int size;
+
+	// Consecutive reads usually come from the same tile, so we remember
+	// the last one to save looking it up again
+	private int lastKey;
+	private int lastIndex;
+
+	public TileIndex () {
+		clear();
+	}
+
+	/**
+	 * Finds the index for a tile.
+	 *
+	 * @param key The lane and tile key
+	 * @return The index, or -1 if we haven't seen this tile
+	 */
+	public int find (int key) {
+
+		if (key == lastKey) return lastIndex;
+
+		int position = slot(key, tableKeys.length);
+		while (tableKeys[position] != -1) {
+			if (tableKeys[position] == key) {
+				lastKey = key;
+				lastIndex = tableIndices[position];
+				return lastIndex;
+			}
+			position = (position+1) & (tableKeys.length-1);
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Gives a new tile the next index.  The tile mustn't already have one.
+	 *
+	 * @param key The lane and tile key
+	 * @return The new index
+	 */
+	public int add (int key) {
+
+		int index = size++;
+		if (index == keys.length) {
+			keys = Arrays.copyOf(keys, index*2);
+		}
+		keys[index] = key;
+
+		// Keep the table no more than half full
+		if (size*2 > tableKeys.length) {
+			int [] oldKeys = tableKeys;
+			int [] oldIndices = tableIndices;
+			tableKeys = new int[oldKeys.length*2];
+			tableIndices = new int[oldKeys.length*2];
+			Arrays.fill(tableKeys, -1);
+			for (int i=0;i<oldKeys.length;i++) {
+				if (oldKeys[i] != -1) insert(oldKeys[i], oldIndices[i]);
+			}
+		}
+		insert(key, index);
+
+		lastKey = key;
+		lastIndex = index;
+		return index;
+	}
+
+	private void insert (int key, int index) {
+		int position = slot(key, tableKeys.length);
+		while (tableKeys[position] != -1) {
+			position = (position+1) & (tableKeys.length-1);
+		}
+		tableKeys[position] = key;
+		tableIndices[position] = index;
+	}
+
+	private static int slot (int key, int length) {
+		return (key*0x9E3779B1) & (length-1);
+	}
+
+	/**
+	 * The number of tiles we've seen.
+	 */
+	public int size () {
+		return size;
+	}
+
+	/**
+	 * The lane and tile key for an index.
+	 */
+	public int key (int index) {
+		return keys[index];
+	}
+
+	public void clear () {
+		tableKeys = new int[256];
+		tableIndices = new int[256];
+		Arrays.fill(tableKeys, -1);
+		keys = new int[64];
+		size = 0;
+		lastKey = -1;
+		lastIndex = -1;
+	}
+
+}